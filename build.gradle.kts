@@ -1,6 +1,7 @@
 plugins {
     `java-library`
     id("me.philippheuer.configuration") version "0.20.3"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 version = properties["version"] as String
@@ -62,4 +63,7 @@ dependencies {
     // HTTP Client
     implementation("com.squareup.okhttp3:okhttp:5.5.0")
     implementation("com.squareup.okhttp3:logging-interceptor:5.5.0")
+
+    // Embedded Database (JdbcStorageBackend tests)
+    testImplementation("com.h2database:h2:2.2.224")
 }
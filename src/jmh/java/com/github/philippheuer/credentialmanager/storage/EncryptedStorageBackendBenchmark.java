@@ -0,0 +1,89 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the {@link EncryptedStorageBackend} compared to the plain backend it wraps
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptedStorageBackendBenchmark {
+
+    @Param({"1000"})
+    public int credentialCount;
+
+    /**
+     * Share of the credentials with a refreshed access token per save
+     */
+    @Param({"0", "0.01", "1"})
+    public double changedRatio;
+
+    private IStorageBackend plain;
+
+    private EncryptedStorageBackend encrypted;
+
+    private List<Credential> credentials;
+
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        credentials = new ArrayList<>(credentialCount);
+        for (int i = 0; i < credentialCount; i++) {
+            credentials.add(new OAuth2Credential("twitch", "access" + i, "refresh" + i, String.valueOf(i), "user" + i, 3600, null));
+        }
+
+        plain = new TemporaryStorageBackend();
+        encrypted = new EncryptedStorageBackend(new TemporaryStorageBackend(), EncryptionKeyProvider.of(new byte[32]));
+        encrypted.saveCredentials(credentials);
+    }
+
+    @Setup(Level.Invocation)
+    public void refreshTokens() {
+        round++;
+        int changed = (int) (credentialCount * changedRatio);
+        for (int i = 0; i < changed; i++) {
+            ((OAuth2Credential) credentials.get(i)).setAccessToken("access" + i + "-" + round);
+        }
+    }
+
+    @Benchmark
+    public void savePlain() {
+        plain.saveCredentials(credentials);
+    }
+
+    @Benchmark
+    public void saveEncrypted() {
+        encrypted.saveCredentials(credentials);
+    }
+
+    @Benchmark
+    public void loadAndDecryptAll(Blackhole blackhole) {
+        for (Credential credential : encrypted.loadCredentials()) {
+            blackhole.consume(((OAuth2Credential) credential).getAccessToken());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tracks the credentials that were added, modified or removed since they were last persisted
+ */
+final class CredentialChangeSet {
+
+    private Map<IdentityKey, Credential> upserted = new LinkedHashMap<>();
+
+    private Map<IdentityKey, Credential> deleted = new LinkedHashMap<>();
+
+    /**
+     * Keys a credential was stored under before its user id changed, by case-folded identity provider and user id
+     */
+    private Map<String, StoredKey> deletedKeys = new LinkedHashMap<>();
+
+    /**
+     * Records an added or modified credential
+     *
+     * @param credential Credential
+     */
+    synchronized void upserted(Credential credential) {
+        IdentityKey key = new IdentityKey(credential);
+        deleted.remove(key);
+        upserted.put(key, credential);
+        if (credential.getUserId() != null) {
+            deletedKeys.remove(fold(credential.getIdentityProvider(), credential.getUserId()));
+        }
+    }
+
+    /**
+     * Records a modified credential whose user id changed, so the storage backend drops the previous key
+     *
+     * @param credential     Credential
+     * @param previousUserId the user id the credential was stored under
+     */
+    synchronized void rekeyed(Credential credential, String previousUserId) {
+        deletedKeys.put(fold(credential.getIdentityProvider(), previousUserId), new StoredKey(credential.getIdentityProvider(), previousUserId));
+        upserted(credential);
+    }
+
+    /**
+     * Records a credential that replaced another one with the same identity provider and user id
+     *
+     * @param replaced    the replaced credential
+     * @param replacement the new credential
+     */
+    synchronized void replaced(Credential replaced, Credential replacement) {
+        upserted.remove(new IdentityKey(replaced));
+        upserted(replacement);
+    }
+
+    /**
+     * Records a removed credential
+     *
+     * @param credential Credential
+     */
+    synchronized void deleted(Credential credential) {
+        IdentityKey key = new IdentityKey(credential);
+        upserted.remove(key);
+        deleted.put(key, credential);
+    }
+
+    /**
+     * Checks for unpersisted changes of a credential
+     *
+     * @param identityProvider Identity Provider
+     * @param userId           User Id
+     * @return true if a credential with the identity provider and user id was changed since it was last persisted
+     */
+    synchronized boolean isPending(String identityProvider, String userId) {
+        if (deletedKeys.containsKey(fold(identityProvider, userId))) {
+            return true;
+        }
+        for (Credential credential : upserted.values()) {
+            if (credential.matches(identityProvider, userId)) {
+                return true;
+            }
+        }
+        for (Credential credential : deleted.values()) {
+            if (credential.matches(identityProvider, userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the recorded changes, resetting the change set
+     *
+     * @return Changes
+     */
+    synchronized Changes drain() {
+        Changes changes = new Changes(new ArrayList<>(upserted.values()), new ArrayList<>(deleted.values()), new ArrayList<>(deletedKeys.values()));
+        upserted = new LinkedHashMap<>();
+        deleted = new LinkedHashMap<>();
+        deletedKeys = new LinkedHashMap<>();
+        return changes;
+    }
+
+    /**
+     * Puts back changes that could not be persisted, unless they were superseded in the meantime
+     *
+     * @param changes Changes
+     */
+    synchronized void restore(Changes changes) {
+        for (StoredKey storedKey : changes.getDeletedKeys()) {
+            deletedKeys.putIfAbsent(fold(storedKey.getIdentityProvider(), storedKey.getUserId()), storedKey);
+        }
+        for (Credential credential : changes.getDeleted()) {
+            IdentityKey key = new IdentityKey(credential);
+            if (!upserted.containsKey(key)) {
+                deleted.putIfAbsent(key, credential);
+            }
+        }
+        for (Credential credential : changes.getUpserted()) {
+            IdentityKey key = new IdentityKey(credential);
+            if (!deleted.containsKey(key)) {
+                upserted.putIfAbsent(key, credential);
+            }
+        }
+    }
+
+    /**
+     * Recorded Changes
+     */
+    @Value
+    static class Changes {
+        List<Credential> upserted;
+        List<Credential> deleted;
+        List<StoredKey> deletedKeys;
+
+        boolean isEmpty() {
+            return upserted.isEmpty() && deleted.isEmpty() && deletedKeys.isEmpty();
+        }
+    }
+
+    /**
+     * Identity provider and user id a credential is no longer stored under
+     */
+    @Value
+    static class StoredKey {
+        String identityProvider;
+        String userId;
+    }
+
+    private static String fold(String identityProvider, String userId) {
+        return (identityProvider == null ? "" : identityProvider.toLowerCase(Locale.ROOT)) + "\0" + userId.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hash index over the credentials held by the {@link CredentialManager}.
+ * <p>
+ * Credentials are indexed by their case-folded user id and by the (identity provider, user id) tuple.
+ * Credentials without a user id (e.g. app access tokens) are not indexed.
+ */
+final class CredentialIndex {
+
+    /**
+     * Credentials by case-folded user id, in insertion order (multiple identity providers may share a user id)
+     */
+    private final Map<String, List<Credential>> credentialsByUserId = new ConcurrentHashMap<>();
+
+    /**
+     * Credentials by case-folded identity provider and user id
+     */
+    private final Map<ProviderUserKey, Credential> credentialsByProviderAndUserId = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a credential to the index
+     *
+     * @param credential Credential
+     */
+    void add(@NotNull Credential credential) {
+        String userId = credential.getUserId();
+        if (userId == null) {
+            return;
+        }
+
+        credentialsByUserId.compute(fold(userId), (key, entries) -> {
+            List<Credential> list = entries != null ? entries : new CopyOnWriteArrayList<>();
+            if (list.stream().noneMatch(c -> c == credential)) {
+                list.add(credential);
+            }
+            return list;
+        });
+        credentialsByProviderAndUserId.put(ProviderUserKey.of(credential.getIdentityProvider(), userId), credential);
+    }
+
+    /**
+     * Removes a credential from the index
+     *
+     * @param credential Credential
+     * @param userId     the user id the credential was indexed with
+     */
+    void remove(@NotNull Credential credential, @Nullable String userId) {
+        if (userId == null) {
+            return;
+        }
+
+        credentialsByUserId.computeIfPresent(fold(userId), (key, entries) -> {
+            entries.removeIf(c -> c == credential);
+            return entries.isEmpty() ? null : entries;
+        });
+        credentialsByProviderAndUserId.remove(ProviderUserKey.of(credential.getIdentityProvider(), userId), credential);
+    }
+
+    /**
+     * Moves a credential to its current user id, if it differs from the one it was indexed with
+     *
+     * @param credential     Credential
+     * @param previousUserId the user id the credential was indexed with
+     */
+    void update(@NotNull Credential credential, @Nullable String previousUserId) {
+        String userId = credential.getUserId();
+        if (userId != null && userId.equalsIgnoreCase(previousUserId)) {
+            return;
+        }
+
+        remove(credential, previousUserId);
+        add(credential);
+    }
+
+    /**
+     * Gets the first OAuth2Credential with the specified user id
+     *
+     * @param userId User Id
+     * @return OAuth2Credential
+     */
+    Optional<OAuth2Credential> findOAuth2CredentialByUserId(@NotNull String userId) {
+        List<Credential> entries = credentialsByUserId.get(fold(userId));
+        if (entries != null) {
+            for (Credential entry : entries) {
+                if (entry instanceof OAuth2Credential) {
+                    return Optional.of((OAuth2Credential) entry);
+                }
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Gets the credential for the specified identity provider and user id
+     *
+     * @param identityProvider Identity Provider Name
+     * @param userId           User Id
+     * @return Credential
+     */
+    Optional<Credential> findCredential(@Nullable String identityProvider, @NotNull String userId) {
+        return Optional.ofNullable(credentialsByProviderAndUserId.get(ProviderUserKey.of(identityProvider, userId)));
+    }
+
+    private static String fold(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Composite index key
+     */
+    @Value
+    private static class ProviderUserKey {
+        String identityProvider;
+        String userId;
+
+        static ProviderUserKey of(@Nullable String identityProvider, @NotNull String userId) {
+            return new ProviderUserKey(identityProvider != null ? fold(identityProvider) : "", fold(userId));
+        }
+    }
+}
@@ -3,15 +3,20 @@ package com.github.philippheuer.credentialmanager;
 import com.github.philippheuer.credentialmanager.api.IStorageBackend;
 import com.github.philippheuer.credentialmanager.domain.AuthenticationController;
 import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.FlushStatistics;
 import com.github.philippheuer.credentialmanager.domain.IdentityProvider;
 import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
 import com.github.philippheuer.credentialmanager.identityprovider.OAuth2IdentityProvider;
+import com.github.philippheuer.credentialmanager.identityprovider.SharedHttpClient;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Synchronized;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -26,7 +33,7 @@ import java.util.stream.Collectors;
  */
 @Getter
 @Slf4j
-public class CredentialManager {
+public class CredentialManager implements Closeable {
 
     /**
      * Storage Backend
@@ -47,7 +54,54 @@ public class CredentialManager {
     /**
      * In-Memory Credential Storage
      */
-    private List<Credential> credentials;
+    @Getter(AccessLevel.NONE)
+    private final CredentialStore credentialStore = new CredentialStore();
+
+    /**
+     * Changes that haven't been persisted yet
+     */
+    @Getter(AccessLevel.NONE)
+    private final CredentialChangeSet pendingChanges = new CredentialChangeSet();
+
+    /**
+     * Whether the next write has to replace all stored credentials, because {@link #save()} was deferred
+     */
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean fullSaveRequested = new AtomicBoolean();
+
+    /**
+     * Reports in-place updates of the managed OAuth2 credentials, see {@link OAuth2Credential#updateCredential(OAuth2Credential)}
+     */
+    @Getter(AccessLevel.NONE)
+    private final OAuth2Credential.UpdateListener updateListener = this::onCredentialUpdate;
+
+    /**
+     * Set while external modifications are merged into the managed credentials, which must not be reported as local changes
+     */
+    @Getter(AccessLevel.NONE)
+    private final ThreadLocal<Boolean> applyingStorageChanges = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Proactive Token Refresher (opt-in)
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile CredentialRefresher credentialRefresher;
+
+    /**
+     * Write-Behind Persistence (opt-in)
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile CredentialWriteBehind writeBehind;
+
+    /**
+     * HTTP client handed to registered OAuth2 identity providers, null to keep their own
+     */
+    private volatile SharedHttpClient sharedHttpClient;
+
+    /**
+     * Interval of the keep-warm requests of identity providers registered with prewarmed connections, null to only connect once
+     */
+    private volatile Duration connectionKeepWarmInterval = null;
 
     /**
      * Creates a new CredentialManager
@@ -60,6 +114,9 @@ public class CredentialManager {
         this.authenticationController = authenticationController;
         authenticationController.setCredentialManager(this);
 
+        // pick up modifications made by other processes, if the storage backend detects them
+        storageBackend.setChangeListener(this::applyStorageChanges);
+
         // load credentials
         this.load();
     }
@@ -71,6 +128,21 @@ public class CredentialManager {
      * @throws RuntimeException if there was another provider registered with the same name, but different class representation
      */
     public void registerIdentityProvider(IdentityProvider identityProvider) {
+        registerIdentityProvider(identityProvider, false);
+    }
+
+    /**
+     * Registers a new Identity Provider
+     * <p>
+     * With prewarmed connections, OAuth2 identity providers connect to their endpoints in the background, and only keep the
+     * connections warm if a {@link #setConnectionKeepWarmInterval(Duration) keep-warm interval} was set,
+     * see {@link OAuth2IdentityProvider#prewarmConnections(Duration)}.
+     *
+     * @param identityProvider   Identity Provider
+     * @param prewarmConnections whether to connect to the endpoints of the provider ahead of the first request
+     * @throws RuntimeException if there was another provider registered with the same name, but different class representation
+     */
+    public void registerIdentityProvider(IdentityProvider identityProvider, boolean prewarmConnections) {
         log.debug("Trying to register IdentityProvider {} [Type: {}]", identityProvider.getProviderName(), identityProvider.getProviderType());
 
         String lowerName = identityProvider.getProviderName().toLowerCase();
@@ -90,10 +162,42 @@ public class CredentialManager {
         }
 
         identityProvider.setCredentialManager(this);
+        SharedHttpClient sharedHttpClient = this.sharedHttpClient;
+        if (sharedHttpClient != null && identityProvider instanceof OAuth2IdentityProvider) {
+            ((OAuth2IdentityProvider) identityProvider).useHttpClient(sharedHttpClient);
+        }
+        if (prewarmConnections && identityProvider instanceof OAuth2IdentityProvider) {
+            ((OAuth2IdentityProvider) identityProvider).prewarmConnections(this.connectionKeepWarmInterval).thenAccept(warmupTime ->
+                log.debug("Prewarmed the connections of IdentityProvider {} in {}ms", identityProvider.getProviderName(), warmupTime.toMillis())
+            );
+        }
         log.debug("Registered IdentityProvider {} [Type: {}]", identityProvider.getProviderName(), identityProvider.getProviderType());
         log.debug("A total of {} IdentityProviders have been registered!", this.identityProvidersByLowerName.size());
     }
 
+    /**
+     * Shares one HTTP client between all OAuth2 identity providers, including those that are already registered
+     *
+     * @param sharedHttpClient Shared HTTP Client
+     */
+    public void useHttpClient(@NotNull SharedHttpClient sharedHttpClient) {
+        this.sharedHttpClient = sharedHttpClient;
+        for (IdentityProvider identityProvider : identityProvidersByLowerName.values()) {
+            if (identityProvider instanceof OAuth2IdentityProvider) {
+                ((OAuth2IdentityProvider) identityProvider).useHttpClient(sharedHttpClient);
+            }
+        }
+    }
+
+    /**
+     * Sets the interval of the keep-warm requests of identity providers that are registered with prewarmed connections
+     *
+     * @param connectionKeepWarmInterval the interval, null to only connect once
+     */
+    public void setConnectionKeepWarmInterval(@Nullable Duration connectionKeepWarmInterval) {
+        this.connectionKeepWarmInterval = connectionKeepWarmInterval;
+    }
+
     /**
      * Get all registered identity providers
      *
@@ -137,6 +241,8 @@ public class CredentialManager {
 
     /**
      * Adds a Credential
+     * <p>
+     * A previously added credential with the same identity provider and user id is replaced.
      *
      * @param providerName Provider Name
      * @param credential   Credential
@@ -157,7 +263,105 @@ public class CredentialManager {
             }
         }
 
-        this.credentials.add(credential);
+        Optional<Credential> replaced = this.credentialStore.add(credential);
+        if (replaced.isPresent()) {
+            this.cancelRefresh(replaced.get());
+            this.detach(replaced.get());
+            this.pendingChanges.replaced(replaced.get(), credential);
+        } else {
+            this.pendingChanges.upserted(credential);
+        }
+        this.attach(credential);
+        this.scheduleRefresh(credential);
+        this.markDirty();
+    }
+
+    /**
+     * Removes a Credential
+     *
+     * @param credential Credential
+     * @return true if the credential was present
+     */
+    public boolean removeCredential(@NotNull Credential credential) {
+        this.cancelRefresh(credential);
+        boolean removed = this.credentialStore.remove(credential);
+        if (removed) {
+            this.detach(credential);
+            this.pendingChanges.deleted(credential);
+            this.markDirty();
+        }
+        return removed;
+    }
+
+    /**
+     * Checks if a credential is managed by this CredentialManager
+     *
+     * @param credential Credential
+     * @return true if this exact credential instance was added or loaded
+     */
+    public boolean containsCredential(@NotNull Credential credential) {
+        return this.credentialStore.contains(credential);
+    }
+
+    /**
+     * Get all credentials
+     * <p>
+     * The list is a modifiable copy: adding or removing elements doesn't change the managed credentials,
+     * use {@link #addCredential(String, Credential)} and {@link #removeCredential(Credential)} instead.
+     *
+     * @return a consistent snapshot of all credentials
+     */
+    public List<Credential> getCredentials() {
+        return this.credentialStore.snapshot();
+    }
+
+    /**
+     * Notifies the CredentialManager that a managed credential was modified in place, e.g. by a token refresh
+     * <p>
+     * Only reported modifications are persisted by {@link #saveChanges()}. Updates of OAuth2 credentials through
+     * {@link OAuth2Credential#updateCredential(OAuth2Credential)} are reported automatically, other in-place modifications
+     * have to be reported through this method.
+     *
+     * @param credential     Credential
+     * @param previousUserId the user id of the credential before the modification
+     */
+    public void credentialUpdated(@NotNull Credential credential, @Nullable String previousUserId) {
+        if (!this.credentialStore.contains(credential)) {
+            return;
+        }
+
+        this.credentialStore.reindex(credential, previousUserId);
+        if (previousUserId != null && credential.getIdentityProvider() != null && !previousUserId.equalsIgnoreCase(credential.getUserId())
+            && !this.credentialStore.findCredential(credential.getIdentityProvider(), previousUserId).isPresent()) {
+            // keyed storage backends would otherwise keep the credential under its previous user id as well
+            this.pendingChanges.rekeyed(credential, previousUserId);
+        } else {
+            this.pendingChanges.upserted(credential);
+        }
+        this.scheduleRefresh(credential);
+        this.markDirty();
+    }
+
+    /**
+     * Enables the proactive refresh of OAuth2 credentials, before they expire
+     * <p>
+     * Credentials with a refresh token and a known expiry are renewed through {@link IdentityProvider#renew(Credential)}
+     * once they are within the lead time of their expiry (or half of their lifetime, for short-lived tokens).
+     *
+     * @param leadTime     how long before the expiry a credential is renewed
+     * @param parallelism  the maximum number of concurrent refreshes
+     * @param afterRefresh invoked after a credential was renewed, e.g. to persist it
+     * @throws IllegalStateException if the proactive refresh was already enabled
+     */
+    public synchronized void enableProactiveRefresh(@NotNull Duration leadTime, int parallelism, @NotNull Consumer<OAuth2Credential> afterRefresh) {
+        if (this.credentialRefresher != null) {
+            throw new IllegalStateException("Proactive refresh was already enabled!");
+        }
+
+        CredentialRefresher refresher = new CredentialRefresher(this, leadTime, parallelism, afterRefresh);
+        this.credentialRefresher = refresher;
+        this.credentialStore.stream().forEach(refresher::schedule);
+        log.debug("Enabled proactive refresh of {} credentials [LeadTime: {}, Parallelism: {}]", refresher.size(), leadTime, parallelism);
     }
 
     /**
@@ -167,17 +371,20 @@ public class CredentialManager {
      * @return OAuth2Credential
      */
     public Optional<OAuth2Credential> getOAuth2CredentialByUserId(@NotNull String userId) {
-        for (Credential entry : this.credentials) {
-            if (entry instanceof OAuth2Credential) {
-                OAuth2Credential credential = (OAuth2Credential) entry;
-
-                if (userId.equalsIgnoreCase(credential.getUserId())) {
-                    return Optional.of(credential);
-                }
-            }
-        }
+        return this.credentialStore.findOAuth2CredentialByUserId(userId);
+    }
 
-        return Optional.empty();
+    /**
+     * Gets a OAuth2Credential by Identity Provider and UserId
+     *
+     * @param identityProviderName Identity Provider Name
+     * @param userId               User Id
+     * @return OAuth2Credential
+     */
+    public Optional<OAuth2Credential> getOAuth2CredentialByUserId(@NotNull String identityProviderName, @NotNull String userId) {
+        return this.credentialStore.findCredential(identityProviderName, userId)
+            .filter(c -> c instanceof OAuth2Credential)
+            .map(c -> (OAuth2Credential) c);
     }
 
     /**
@@ -185,14 +392,255 @@ public class CredentialManager {
      */
     @Synchronized
     public void load() {
-        this.credentials = storageBackend.loadCredentials();
+        this.credentialStore.replaceAll(storageBackend.credentialIterator());
+        this.pendingChanges.drain();
+        this.credentialStore.stream().forEach(this::attach);
+
+        CredentialRefresher refresher = this.credentialRefresher;
+        if (refresher != null) {
+            refresher.cancelAll();
+            this.credentialStore.stream().forEach(refresher::schedule);
+        }
     }
 
     /**
-     * Persist the Credentials into the Storage Backend
+     * Enables write-behind persistence
+     * <p>
+     * Added, removed and refreshed credentials mark the CredentialManager as dirty, and neither {@link #save()} nor
+     * {@link #saveChanges()} write right away.
+     * Changes are coalesced into a single write once the delay after the first change has passed,
+     * or as soon as the number of pending changes reaches the threshold. Pending changes are flushed on {@link #close()}.
+     *
+     * @param delay             delay between the first change and the write
+     * @param maxPendingChanges number of pending changes that triggers an immediate write
+     * @throws IllegalStateException if write-behind persistence was already enabled
+     */
+    public synchronized void enableWriteBehind(@NotNull Duration delay, int maxPendingChanges) {
+        if (this.writeBehind != null) {
+            throw new IllegalStateException("Write-behind persistence was already enabled!");
+        }
+
+        this.writeBehind = new CredentialWriteBehind(this::persist, delay, maxPendingChanges);
+        log.debug("Enabled write-behind persistence [Delay: {}, MaxPendingChanges: {}]", delay, maxPendingChanges);
+    }
+
+    /**
+     * Get the write-behind persistence counters
+     *
+     * @return the flush statistics, or empty if write-behind persistence isn't enabled
+     */
+    public Optional<FlushStatistics> getFlushStatistics() {
+        return Optional.ofNullable(this.writeBehind).map(CredentialWriteBehind::getStatistics);
+    }
+
+    /**
+     * Persist all Credentials into the Storage Backend, replacing the stored credentials
+     * <p>
+     * This includes credentials that were modified in place without being reported through
+     * {@link #credentialUpdated(Credential, String)}, use {@link #saveChanges()} to only write the reported changes.
+     * With write-behind persistence enabled, the write is deferred and coalesced with other changes.
      */
-    @Synchronized
     public void save() {
-        this.storageBackend.saveCredentials(credentials);
+        CredentialWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            this.fullSaveRequested.set(true);
+            writeBehind.markDirty();
+        } else {
+            this.persistAll();
+        }
+    }
+
+    /**
+     * Persist the changed Credentials into the Storage Backend
+     * <p>
+     * Only the credentials that were added, removed, updated through {@link OAuth2Credential#updateCredential(OAuth2Credential)}
+     * or reported through {@link #credentialUpdated(Credential, String)} since the last write are handed to the fine-grained operations of the storage backend, credentials that were modified
+     * in place without being reported are not written.
+     * With write-behind persistence enabled, the write is deferred and coalesced with other changes.
+     */
+    public void saveChanges() {
+        CredentialWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.markDirty();
+        } else {
+            this.persist();
+        }
+    }
+
+    /**
+     * Persist the Credentials into the Storage Backend right away, including pending write-behind changes
+     */
+    public void flush() {
+        CredentialWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.flushNow();
+        } else {
+            this.persist();
+        }
+    }
+
+    @Synchronized
+    private void persistAll() {
+        CredentialChangeSet.Changes changes = this.pendingChanges.drain();
+        try {
+            this.storageBackend.saveCredentials(this.credentialStore.snapshot());
+        } catch (RuntimeException e) {
+            this.pendingChanges.restore(changes);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the pending changes, or all credentials if a full save was requested since the last write
+     */
+    @Synchronized
+    private void persist() {
+        if (this.fullSaveRequested.getAndSet(false)) {
+            try {
+                this.persistAll();
+            } catch (RuntimeException e) {
+                this.fullSaveRequested.set(true);
+                throw e;
+            }
+            return;
+        }
+
+        CredentialChangeSet.Changes changes = this.pendingChanges.drain();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        try {
+            changes.getDeletedKeys().forEach(key -> this.storageBackend.delete(key.getIdentityProvider(), key.getUserId()));
+            changes.getDeleted().forEach(this.storageBackend::delete);
+            this.storageBackend.upsertAll(changes.getUpserted());
+        } catch (RuntimeException e) {
+            this.pendingChanges.restore(changes);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the proactive refresh and the keep-warm requests of the identity providers, and flushes pending write-behind changes, if enabled
+     */
+    @Override
+    public void close() {
+        for (IdentityProvider identityProvider : identityProvidersByLowerName.values()) {
+            if (identityProvider instanceof OAuth2IdentityProvider) {
+                ((OAuth2IdentityProvider) identityProvider).stopConnectionWarming();
+            }
+        }
+
+        CredentialRefresher refresher = this.credentialRefresher;
+        if (refresher != null) {
+            refresher.close();
+        }
+
+        CredentialWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    /**
+     * Applies credentials that were modified outside of this process, without marking them for persistence
+     * <p>
+     * Changes are merged into the managed instances, so holders of those instances (e.g. an identity provider in the middle
+     * of a refresh) keep working on the managed credential. Credentials with unpersisted local changes are left as they are,
+     * the next write replaces the external modification.
+     */
+    private void applyStorageChanges(List<Credential> upserted, List<Credential> deleted) {
+        int skipped = 0;
+        for (Credential credential : deleted) {
+            if (credential.getUserId() == null) {
+                continue;
+            }
+            if (this.pendingChanges.isPending(credential.getIdentityProvider(), credential.getUserId())) {
+                skipped++;
+                continue;
+            }
+            this.credentialStore.findCredential(credential.getIdentityProvider(), credential.getUserId()).ifPresent(existing -> {
+                this.cancelRefresh(existing);
+                this.credentialStore.remove(existing);
+                this.detach(existing);
+            });
+        }
+
+        for (Credential credential : upserted) {
+            if (credential.getUserId() == null) {
+                continue;
+            }
+            if (this.pendingChanges.isPending(credential.getIdentityProvider(), credential.getUserId())) {
+                skipped++;
+                continue;
+            }
+
+            Optional<Credential> existing = this.credentialStore.findCredential(credential.getIdentityProvider(), credential.getUserId());
+            if (existing.isPresent() && existing.get() instanceof OAuth2Credential && credential instanceof OAuth2Credential) {
+                OAuth2Credential managed = (OAuth2Credential) existing.get();
+                String previousUserId = managed.getUserId();
+                this.applyingStorageChanges.set(true);
+                try {
+                    managed.updateCredential((OAuth2Credential) credential);
+                } finally {
+                    this.applyingStorageChanges.set(false);
+                }
+                this.credentialStore.reindex(managed, previousUserId);
+                this.scheduleRefresh(managed);
+            } else {
+                this.credentialStore.add(credential).ifPresent(replaced -> {
+                    this.cancelRefresh(replaced);
+                    this.detach(replaced);
+                });
+                this.attach(credential);
+                this.scheduleRefresh(credential);
+            }
+        }
+        log.debug("Applied {} changed and {} deleted credentials from the storage backend [Skipped: {}]", upserted.size(), deleted.size(), skipped);
+    }
+
+    /**
+     * Reports an update of a managed credential through {@link OAuth2Credential#updateCredential(OAuth2Credential)}
+     */
+    private void onCredentialUpdate(OAuth2Credential credential, String previousUserId) {
+        if (!this.applyingStorageChanges.get()) {
+            this.credentialUpdated(credential, previousUserId);
+        }
+    }
+
+    private void attach(Credential credential) {
+        if (credential instanceof OAuth2Credential) {
+            ((OAuth2Credential) credential).setUpdateListener(this.updateListener);
+        }
+    }
+
+    /**
+     * Removes the update listener of a credential that is no longer managed, unless another CredentialManager took it over
+     */
+    private void detach(Credential credential) {
+        if (credential instanceof OAuth2Credential && ((OAuth2Credential) credential).getUpdateListener() == this.updateListener) {
+            ((OAuth2Credential) credential).setUpdateListener(null);
+        }
+    }
+
+    private void markDirty() {
+        CredentialWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.markDirty();
+        }
+    }
+
+    private void scheduleRefresh(Credential credential) {
+        CredentialRefresher refresher = this.credentialRefresher;
+        if (refresher != null) {
+            refresher.schedule(credential);
+        }
+    }
+
+    private void cancelRefresh(Credential credential) {
+        CredentialRefresher refresher = this.credentialRefresher;
+        if (refresher != null) {
+            refresher.cancel(credential);
+        }
     }
 }
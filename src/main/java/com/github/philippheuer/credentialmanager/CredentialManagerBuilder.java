@@ -3,6 +3,8 @@ package com.github.philippheuer.credentialmanager;
 import com.github.philippheuer.credentialmanager.api.IStorageBackend;
 import com.github.philippheuer.credentialmanager.authcontroller.DummyAuthController;
 import com.github.philippheuer.credentialmanager.domain.AuthenticationController;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import com.github.philippheuer.credentialmanager.identityprovider.SharedHttpClient;
 import com.github.philippheuer.credentialmanager.storage.TemporaryStorageBackend;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -10,6 +12,9 @@ import lombok.NoArgsConstructor;
 import lombok.With;
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
+import java.util.function.Consumer;
+
 /**
  * Credential Manager Builder
  */
@@ -30,6 +35,54 @@ public class CredentialManagerBuilder {
     @With
     private AuthenticationController authenticationController = new DummyAuthController();
 
+    /**
+     * Proactive Refresh: how long before their expiry credentials are renewed, null disables the proactive refresh
+     */
+    @With
+    private Duration proactiveRefreshLeadTime = null;
+
+    /**
+     * Proactive Refresh: the maximum number of concurrent refreshes
+     */
+    @With
+    private int proactiveRefreshParallelism = 2;
+
+    /**
+     * Proactive Refresh: persist the credentials after a credential was renewed
+     */
+    @With
+    private boolean persistAfterRefresh = true;
+
+    /**
+     * Proactive Refresh: invoked after a credential was renewed
+     */
+    @With
+    private Consumer<OAuth2Credential> refreshListener = null;
+
+    /**
+     * Write-Behind: delay between the first change and the write, null disables write-behind persistence
+     */
+    @With
+    private Duration writeBehindDelay = null;
+
+    /**
+     * Write-Behind: number of pending changes that triggers an immediate write
+     */
+    @With
+    private int writeBehindMaxPendingChanges = 1000;
+
+    /**
+     * HTTP client shared by all OAuth2 identity providers, null to use the default shared client
+     */
+    @With
+    private SharedHttpClient httpClient = null;
+
+    /**
+     * Interval of the keep-warm requests of identity providers registered with prewarmed connections, null to only connect once
+     */
+    @With
+    private Duration connectionKeepWarmInterval = null;
+
     /**
      * Initialize the builder
      *
@@ -46,6 +99,29 @@ public class CredentialManagerBuilder {
      */
     public CredentialManager build() {
         CredentialManager credentialManager = new CredentialManager(this.storageBackend, this.authenticationController);
+
+        if (this.httpClient != null) {
+            credentialManager.useHttpClient(this.httpClient);
+        }
+        credentialManager.setConnectionKeepWarmInterval(this.connectionKeepWarmInterval);
+
+        if (this.writeBehindDelay != null) {
+            credentialManager.enableWriteBehind(this.writeBehindDelay, this.writeBehindMaxPendingChanges);
+        }
+
+        if (this.proactiveRefreshLeadTime != null) {
+            boolean persist = this.persistAfterRefresh;
+            Consumer<OAuth2Credential> listener = this.refreshListener;
+            credentialManager.enableProactiveRefresh(this.proactiveRefreshLeadTime, this.proactiveRefreshParallelism, credential -> {
+                if (persist) {
+                    credentialManager.saveChanges();
+                }
+                if (listener != null) {
+                    listener.accept(credential);
+                }
+            });
+        }
+
         return credentialManager;
     }
 }
@@ -0,0 +1,264 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.IdentityProvider;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Proactively renews OAuth2 credentials before they expire, so refreshes don't happen on the request path.
+ * <p>
+ * Credentials are kept in a priority queue ordered by their due time ({@link OAuth2Credential#getExpiresAt()} minus the lead time).
+ * A dispatcher thread hands due credentials to a fixed number of workers, which renew them through {@link IdentityProvider#renew(Credential)}.
+ */
+@Slf4j
+final class CredentialRefresher implements Closeable {
+
+    /**
+     * Delay before a failed refresh is attempted again
+     */
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+    private final CredentialManager credentialManager;
+
+    /**
+     * How long before the expiry a credential is renewed
+     */
+    private final Duration leadTime;
+
+    /**
+     * Invoked after a credential was renewed
+     */
+    private final Consumer<OAuth2Credential> afterRefresh;
+
+    /**
+     * Scheduled refreshes, ordered by due time
+     */
+    private final DelayQueue<ScheduledRefresh> queue = new DelayQueue<>();
+
+    /**
+     * The current refresh of each credential, its only entry in the queue. Guards the queue updates
+     */
+    private final Map<OAuth2Credential, ScheduledRefresh> scheduled = new IdentityHashMap<>();
+
+    private final ExecutorService workers;
+
+    private final Thread dispatcher;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates and starts a {@link CredentialRefresher}
+     *
+     * @param credentialManager the credential manager holding the credentials
+     * @param leadTime          how long before the expiry a credential is renewed
+     * @param parallelism       the maximum number of concurrent refreshes
+     * @param afterRefresh      invoked after a credential was renewed
+     */
+    CredentialRefresher(@NotNull CredentialManager credentialManager, @NotNull Duration leadTime, int parallelism, @NotNull Consumer<OAuth2Credential> afterRefresh) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        this.credentialManager = credentialManager;
+        this.leadTime = leadTime;
+        this.afterRefresh = afterRefresh;
+        this.workers = Executors.newFixedThreadPool(parallelism, new BasicThreadFactory.Builder().namingPattern("credential-refresher-%d").daemon(true).build());
+        this.dispatcher = new BasicThreadFactory.Builder().namingPattern("credential-refresher-dispatcher").daemon(true).build().newThread(this::dispatch);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Schedules (or reschedules) the refresh of a credential, based on its current expiry
+     *
+     * @param credential Credential
+     */
+    void schedule(@NotNull Credential credential) {
+        if (closed || !(credential instanceof OAuth2Credential)) {
+            return;
+        }
+
+        OAuth2Credential oAuth2Credential = (OAuth2Credential) credential;
+        Instant dueAt = getDueAt(oAuth2Credential);
+        if (dueAt == null) {
+            cancel(oAuth2Credential);
+            return;
+        }
+
+        schedule(oAuth2Credential, dueAt);
+    }
+
+    /**
+     * Cancels the scheduled refresh of a credential
+     *
+     * @param credential Credential
+     */
+    void cancel(@NotNull Credential credential) {
+        synchronized (scheduled) {
+            ScheduledRefresh refresh = scheduled.remove(credential);
+            if (refresh != null) {
+                queue.remove(refresh);
+            }
+        }
+    }
+
+    /**
+     * Cancels all scheduled refreshes
+     */
+    void cancelAll() {
+        synchronized (scheduled) {
+            scheduled.clear();
+            queue.clear();
+        }
+    }
+
+    /**
+     * @return the number of credentials with a scheduled refresh
+     */
+    int size() {
+        synchronized (scheduled) {
+            return scheduled.size();
+        }
+    }
+
+    /**
+     * @return the number of queued refreshes
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.dispatcher.interrupt();
+        this.workers.shutdownNow();
+        this.cancelAll();
+    }
+
+    /**
+     * @return the time the credential should be renewed at, or null if it can't be renewed
+     */
+    @Nullable
+    private Instant getDueAt(OAuth2Credential credential) {
+        if (credential.getRefreshToken() == null || credential.getExpiresIn() == null || credential.getIssuedAt() == null) {
+            return null;
+        }
+
+        // avoid renewing short-lived tokens immediately after they were issued
+        Duration lifetime = Duration.ofSeconds(credential.getExpiresIn());
+        Duration lead = lifetime.compareTo(leadTime.multipliedBy(2)) < 0 ? lifetime.dividedBy(2) : leadTime;
+        return credential.getExpiresAt().minus(lead);
+    }
+
+    /**
+     * Schedules the refresh of a credential, replacing its previous entry in the queue
+     */
+    private void schedule(OAuth2Credential credential, Instant dueAt) {
+        ScheduledRefresh refresh = new ScheduledRefresh(credential, dueAt.toEpochMilli());
+        synchronized (scheduled) {
+            ScheduledRefresh previous = scheduled.put(credential, refresh);
+            if (previous != null) {
+                queue.remove(previous);
+            }
+            queue.put(refresh);
+        }
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            try {
+                ScheduledRefresh refresh = queue.take();
+                boolean current;
+                synchronized (scheduled) {
+                    current = scheduled.remove(refresh.credential, refresh);
+                }
+                if (current) {
+                    workers.execute(() -> refresh(refresh.credential));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Failed to dispatch credential refresh", e);
+            }
+        }
+    }
+
+    private void refresh(OAuth2Credential credential) {
+        if (closed || credential.getIdentityProvider() == null || !credentialManager.containsCredential(credential)) {
+            return;
+        }
+
+        Optional<IdentityProvider> identityProvider = credentialManager.getIdentityProviderByName(credential.getIdentityProvider());
+        if (!identityProvider.isPresent()) {
+            log.warn("Can't refresh credential of user {}, identity provider {} isn't registered!", credential.getUserId(), credential.getIdentityProvider());
+            return;
+        }
+
+        boolean renewed;
+        try {
+            renewed = identityProvider.get().renew(credential);
+        } catch (Exception e) {
+            log.warn("Proactive refresh of the credential of user {} failed!", credential.getUserId(), e);
+            renewed = false;
+        }
+
+        if (renewed) {
+            log.debug("Proactively refreshed the credential of user {} [IdentityProvider: {}]", credential.getUserId(), credential.getIdentityProvider());
+            try {
+                afterRefresh.accept(credential);
+            } catch (Exception e) {
+                log.error("Failed to handle the refreshed credential of user {}", credential.getUserId(), e);
+            }
+            // the update was already reported through the update listener of the credential, which may have rescheduled it
+            schedule(credential);
+        } else if (!credential.isExpired()) {
+            schedule(credential, Instant.now().plus(RETRY_DELAY));
+        } else {
+            log.warn("Giving up on the proactive refresh of the expired credential of user {} [IdentityProvider: {}]", credential.getUserId(), credential.getIdentityProvider());
+        }
+    }
+
+    /**
+     * Queue entry
+     */
+    private static final class ScheduledRefresh implements Delayed {
+        private final OAuth2Credential credential;
+        private final long dueAtMillis;
+
+        ScheduledRefresh(OAuth2Credential credential, long dueAtMillis) {
+            this.credential = credential;
+            this.dueAtMillis = dueAtMillis;
+        }
+
+        @Override
+        public long getDelay(@NotNull TimeUnit unit) {
+            return unit.convert(dueAtMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NotNull Delayed o) {
+            if (o instanceof ScheduledRefresh) {
+                return Long.compare(dueAtMillis, ((ScheduledRefresh) o).dueAtMillis);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
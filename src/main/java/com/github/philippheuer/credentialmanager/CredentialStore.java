@@ -0,0 +1,232 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Thread-safe in-memory credential collection of the {@link CredentialManager}.
+ * <p>
+ * Lookups and iteration never block. Mutations run concurrently with each other, while {@link #snapshot()} and
+ * {@link #replaceAll(Iterator)} briefly exclude them to observe or swap a consistent state.
+ * Credentials with the same identity provider and user id replace each other, keeping their original position.
+ */
+final class CredentialStore {
+
+    /**
+     * Number of lock stripes that serialize mutations for the same identity provider and user id
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Mutations hold the shared lock, snapshots and swaps hold the exclusive lock
+     */
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes mutations per identity provider and user id
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Insertion sequence
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Current state
+     */
+    private volatile State state = new State();
+
+    CredentialStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Adds a credential, replacing a different credential with the same identity provider and user id
+     *
+     * @param credential Credential
+     * @return the replaced credential, if any
+     */
+    Optional<Credential> add(@NotNull Credential credential) {
+        snapshotLock.readLock().lock();
+        try {
+            State current = this.state;
+            String userId = credential.getUserId();
+            if (userId == null) {
+                current.insert(credential, sequence.incrementAndGet());
+                return Optional.empty();
+            }
+
+            synchronized (stripe(credential.getIdentityProvider(), userId)) {
+                Credential existing = current.index.findCredential(credential.getIdentityProvider(), userId).orElse(null);
+                if (existing == credential) {
+                    return Optional.empty();
+                }
+
+                if (existing == null || !current.replace(existing, credential)) {
+                    current.insert(credential, sequence.incrementAndGet());
+                }
+                return Optional.ofNullable(existing);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a credential
+     *
+     * @param credential Credential
+     * @return true if the credential was present
+     */
+    boolean remove(@NotNull Credential credential) {
+        snapshotLock.readLock().lock();
+        try {
+            return this.state.remove(credential);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the index of a credential that was modified in place
+     *
+     * @param credential     Credential
+     * @param previousUserId the user id the credential was indexed with
+     */
+    void reindex(@NotNull Credential credential, @Nullable String previousUserId) {
+        snapshotLock.readLock().lock();
+        try {
+            State current = this.state;
+            if (current.sequenceByCredential.containsKey(new IdentityKey(credential))) {
+                current.index.update(credential, previousUserId);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically replaces all credentials
+     *
+     * @param credentials the new credentials
+     */
+    void replaceAll(@NotNull Iterator<? extends Credential> credentials) {
+        State replacement = new State();
+        credentials.forEachRemaining(c -> replacement.insert(c, sequence.incrementAndGet()));
+
+        snapshotLock.writeLock().lock();
+        try {
+            this.state = replacement;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the credentials while no mutation is in progress
+     *
+     * @return consistent, modifiable copy of all credentials in insertion order
+     */
+    List<Credential> snapshot() {
+        snapshotLock.writeLock().lock();
+        try {
+            return new ArrayList<>(this.state.credentialsBySequence.values());
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return weakly consistent stream over all credentials in insertion order
+     */
+    Stream<Credential> stream() {
+        return this.state.credentialsBySequence.values().stream();
+    }
+
+    /**
+     * @param credential Credential
+     * @return true if this exact credential instance is present
+     */
+    boolean contains(@NotNull Credential credential) {
+        return this.state.sequenceByCredential.containsKey(new IdentityKey(credential));
+    }
+
+    /**
+     * @return the number of credentials
+     */
+    int size() {
+        return this.state.sequenceByCredential.size();
+    }
+
+    Optional<OAuth2Credential> findOAuth2CredentialByUserId(@NotNull String userId) {
+        return this.state.index.findOAuth2CredentialByUserId(userId);
+    }
+
+    Optional<Credential> findCredential(@NotNull String identityProvider, @NotNull String userId) {
+        return this.state.index.findCredential(identityProvider, userId);
+    }
+
+    private Object stripe(String identityProvider, String userId) {
+        int hash = (String.valueOf(identityProvider) + '\0' + userId).toLowerCase(Locale.ROOT).hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Ordered credentials and their index
+     */
+    private static final class State {
+        private final ConcurrentNavigableMap<Long, Credential> credentialsBySequence = new ConcurrentSkipListMap<>();
+        private final Map<IdentityKey, Long> sequenceByCredential = new ConcurrentHashMap<>();
+        private final CredentialIndex index = new CredentialIndex();
+
+        void insert(Credential credential, long seq) {
+            if (sequenceByCredential.putIfAbsent(new IdentityKey(credential), seq) == null) {
+                credentialsBySequence.put(seq, credential);
+                index.add(credential);
+            }
+        }
+
+        boolean replace(Credential existing, Credential replacement) {
+            Long seq = sequenceByCredential.remove(new IdentityKey(existing));
+            if (seq == null) {
+                return false;
+            }
+
+            index.remove(existing, existing.getUserId());
+            sequenceByCredential.put(new IdentityKey(replacement), seq);
+            credentialsBySequence.put(seq, replacement);
+            index.add(replacement);
+            return true;
+        }
+
+        boolean remove(Credential credential) {
+            Long seq = sequenceByCredential.remove(new IdentityKey(credential));
+            if (seq == null) {
+                return false;
+            }
+
+            credentialsBySequence.remove(seq);
+            index.remove(credential, credential.getUserId());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.FlushStatistics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces bursts of changes into a single write to the storage backend.
+ * <p>
+ * The first change after a flush schedules the next flush after the configured delay,
+ * reaching the maximum number of pending changes flushes right away.
+ */
+@Slf4j
+final class CredentialWriteBehind implements Closeable {
+
+    /**
+     * Persists the credentials
+     */
+    private final Runnable persist;
+
+    /**
+     * Delay between the first change and the flush
+     */
+    private final Duration delay;
+
+    /**
+     * Number of pending changes that triggers an immediate flush
+     */
+    private final int maxPendingChanges;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean immediateFlushScheduled = new AtomicBoolean();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a {@link CredentialWriteBehind}
+     *
+     * @param persist           persists the credentials
+     * @param delay             delay between the first change and the flush
+     * @param maxPendingChanges number of pending changes that triggers an immediate flush
+     */
+    CredentialWriteBehind(@NotNull Runnable persist, @NotNull Duration delay, int maxPendingChanges) {
+        if (maxPendingChanges <= 0) {
+            throw new IllegalArgumentException("maxPendingChanges must be positive");
+        }
+
+        this.persist = persist;
+        this.delay = delay;
+        this.maxPendingChanges = maxPendingChanges;
+        this.executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder().namingPattern("credential-write-behind").daemon(true).build());
+        // flushes that didn't start yet are replaced by the final flush on close
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Records a change that has to be persisted
+     */
+    void markDirty() {
+        if (closed) {
+            flushNow();
+            return;
+        }
+
+        int pending = pendingChanges.incrementAndGet();
+        if (pending >= maxPendingChanges) {
+            if (immediateFlushScheduled.compareAndSet(false, true)) {
+                executor.execute(() -> {
+                    immediateFlushScheduled.set(false);
+                    flush();
+                });
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::flush, delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Persists the credentials on the calling thread, regardless of pending changes
+     */
+    void flushNow() {
+        pendingChanges.incrementAndGet();
+        flush();
+    }
+
+    /**
+     * Persists the pending changes on the calling thread
+     */
+    void flush() {
+        flushScheduled.set(false);
+        int drained = pendingChanges.getAndSet(0);
+        if (drained == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            persist.run();
+            recordFlush(System.nanoTime() - start);
+            log.debug("Flushed {} credential changes in {} ms", drained, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            failedFlushes.incrementAndGet();
+            log.error("Failed to flush {} credential changes, will retry", drained, e);
+            pendingChanges.addAndGet(drained);
+            if (!closed && flushScheduled.compareAndSet(false, true)) {
+                executor.schedule(this::flush, delay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the flush counters
+     */
+    FlushStatistics getStatistics() {
+        long count = flushes.get();
+        return new FlushStatistics(
+            pendingChanges.get(),
+            count,
+            failedFlushes.get(),
+            Duration.ofNanos(lastFlushNanos.get()),
+            Duration.ofNanos(count > 0 ? totalFlushNanos.get() / count : 0L),
+            Duration.ofNanos(maxFlushNanos.get())
+        );
+    }
+
+    /**
+     * Stops the background flushes and persists the pending changes
+     * <p>
+     * A flush that is already running is not interrupted, it either completes or puts its changes back for the final flush.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the running flush may still hold the changes, persisting waits for it
+            this.flushNow();
+            return;
+        }
+        this.flush();
+    }
+
+    private void recordFlush(long nanos) {
+        flushes.incrementAndGet();
+        totalFlushNanos.addAndGet(nanos);
+        lastFlushNanos.set(nanos);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.philippheuer.credentialmanager;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+
+/**
+ * Identity based map key, credentials are mutable and implement value equality
+ */
+final class IdentityKey {
+    private final Credential credential;
+
+    IdentityKey(Credential credential) {
+        this.credential = credential;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IdentityKey && ((IdentityKey) o).credential == this.credential;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(credential);
+    }
+}
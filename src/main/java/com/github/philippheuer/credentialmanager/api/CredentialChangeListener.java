@@ -0,0 +1,21 @@
+package com.github.philippheuer.credentialmanager.api;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+
+import java.util.List;
+
+/**
+ * Receives the credentials that were modified outside of this process, e.g. by another process sharing the storage
+ */
+@FunctionalInterface
+public interface CredentialChangeListener {
+
+    /**
+     * Invoked after the storage backend detected external modifications
+     *
+     * @param upserted credentials that were added or changed, as they are stored now
+     * @param deleted  credentials that were removed, as they were stored before
+     */
+    void onCredentialsChanged(List<Credential> upserted, List<Credential> deleted);
+
+}
@@ -0,0 +1,146 @@
+package com.github.philippheuer.credentialmanager.api;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Key-Value Store Interface
+ * <p>
+ * The minimal contract of a (distributed) key-value store the credentials can be shared through, e.g. Redis, etcd or DynamoDB.
+ * Every value carries a version that changes with each write, so concurrent writers can detect conflicts. Versions are opaque
+ * (e.g. a counter, etcd's mod_revision or a DynamoDB version attribute), they are only compared for equality and never {@link #ABSENT}.
+ * Implementations must be thread-safe.
+ */
+public interface IKeyValueStore {
+
+    /**
+     * Version of keys that don't exist
+     */
+    long ABSENT = 0L;
+
+    /**
+     * Gets a value
+     *
+     * @param key Key
+     * @return the value and its version, empty if the key doesn't exist
+     */
+    Optional<Entry> get(String key);
+
+    /**
+     * Writes a value if the stored version matches
+     *
+     * @param key             Key
+     * @param value           Value
+     * @param expectedVersion the version the value must have, or {@link #ABSENT} if the key must not exist
+     * @return the new version if the value was written, empty if the stored version didn't match
+     */
+    OptionalLong putIfVersion(String key, byte[] value, long expectedVersion);
+
+    /**
+     * Deletes a value
+     *
+     * @param key Key
+     * @return true if the key existed
+     */
+    boolean delete(String key);
+
+    /**
+     * Gets all values whose key starts with the prefix
+     *
+     * @param prefix Key Prefix
+     * @return the entries in key order
+     */
+    List<Entry> scanByPrefix(String prefix);
+
+    /**
+     * Executes multiple writes
+     * <p>
+     * The operations aren't atomic as a whole, each one succeeds or fails on its own. Stores should override this
+     * to send all operations in one round trip (e.g. pipelining).
+     *
+     * @param operations Operations
+     * @return in the order of the operations: for writes the new version, for deletes {@link #ABSENT} if the key existed, empty if the operation failed
+     */
+    default List<OptionalLong> batch(List<Operation> operations) {
+        List<OptionalLong> results = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            if (operation.getValue() != null) {
+                results.add(putIfVersion(operation.getKey(), operation.getValue(), operation.getExpectedVersion()));
+            } else {
+                results.add(delete(operation.getKey()) ? OptionalLong.of(ABSENT) : OptionalLong.empty());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stored Value
+     */
+    @Value
+    class Entry {
+
+        /**
+         * Key
+         */
+        String key;
+
+        /**
+         * Value
+         */
+        byte[] value;
+
+        /**
+         * Version, changed by every write
+         */
+        long version;
+    }
+
+    /**
+     * Write Operation of a Batch
+     */
+    @Value
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    class Operation {
+
+        /**
+         * Key
+         */
+        String key;
+
+        /**
+         * Value to write, null to delete the key
+         */
+        byte[] value;
+
+        /**
+         * Version the value must have, only checked by writes
+         */
+        long expectedVersion;
+
+        /**
+         * @param key             Key
+         * @param value           Value
+         * @param expectedVersion the version the value must have, or {@link #ABSENT} if the key must not exist
+         * @return a conditional write
+         * @see #putIfVersion(String, byte[], long)
+         */
+        public static Operation putIfVersion(String key, byte[] value, long expectedVersion) {
+            return new Operation(key, value, expectedVersion);
+        }
+
+        /**
+         * @param key Key
+         * @return a delete
+         * @see #delete(String)
+         */
+        public static Operation delete(String key) {
+            return new Operation(key, null, ABSENT);
+        }
+    }
+}
@@ -2,12 +2,19 @@ package com.github.philippheuer.credentialmanager.api;
 
 import com.github.philippheuer.credentialmanager.domain.Credential;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Storage Backend Interface
+ * <p>
+ * Only the whole-list operations have to be implemented. The fine-grained operations fall back to them by default,
+ * backends that can modify single records should override them so only the changed records are written.
  */
 public interface IStorageBackend {
 
@@ -32,4 +39,108 @@ public interface IStorageBackend {
      * @return Credential
      */
     Optional<Credential> getCredentialByUserId(String userId);
+
+    /**
+     * Inserts or replaces a Credential
+     * <p>
+     * A stored credential is replaced if it is the same instance or has the same identity provider and user id.
+     *
+     * @param credential Credential
+     */
+    default void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    /**
+     * Inserts or replaces multiple Credentials
+     *
+     * @param credentials Credentials
+     * @see #upsert(Credential)
+     */
+    default void upsertAll(Collection<? extends Credential> credentials) {
+        if (credentials.isEmpty()) {
+            return;
+        }
+
+        List<Credential> merged = new ArrayList<>(loadCredentials());
+        for (Credential credential : credentials) {
+            boolean replaced = false;
+            for (int i = 0; i < merged.size(); i++) {
+                Credential stored = merged.get(i);
+                if (stored == credential || credential.matches(stored.getIdentityProvider(), stored.getUserId())) {
+                    merged.set(i, credential);
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                merged.add(credential);
+            }
+        }
+        saveCredentials(merged);
+    }
+
+    /**
+     * Deletes a Credential
+     *
+     * @param identityProvider Identity Provider
+     * @param userId           User Id
+     * @return true if a credential was deleted
+     */
+    default boolean delete(String identityProvider, String userId) {
+        List<Credential> remaining = new ArrayList<>(loadCredentials());
+        if (remaining.removeIf(c -> c.matches(identityProvider, userId))) {
+            saveCredentials(remaining);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes a Credential
+     * <p>
+     * A stored credential is deleted if it is the same instance or has the same identity provider and user id.
+     *
+     * @param credential Credential
+     * @return true if a credential was deleted
+     */
+    default boolean delete(Credential credential) {
+        List<Credential> remaining = new ArrayList<>(loadCredentials());
+        if (remaining.removeIf(c -> c == credential || credential.matches(c.getIdentityProvider(), c.getUserId()))) {
+            saveCredentials(remaining);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets all Credentials of an Identity Provider
+     *
+     * @param identityProvider Identity Provider
+     * @return Credentials
+     */
+    default List<Credential> findByProvider(String identityProvider) {
+        return loadCredentials().stream()
+            .filter(c -> identityProvider.equalsIgnoreCase(c.getIdentityProvider()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Registers the listener for modifications made outside of this process
+     * <p>
+     * Backends that can't detect external modifications ignore the listener.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    default void setChangeListener(CredentialChangeListener listener) {
+    }
+
+    /**
+     * Iterates over all Credentials, without requiring the backend to materialize them at once
+     *
+     * @return Iterator
+     */
+    default Iterator<Credential> credentialIterator() {
+        return loadCredentials().iterator();
+    }
 }
@@ -0,0 +1,41 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import com.github.philippheuer.credentialmanager.identityprovider.CircuitBreaker;
+import lombok.Value;
+
+/**
+ * State and counters of the {@link CircuitBreaker} of an identity provider
+ */
+@Value
+public class CircuitBreakerStatistics {
+
+    /**
+     * Current state
+     */
+    CircuitBreaker.State state;
+
+    /**
+     * Number of failures since the last success
+     */
+    int consecutiveFailures;
+
+    /**
+     * Number of successful requests
+     */
+    long successes;
+
+    /**
+     * Number of failed requests
+     */
+    long failures;
+
+    /**
+     * Number of requests that failed fast, as the breaker was open
+     */
+    long rejected;
+
+    /**
+     * Number of times the breaker opened
+     */
+    long opened;
+}
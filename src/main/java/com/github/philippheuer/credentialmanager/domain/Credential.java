@@ -25,4 +25,16 @@ public abstract class Credential {
         this.identityProvider = identityProvider;
         this.userId = userId;
     }
+
+    /**
+     * Checks if this credential belongs to the specified identity provider and user
+     *
+     * @param identityProvider Identity Provider
+     * @param userId           User Id
+     * @return true if both match (case-insensitive), false if either user id is unknown
+     */
+    public boolean matches(String identityProvider, String userId) {
+        return this.userId != null && this.userId.equalsIgnoreCase(userId)
+            && this.identityProvider != null && this.identityProvider.equalsIgnoreCase(identityProvider);
+    }
 }
@@ -0,0 +1,42 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * Write-behind persistence counters of the {@link com.github.philippheuer.credentialmanager.CredentialManager}
+ */
+@Value
+public class FlushStatistics {
+
+    /**
+     * Number of changes that have not been persisted yet
+     */
+    int pendingChanges;
+
+    /**
+     * Number of completed flushes
+     */
+    long flushes;
+
+    /**
+     * Number of failed flushes
+     */
+    long failedFlushes;
+
+    /**
+     * Duration of the most recent flush
+     */
+    Duration lastFlushDuration;
+
+    /**
+     * Average duration of the completed flushes
+     */
+    Duration averageFlushDuration;
+
+    /**
+     * Longest duration of a completed flush
+     */
+    Duration maxFlushDuration;
+}
@@ -0,0 +1,52 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import lombok.Value;
+
+/**
+ * Connection pool and dispatcher counters of the {@link com.github.philippheuer.credentialmanager.identityprovider.SharedHttpClient}
+ */
+@Value
+public class HttpClientStatistics {
+
+    /**
+     * Number of open connections in the pool
+     */
+    int connections;
+
+    /**
+     * Number of open connections that are idle
+     */
+    int idleConnections;
+
+    /**
+     * Number of requests that are executing
+     */
+    int runningCalls;
+
+    /**
+     * Number of asynchronous requests that wait for the per-host or total limit
+     */
+    int queuedCalls;
+
+    /**
+     * Number of connections that were established
+     */
+    long connectionsOpened;
+
+    /**
+     * Number of connections that failed to establish
+     */
+    long connectFailures;
+
+    /**
+     * Number of times a request acquired a connection, new or reused from the pool
+     */
+    long connectionsAcquired;
+
+    /**
+     * @return the share of acquired connections that were reused from the pool
+     */
+    public double getReuseRatio() {
+        return connectionsAcquired == 0 ? 0.0 : Math.max(0, connectionsAcquired - connectionsOpened) / (double) connectionsAcquired;
+    }
+}
@@ -44,6 +44,10 @@ public class IdentityProvider {
 
     /**
      * renews a credential
+     * <p>
+     * Implementations update the credential in place. Updates through {@link OAuth2Credential#updateCredential(OAuth2Credential)}
+     * are reported to the CredentialManager managing the credential, other modifications have to be reported through
+     * CredentialManager#credentialUpdated to be persisted.
      *
      * @param credential Credential
      * @return true on successful refresh
@@ -71,6 +71,13 @@ public class OAuth2Credential extends Credential {
      */
     private Map<String, Object> context;
 
+    /**
+     * Notified after {@link #updateCredential(OAuth2Credential)} modified this credential
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private transient volatile UpdateListener updateListener;
+
     /**
      * Constructor
      *
@@ -164,6 +171,7 @@ public class OAuth2Credential extends Credential {
      * @param newCredential the OAuth2Credential with additional information
      */
     public void updateCredential(OAuth2Credential newCredential) {
+        String previousUserId = this.userId;
         if (newCredential.accessToken != null) {
             this.accessToken = newCredential.accessToken;
         }
@@ -190,6 +198,30 @@ public class OAuth2Credential extends Credential {
         if (newCredential.issuedAt != null) {
             this.issuedAt = newCredential.issuedAt;
         }
+
+        UpdateListener listener = this.updateListener;
+        if (listener != null) {
+            listener.credentialUpdated(this, previousUserId);
+        }
+    }
+
+    /**
+     * @return the listener notified by {@link #updateCredential(OAuth2Credential)}, null if there is none
+     */
+    @JsonIgnore
+    public UpdateListener getUpdateListener() {
+        return updateListener;
+    }
+
+    /**
+     * Sets the listener notified by {@link #updateCredential(OAuth2Credential)}, e.g. by the CredentialManager managing
+     * this credential to keep its index by user id consistent
+     *
+     * @param updateListener the listener, or null to remove it
+     */
+    @JsonIgnore
+    public void setUpdateListener(UpdateListener updateListener) {
+        this.updateListener = updateListener;
     }
 
     /**
@@ -245,4 +277,20 @@ public class OAuth2Credential extends Credential {
     public boolean isExpired() {
         return Instant.now().isAfter(getExpiresAt());
     }
+
+    /**
+     * Listener for in-place updates of a credential
+     */
+    @FunctionalInterface
+    public interface UpdateListener {
+
+        /**
+         * Invoked after the credential was updated in place
+         *
+         * @param credential     the updated credential
+         * @param previousUserId the user id of the credential before the update
+         */
+        void credentialUpdated(OAuth2Credential credential, String previousUserId);
+
+    }
 }
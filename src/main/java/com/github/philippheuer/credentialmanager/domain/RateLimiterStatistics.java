@@ -0,0 +1,40 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import lombok.Value;
+
+/**
+ * Counters of the {@link com.github.philippheuer.credentialmanager.identityprovider.RateLimiter} of a client id
+ */
+@Value
+public class RateLimiterStatistics {
+
+    /**
+     * Number of permits that can be acquired without waiting
+     */
+    int availablePermits;
+
+    /**
+     * Number of interactive requests waiting for a permit
+     */
+    int waitingInteractive;
+
+    /**
+     * Number of background requests waiting for a permit
+     */
+    int waitingBackground;
+
+    /**
+     * Number of permits that were handed out
+     */
+    long acquired;
+
+    /**
+     * Number of permits that were handed out after waiting
+     */
+    long delayed;
+
+    /**
+     * Number of failed {@code tryAcquire} calls
+     */
+    long rejected;
+}
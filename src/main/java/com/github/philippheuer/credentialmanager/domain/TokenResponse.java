@@ -0,0 +1,122 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import com.github.philippheuer.credentialmanager.util.TokenResponseUtil;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The successful response of a token endpoint.
+ * <p>
+ * Also accepts common deviations from the RFC: {@code expires_in} as a string and {@code scope} as an array (like Twitch).
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc6749#section-5.1">RFC 6749, Section 5.1</a>
+ */
+@Data
+@Setter(AccessLevel.PRIVATE)
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonNaming(PropertyNamingStrategies.SnakeCaseStrategy.class)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TokenResponse {
+
+    /**
+     * The access token.
+     */
+    private String accessToken;
+
+    /**
+     * The type of the access token, e.g. bearer.
+     */
+    @Nullable
+    private String tokenType;
+
+    /**
+     * The refresh token, if one was issued.
+     */
+    @Nullable
+    private String refreshToken;
+
+    /**
+     * The lifetime in seconds of the access token.
+     */
+    @Nullable
+    @JsonDeserialize(using = ExpiresInDeserializer.class)
+    private Integer expiresIn;
+
+    /**
+     * The granted scopes.
+     */
+    @Nullable
+    @JsonDeserialize(using = ScopeDeserializer.class)
+    private List<String> scope;
+
+    /**
+     * Creates a credential from the token response
+     *
+     * @param identityProvider Identity Provider
+     * @return OAuth2Credential
+     */
+    public OAuth2Credential toCredential(String identityProvider) {
+        return new OAuth2Credential(identityProvider, accessToken, refreshToken, null, null, expiresIn, scope);
+    }
+
+    /**
+     * Reads expires_in from a number, or a string (not rfc compliant, but seen in the wild)
+     */
+    static class ExpiresInDeserializer extends JsonDeserializer<Integer> {
+        @Override
+        public Integer deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                return p.getIntValue();
+            }
+            if (p.currentToken() == JsonToken.VALUE_STRING) {
+                return TokenResponseUtil.parseExpiresIn(p.getText());
+            }
+            throw new IllegalArgumentException("Unsupported expires_in type: " + p.currentToken());
+        }
+    }
+
+    /**
+     * Reads the scopes from a space-delimited string, or an array (not rfc compliant, like Twitch's implementation)
+     */
+    static class ScopeDeserializer extends JsonDeserializer<List<String>> {
+        @Override
+        public List<String> deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            List<String> scopes = new ArrayList<>();
+            if (p.currentToken() == JsonToken.VALUE_STRING) {
+                for (String scope : p.getText().split(" ")) {
+                    if (!scope.isEmpty()) {
+                        scopes.add(scope);
+                    }
+                }
+            } else if (p.currentToken() == JsonToken.START_ARRAY) {
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    if (p.currentToken() == JsonToken.VALUE_STRING) {
+                        scopes.add(p.getText());
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else {
+                ctxt.handleUnexpectedToken(List.class, p);
+            }
+            return scopes;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.philippheuer.credentialmanager.domain;
+
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * Connection prewarming counters of an {@link com.github.philippheuer.credentialmanager.identityprovider.OAuth2IdentityProvider}
+ */
+@Value
+public class WarmupStatistics {
+
+    /**
+     * Number of distinct hosts of the auth, token and device endpoints
+     */
+    int hosts;
+
+    /**
+     * Time until the connections to all hosts were established, null while the warmup is in progress
+     */
+    Duration warmupTime;
+
+    /**
+     * Number of hosts that could not be connected to during the warmup
+     */
+    int failedHosts;
+
+    /**
+     * Number of keep-warm requests that were sent after the warmup
+     */
+    long keepWarmRequests;
+
+    /**
+     * Number of keep-warm requests that failed
+     */
+    long failedKeepWarmRequests;
+}
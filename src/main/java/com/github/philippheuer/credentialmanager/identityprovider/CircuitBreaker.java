@@ -0,0 +1,220 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.CircuitBreakerStatistics;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Circuit breaker of the token endpoint of an identity provider
+ * <p>
+ * After a number of consecutive failures the breaker opens and requests fail fast, so a failing endpoint isn't kept busy
+ * by retries and callers don't pile up waiting for timeouts. Once the open duration has passed, a single probe request
+ * is let through (half-open): it closes the breaker if it succeeds and opens it again if it fails.
+ * <p>
+ * Every permission belongs to the state it was granted in. Outcomes of requests that were granted before the last state
+ * change are counted, but don't change the state, so a late success of a request sent before the breaker opened doesn't
+ * close it again.
+ */
+@Slf4j
+public final class CircuitBreaker {
+
+    /**
+     * Returned by {@link #tryAcquire()} if the request must fail fast
+     */
+    public static final long REJECTED = -1;
+
+    /**
+     * Breaker State
+     */
+    public enum State {
+        /**
+         * Requests are sent
+         */
+        CLOSED,
+
+        /**
+         * Requests fail fast
+         */
+        OPEN,
+
+        /**
+         * A single probe request is sent
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+
+    /**
+     * Incremented with every state change, identifies the permissions granted in the current state
+     */
+    private long generation;
+
+    private long openedAtNanos;
+
+    /**
+     * Whether the probe of the half-open breaker is in flight
+     */
+    private boolean probing;
+
+    private int consecutiveFailures;
+
+    private long successes;
+
+    private long failures;
+
+    private long rejected;
+
+    private long opened;
+
+    /**
+     * Creates a {@link CircuitBreaker} that opens after 5 consecutive failures for 30 seconds
+     */
+    public CircuitBreaker() {
+        this(5, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Creates a {@link CircuitBreaker}
+     *
+     * @param failureThreshold number of consecutive failures that open the breaker
+     * @param openDuration     how long the breaker stays open before a probe is let through
+     */
+    public CircuitBreaker(int failureThreshold, @NotNull Duration openDuration) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Asks for permission to send a request, every granted permission must be followed by
+     * {@link #onSuccess(long)}, {@link #onFailure(long)} or {@link #release(long)}
+     *
+     * @return the permission, or {@link #REJECTED} if the request must fail fast
+     */
+    public synchronized long tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.nanoTime() - openedAtNanos < openNanos) {
+                    rejected++;
+                    return REJECTED;
+                }
+                transition(State.HALF_OPEN);
+                probing = true;
+                return generation;
+            case HALF_OPEN:
+                if (probing) {
+                    rejected++;
+                    return REJECTED;
+                }
+                probing = true;
+                return generation;
+            default:
+                return generation;
+        }
+    }
+
+    /**
+     * Checks whether a request would be let through, without asking for permission, e.g. before waiting for other resources
+     * <p>
+     * A request that fails fast because of the check counts as rejected.
+     *
+     * @return false if the request must fail fast
+     */
+    public synchronized boolean isCallPermitted() {
+        boolean permitted;
+        switch (state) {
+            case OPEN:
+                permitted = System.nanoTime() - openedAtNanos >= openNanos;
+                break;
+            case HALF_OPEN:
+                permitted = !probing;
+                break;
+            default:
+                permitted = true;
+        }
+
+        if (!permitted) {
+            rejected++;
+        }
+        return permitted;
+    }
+
+    /**
+     * Records a successful request, closing the breaker
+     *
+     * @param permit the permission of the request
+     */
+    public synchronized void onSuccess(long permit) {
+        successes++;
+        if (permit != generation) {
+            return;
+        }
+
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            log.info("Circuit breaker closed, the token endpoint recovered");
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * Records a failed request, opening the breaker once the threshold is reached or if the probe failed
+     *
+     * @param permit the permission of the request
+     */
+    public synchronized void onFailure(long permit) {
+        failures++;
+        if (permit != generation) {
+            return;
+        }
+
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            log.warn("Circuit breaker opened after {} consecutive failures", consecutiveFailures);
+            transition(State.OPEN);
+            openedAtNanos = System.nanoTime();
+            opened++;
+        }
+    }
+
+    /**
+     * Gives back a permission without an outcome, e.g. because the request was cancelled or failed unexpectedly
+     *
+     * @param permit the permission of the request
+     */
+    public synchronized void release(long permit) {
+        if (permit == generation) {
+            probing = false;
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the current state and counters
+     */
+    public synchronized CircuitBreakerStatistics getStatistics() {
+        return new CircuitBreakerStatistics(state, consecutiveFailures, successes, failures, rejected, opened);
+    }
+
+    private void transition(State next) {
+        state = next;
+        probing = false;
+        generation++;
+    }
+}
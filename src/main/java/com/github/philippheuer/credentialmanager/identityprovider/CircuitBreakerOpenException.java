@@ -0,0 +1,27 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker of the identity provider is open
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the identity provider
+     */
+    @Getter
+    private final String providerName;
+
+    /**
+     * @param providerName Name of the identity provider
+     */
+    public CircuitBreakerOpenException(String providerName) {
+        super("Circuit breaker of identity provider " + providerName + " is open, the token endpoint is failing");
+        this.providerName = providerName;
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.WarmupStatistics;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Establishes the connections to the endpoints of an identity provider ahead of the first request, and keeps them warm
+ * <p>
+ * OkHttp has no explicit pre-connect, so a HEAD request is sent to the root of every distinct host: it resolves the
+ * host, connects and completes the TLS handshake, and leaves the connection in the pool. The status of the response
+ * doesn't matter. At the keep-warm interval, the HEAD requests are repeated if the connection pool holds fewer connections
+ * than there are hosts. The pool only reports its total, so with a client shared by several providers the connections of
+ * other providers may suppress a keep-warm round.
+ */
+@Slf4j
+final class ConnectionWarmer implements Closeable {
+
+    /**
+     * Sends the keep-warm requests, the requests themselves run on the dispatcher
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("oauth2-connection-warmer").daemon(true).build());
+
+    /**
+     * The current client of the identity provider
+     */
+    private final Supplier<OkHttpClient> httpClient;
+
+    /**
+     * Roots of the distinct hosts
+     */
+    private final List<HttpUrl> hosts;
+
+    private final AtomicInteger failedHosts = new AtomicInteger();
+
+    private final AtomicLong keepWarmRequests = new AtomicLong();
+
+    private final AtomicLong failedKeepWarmRequests = new AtomicLong();
+
+    private volatile Duration warmupTime;
+
+    private ScheduledFuture<?> keepWarm;
+
+    private boolean closed;
+
+    /**
+     * @param httpClient supplies the current client of the identity provider
+     * @param urls       endpoint urls, null and invalid urls are skipped
+     */
+    ConnectionWarmer(@NotNull Supplier<OkHttpClient> httpClient, @NotNull Collection<String> urls) {
+        this.httpClient = httpClient;
+
+        Set<HttpUrl> roots = new LinkedHashSet<>();
+        for (String url : urls) {
+            HttpUrl parsed = url == null ? null : HttpUrl.parse(url);
+            if (parsed != null) {
+                roots.add(parsed.newBuilder().encodedPath("/").query(null).fragment(null).build());
+            }
+        }
+        this.hosts = new ArrayList<>(roots);
+    }
+
+    /**
+     * Connects to all hosts, then keeps the connections warm
+     *
+     * @param keepWarmInterval interval of the keep-warm requests, null to only warm up once
+     * @return future of the warmup time, completed once all hosts were connected to or failed
+     */
+    CompletableFuture<Duration> start(@Nullable Duration keepWarmInterval) {
+        long start = System.nanoTime();
+        List<CompletableFuture<Boolean>> requests = new ArrayList<>(hosts.size());
+        for (HttpUrl host : hosts) {
+            requests.add(head(host));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            for (CompletableFuture<Boolean> request : requests) {
+                if (!request.join()) {
+                    failedHosts.incrementAndGet();
+                }
+            }
+            this.warmupTime = elapsed;
+            log.debug("Warmed up the connections to {} hosts in {}ms [Failed: {}]", hosts.size(), elapsed.toMillis(), failedHosts.get());
+
+            if (keepWarmInterval != null && !hosts.isEmpty()) {
+                synchronized (this) {
+                    if (!closed) {
+                        long millis = keepWarmInterval.toMillis();
+                        keepWarm = SCHEDULER.scheduleWithFixedDelay(this::keepWarm, millis, millis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+            return elapsed;
+        });
+    }
+
+    /**
+     * @return the warmup counters
+     */
+    WarmupStatistics getStatistics() {
+        return new WarmupStatistics(hosts.size(), warmupTime, failedHosts.get(), keepWarmRequests.get(), failedKeepWarmRequests.get());
+    }
+
+    /**
+     * Stops the keep-warm requests
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (keepWarm != null) {
+            keepWarm.cancel(false);
+        }
+    }
+
+    private void keepWarm() {
+        // OkHttp only exposes the total of the pool, not the connections per host
+        if (httpClient.get().connectionPool().connectionCount() >= hosts.size()) {
+            return;
+        }
+
+        for (HttpUrl host : hosts) {
+            keepWarmRequests.incrementAndGet();
+            head(host).thenAccept(success -> {
+                if (!success) {
+                    failedKeepWarmRequests.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return future of whether a response was received
+     */
+    private CompletableFuture<Boolean> head(HttpUrl host) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Request request = new Request.Builder().url(host).head().build();
+        httpClient.get().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                log.debug("Failed to connect to {}: {}", host, e.toString());
+                future.complete(false);
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                response.close();
+                future.complete(true);
+            }
+        });
+        return future;
+    }
+}
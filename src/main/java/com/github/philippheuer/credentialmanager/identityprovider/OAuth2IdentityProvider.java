@@ -1,18 +1,24 @@
 package com.github.philippheuer.credentialmanager.identityprovider;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.philippheuer.credentialmanager.util.TokenResponseUtil;
 import lombok.extern.slf4j.Slf4j;
+import com.github.philippheuer.credentialmanager.domain.CircuitBreakerStatistics;
 import com.github.philippheuer.credentialmanager.domain.Credential;
 import com.github.philippheuer.credentialmanager.domain.DeviceAuthorization;
 import com.github.philippheuer.credentialmanager.domain.DeviceFlowError;
 import com.github.philippheuer.credentialmanager.domain.DeviceTokenResponse;
 import com.github.philippheuer.credentialmanager.domain.IdentityProvider;
 import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import com.github.philippheuer.credentialmanager.domain.RateLimiterStatistics;
+import com.github.philippheuer.credentialmanager.domain.WarmupStatistics;
 import com.github.philippheuer.credentialmanager.util.ProxyHelper;
+import com.github.philippheuer.credentialmanager.util.SingleFlight;
+import lombok.Setter;
 import lombok.SneakyThrows;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.FormBody;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
@@ -22,12 +28,19 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.exception.ContextedRuntimeException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.Proxy;
 import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
@@ -35,8 +48,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 /**
@@ -45,7 +66,27 @@ import java.util.stream.Collectors;
 @Slf4j
 public abstract class OAuth2IdentityProvider extends IdentityProvider {
     protected static final ObjectMapper OBJECTMAPPER = new ObjectMapper();
-    protected OkHttpClient httpClient = new OkHttpClient();
+
+    /**
+     * Delays the retries of asynchronous requests, the retries themselves run on the dispatcher
+     */
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("oauth2-retry-scheduler").daemon(true).build());
+
+    /**
+     * Client of this provider, derived from the base client of a {@link SharedHttpClient} once one is applied with
+     * {@link #useHttpClient(SharedHttpClient)}, so the connection pool and dispatcher are shared
+     */
+    protected volatile OkHttpClient httpClient = new OkHttpClient();
+
+    /**
+     * HTTP Proxy, reapplied when the base client changes
+     */
+    private Proxy proxy;
+
+    /**
+     * Whether the logging interceptor is enabled, reapplied when the base client changes
+     */
+    private boolean loggingInterceptor;
 
     /**
      * OAuth Client Id
@@ -101,6 +142,52 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      */
     protected String deviceFlowScopeParamName = "scope";
 
+    /**
+     * Coalesces concurrent refreshes of the same refresh token
+     */
+    private final SingleFlight<String, OAuth2Credential> refreshFlight = new SingleFlight<>();
+
+    /**
+     * App access tokens are renewed once they are within this margin of their expiry (or half of their lifetime, for short-lived tokens)
+     */
+    @Setter
+    protected Duration appAccessTokenRefreshMargin = Duration.ofMinutes(5);
+
+    /**
+     * Cached app access tokens by normalized scope
+     */
+    private final Map<String, OAuth2Credential> appAccessTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Coalesces concurrent app access token requests for the same normalized scope
+     */
+    private final SingleFlight<String, OAuth2Credential> appAccessTokenFlight = new SingleFlight<>();
+
+    /**
+     * Retries of requests that could not be executed or were throttled by the endpoint
+     */
+    @Setter
+    @NotNull
+    protected volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * Fails requests fast while the endpoints of this provider are failing
+     */
+    @Setter
+    @NotNull
+    protected volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Limits the requests to the endpoints of this provider, null if they are not limited
+     */
+    @Setter
+    protected volatile RateLimiter rateLimiter;
+
+    /**
+     * Connects to the endpoints ahead of the first request, null if the connections are not prewarmed
+     */
+    private volatile ConnectionWarmer connectionWarmer;
+
     /**
      * Constructor
      *
@@ -157,6 +244,8 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
         this.deviceUrl = deviceUrl;
         this.redirectUrl = redirectUrl;
 
+        this.proxy = proxy;
+
         if (proxy != null) {
             httpClient = httpClient.newBuilder().proxy(proxy).build();
         }
@@ -165,10 +254,61 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
     /**
      * enables a logging interceptor to investigate issues
      */
-    public void enableLoggingInterceptor() {
-        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
-        logging.setLevel(HttpLoggingInterceptor.Level.BODY);
-        httpClient = httpClient.newBuilder().addInterceptor(logging).build();
+    public synchronized void enableLoggingInterceptor() {
+        loggingInterceptor = true;
+        httpClient = httpClient.newBuilder().addInterceptor(createLoggingInterceptor()).build();
+    }
+
+    /**
+     * Uses the connection pool and dispatcher of a shared client, keeping the proxy and logging interceptor of this provider
+     *
+     * @param sharedHttpClient Shared HTTP Client
+     */
+    public synchronized void useHttpClient(@NotNull SharedHttpClient sharedHttpClient) {
+        OkHttpClient.Builder builder = sharedHttpClient.getHttpClient().newBuilder();
+        if (proxy != null) {
+            builder.proxy(proxy);
+        }
+        if (loggingInterceptor) {
+            builder.addInterceptor(createLoggingInterceptor());
+        }
+        httpClient = builder.build();
+    }
+
+    /**
+     * Resolves and connects to the hosts of the token, device and auth endpoints in the background, so the first request
+     * doesn't pay for the DNS lookup, TCP connect and TLS handshake
+     * <p>
+     * Afterwards, the connection pool is checked at the keep-warm interval, and a lightweight HEAD request is sent to every
+     * host once the pool no longer holds enough connections, e.g. after they were closed by the endpoint or evicted.
+     * Prewarming again stops the keep-warm requests of the previous warmup.
+     *
+     * @param keepWarmInterval interval of the keep-warm requests, null to only connect once
+     * @return future of the warmup time, completed once all hosts were connected to or failed
+     */
+    public synchronized CompletableFuture<Duration> prewarmConnections(@Nullable Duration keepWarmInterval) {
+        stopConnectionWarming();
+        ConnectionWarmer warmer = new ConnectionWarmer(() -> httpClient, Arrays.asList(tokenUrl, deviceUrl, authUrl));
+        this.connectionWarmer = warmer;
+        return warmer.start(keepWarmInterval);
+    }
+
+    /**
+     * Stops the keep-warm requests, the connections are closed once they are idle for the keep-alive of the connection pool
+     */
+    public synchronized void stopConnectionWarming() {
+        ConnectionWarmer warmer = this.connectionWarmer;
+        if (warmer != null) {
+            warmer.close();
+        }
+    }
+
+    /**
+     * @return counters of the connection prewarming, including the warmup time, empty if the connections were not prewarmed
+     */
+    public Optional<WarmupStatistics> getWarmupStatistics() {
+        ConnectionWarmer warmer = this.connectionWarmer;
+        return warmer == null ? Optional.empty() : Optional.of(warmer.getStatistics());
     }
 
     /**
@@ -211,29 +351,47 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      * @see <a href="https://datatracker.ietf.org/doc/html/rfc8628#section-3.1">RFC 8628, Section 3.1 and 3.2</a>
      */
     public DeviceAuthorization createDeviceFlowRequest(Collection<Object> scopes) {
+        try {
+            return execute(getDeviceFlowRequest(scopes), RequestPriority.INTERACTIVE, true, this::handleDeviceFlowResponse);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #createDeviceFlowRequest(Collection)}.
+     *
+     * @param scopes Requested scopes
+     * @return future of the object with the verification uri and code, completed exceptionally with an
+     * {@link IOException} if the request could not be executed or a {@link ContextedRuntimeException} if it failed.
+     */
+    public CompletableFuture<DeviceAuthorization> createDeviceFlowRequestAsync(Collection<Object> scopes) {
+        return executeAsync(getDeviceFlowRequest(scopes), RequestPriority.INTERACTIVE, true, this::handleDeviceFlowResponse);
+    }
+
+    private Request getDeviceFlowRequest(Collection<Object> scopes) {
         FormBody.Builder requestBody = new FormBody.Builder();
         requestBody.add("client_id", this.clientId);
         if (scopes != null && !scopes.isEmpty()) {
             requestBody.add(this.deviceFlowScopeParamName,
                     scopes.stream().map(Object::toString).collect(Collectors.joining(" ")));
         }
-        Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(this.deviceUrl)
                 .post(requestBody.build())
                 .build();
-        try (Response response = httpClient.newCall(request).execute()) {
-            String responseBody = response.body() != null ? response.body().string() : null;
-            if (response.isSuccessful()) {
-                return OBJECTMAPPER.readValue(responseBody, DeviceAuthorization.class);
-            } else {
-                throw new ContextedRuntimeException("createDeviceFlowRequest failed!")
-                        .addContextValue("requestUrl", request.url())
-                        .addContextValue("requestBody", request.body())
-                        .addContextValue("responseCode", response.code())
-                        .addContextValue("responseBody", responseBody);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    }
+
+    private DeviceAuthorization handleDeviceFlowResponse(Request request, Response response) throws IOException {
+        String responseBody = response.body() != null ? response.body().string() : null;
+        if (response.isSuccessful()) {
+            return OBJECTMAPPER.readValue(responseBody, DeviceAuthorization.class);
+        } else {
+            throw new ContextedRuntimeException("createDeviceFlowRequest failed!")
+                    .addContextValue("requestUrl", request.url())
+                    .addContextValue("requestBody", request.body())
+                    .addContextValue("responseCode", response.code())
+                    .addContextValue("responseBody", responseBody);
         }
     }
 
@@ -251,54 +409,56 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      * @see <a href="https://datatracker.ietf.org/doc/html/rfc8628#section-3.4">RFC 8628, Section 3.4 and 3.5</a>
      */
     public DeviceTokenResponse getDeviceAccessToken(String deviceCode) {
+        try {
+            return execute(getDeviceTokenRequest(deviceCode), RequestPriority.INTERACTIVE, true, this::handleDeviceTokenResponse);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #getDeviceAccessToken(String)}.
+     *
+     * @param deviceCode {@link DeviceAuthorization#getDeviceCode()} from {@link #createDeviceFlowRequest(Collection)}
+     * @return future of the {@link DeviceTokenResponse}, completed exceptionally with an {@link IOException} if the request
+     * could not be executed or a {@link ContextedRuntimeException} if the response body does not adhere to RFC format.
+     */
+    public CompletableFuture<DeviceTokenResponse> getDeviceAccessTokenAsync(String deviceCode) {
+        return executeAsync(getDeviceTokenRequest(deviceCode), RequestPriority.INTERACTIVE, true, this::handleDeviceTokenResponse);
+    }
+
+    private Request getDeviceTokenRequest(String deviceCode) {
         FormBody requestBody = new FormBody.Builder()
                 .add("grant_type", "urn:ietf:params:oauth:grant-type:device_code")
                 .add("device_code", deviceCode)
                 .add("client_id", this.clientId)
                 .build();
-        Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(this.tokenUrl)
                 .post(requestBody)
                 .build();
-        try (Response response = httpClient.newCall(request).execute()) {
-            JsonNode body = response.body() != null ? OBJECTMAPPER.readTree(response.body().charStream()) : null;
-            if (response.isSuccessful() && body != null) {
-                JsonNode expiry = body.get("expires_in");
-                JsonNode scope = body.get("scope");
-                List<String> scopes = new ArrayList<>(0);
-                if (scope != null) {
-                    if (scope.isTextual()) {
-                        // Auth server follows the RFC
-                        scopes.addAll(Arrays.asList(scope.textValue().split(" ")));
-                    } else if (scope.isArray()) {
-                        // Not within the RFC spec, like Twitch's implementation
-                        scope.elements().forEachRemaining(node -> {
-                            if (node.isTextual()) {
-                                scopes.add(node.textValue());
-                            }
-                        });
-                    }
-                }
-                OAuth2Credential credential = new OAuth2Credential(this.providerName, body.get("access_token").textValue(), body.get("refresh_token").textValue(), null, null, expiry.isInt() ? expiry.intValue() : null, scopes);
-                credential.getContext().put("client_id", clientId);
-                return new DeviceTokenResponse(credential, null);
-            } else {
-                // RFC labels this field as `error`, but non-standard implementations (like Twitch) may use `message`
-                JsonNode errorNode = body == null ? null : body.has("error") ? body.get("error") : body.get("message");
-                if (errorNode == null || !errorNode.isTextual()) {
-                    // unexpected response format; throw exception
-                    throw new ContextedRuntimeException("getCredentialByCode request failed!")
-                            .addContextValue("requestUrl", request.url())
-                            .addContextValue("requestHeaders", request.headers())
-                            .addContextValue("requestBody", request.body())
-                            .addContextValue("responseCode", response.code())
-                            .addContextValue("responseBody", body);
-                }
-                DeviceFlowError error = DeviceFlowError.from(errorNode.textValue());
-                return new DeviceTokenResponse(null, error);
+    }
+
+    private DeviceTokenResponse handleDeviceTokenResponse(Request request, Response response) throws IOException {
+        JsonNode body = response.body() != null ? OBJECTMAPPER.readTree(response.body().byteStream()) : null;
+        if (response.isSuccessful() && body != null) {
+            OAuth2Credential credential = TokenResponseUtil.bindTokenResponse(body).toCredential(this.providerName);
+            credential.getContext().put("client_id", clientId);
+            return new DeviceTokenResponse(credential, null);
+        } else {
+            // RFC labels this field as `error`, but non-standard implementations (like Twitch) may use `message`
+            JsonNode errorNode = body == null ? null : body.has("error") ? body.get("error") : body.get("message");
+            if (errorNode == null || !errorNode.isTextual()) {
+                // unexpected response format; throw exception
+                throw new ContextedRuntimeException("getCredentialByCode request failed!")
+                        .addContextValue("requestUrl", request.url())
+                        .addContextValue("requestHeaders", request.headers())
+                        .addContextValue("requestBody", request.body())
+                        .addContextValue("responseCode", response.code())
+                        .addContextValue("responseBody", body);
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            DeviceFlowError error = DeviceFlowError.from(errorNode.textValue());
+            return new DeviceTokenResponse(null, error);
         }
     }
 
@@ -306,6 +466,25 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      * Get Access Token
      */
     public OAuth2Credential getCredentialByCode(String code) {
+        try {
+            return execute(getCodeRequest(code), RequestPriority.INTERACTIVE, false, (request, response) -> handleTokenResponse(request, response, "getCredentialByCode request failed!"));
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #getCredentialByCode(String)}.
+     *
+     * @param code authorization code
+     * @return future of the credential, completed exceptionally with an {@link IOException} if the request
+     * could not be executed or a {@link ContextedRuntimeException} if the response is unsuccessful.
+     */
+    public CompletableFuture<OAuth2Credential> getCredentialByCodeAsync(String code) {
+        return executeAsync(getCodeRequest(code), RequestPriority.INTERACTIVE, false, (request, response) -> handleTokenResponse(request, response, "getCredentialByCode request failed!"));
+    }
+
+    private Request getCodeRequest(String code) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("client_id", this.clientId);
         parameters.put("client_secret", this.clientSecret);
@@ -313,26 +492,7 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
         parameters.put("code", code);
         parameters.put("redirect_uri", this.redirectUrl);
 
-        try {
-            Request request = getTokenRequest(parameters, Collections.emptyMap());
-
-            Response response = httpClient.newCall(request).execute();
-            String responseBody = response.body().string();
-            if (response.isSuccessful()) {
-                Map<String, Object> resultMap = OBJECTMAPPER.readValue(responseBody, new TypeReference<HashMap<String, Object>>() {});
-                return new OAuth2Credential(this.providerName, (String) resultMap.get("access_token"), (String) resultMap.get("refresh_token"), null, null, TokenResponseUtil.parseExpiresIn(resultMap.get("expires_in")), null);
-            } else {
-                throw new ContextedRuntimeException("getCredentialByCode request failed!")
-                        .addContextValue("requestUrl", request.url())
-                        .addContextValue("requestHeaders", request.headers())
-                        .addContextValue("requestBody", request.body())
-                        .addContextValue("responseCode", response.code())
-                        .addContextValue("responseBody", responseBody);
-            }
-
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
+        return getTokenRequest(parameters, Collections.emptyMap());
     }
 
     /**
@@ -346,6 +506,27 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      * Get Access Token
      */
     public OAuth2Credential getScopedCredentialByUsernameAndPassword(String username, String password, String scope) {
+        try {
+            return execute(getPasswordRequest(username, password, scope), RequestPriority.INTERACTIVE, false, (request, response) -> handleTokenResponse(request, response, "get credential request failed!"));
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #getScopedCredentialByUsernameAndPassword(String, String, String)}.
+     *
+     * @param username username
+     * @param password password
+     * @param scope    requested scopes
+     * @return future of the credential, completed exceptionally with an {@link IOException} if the request
+     * could not be executed or a {@link ContextedRuntimeException} if the response is unsuccessful.
+     */
+    public CompletableFuture<OAuth2Credential> getScopedCredentialByUsernameAndPasswordAsync(String username, String password, String scope) {
+        return executeAsync(getPasswordRequest(username, password, scope), RequestPriority.INTERACTIVE, false, (request, response) -> handleTokenResponse(request, response, "get credential request failed!"));
+    }
+
+    private Request getPasswordRequest(String username, String password, String scope) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("grant_type", "password");
         parameters.put("username", username);
@@ -357,39 +538,32 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
         Map<String, String> headers = new HashMap<>();
         headers.put("Authorization", "Basic " + Base64.getEncoder().encodeToString((clientId + ":" + clientSecret).getBytes()));
 
-        try {
-            Request request = getTokenRequest(parameters, headers);
-            try (Response response = httpClient.newCall(request).execute()) {
-                String responseBody = response.body().string();
-                if (response.isSuccessful()) {
-                    Map<String, Object> resultMap = OBJECTMAPPER.readValue(responseBody, new TypeReference<HashMap<String, Object>>() {});
-                    return new OAuth2Credential(this.providerName, (String) resultMap.get("access_token"), (String) resultMap.get("refresh_token"), null, null, TokenResponseUtil.parseExpiresIn(resultMap.get("expires_in")), null);
-                } else {
-                    throw new ContextedRuntimeException("get credential request failed!")
-                            .addContextValue("requestUrl", request.url())
-                            .addContextValue("requestHeaders", request.headers())
-                            .addContextValue("requestBody", request.body())
-                            .addContextValue("responseCode", response.code())
-                            .addContextValue("responseBody", responseBody);
-                }
-            }
-
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
+        return getTokenRequest(parameters, headers);
     }
 
     /**
      * Refresh access token using refresh token
      * <p>
      * This method will not throw an exception if the refresh fails, but will log a warning and return an empty Optional.
+     * <p>
+     * Concurrent calls for the same refresh token are coalesced into a single request, whose result is shared by all callers.
      *
      * @param oldCredential The credential to refresh
      * @return The refreshed credential, or empty if the refresh failed
      */
     public Optional<OAuth2Credential> refreshCredential(OAuth2Credential oldCredential) {
         try {
-            return Optional.of(refreshCredentialOrThrow(oldCredential));
+            if (oldCredential.getRefreshToken() == null) {
+                return Optional.of(refreshCredentialOrThrow(oldCredential));
+            }
+
+            return Optional.of(refreshFlight.execute(oldCredential.getRefreshToken(), () -> {
+                try {
+                    return refreshCredentialOrThrow(oldCredential);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
         } catch (Exception ex) {
             log.warn("refreshCredential request failed!", ex);
         }
@@ -397,6 +571,62 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
         return Optional.empty();
     }
 
+    /**
+     * Asynchronous variant of {@link #refreshCredential(OAuth2Credential)}.
+     * <p>
+     * Concurrent calls for the same refresh token are coalesced into a single request, whose result is shared by all callers.
+     *
+     * @param oldCredential The credential to refresh
+     * @return future of the refreshed credential, completed exceptionally if the refresh failed
+     * (see {@link #refreshCredentialOrThrow(OAuth2Credential)} for the possible exceptions).
+     */
+    public CompletableFuture<OAuth2Credential> refreshCredentialAsync(OAuth2Credential oldCredential) {
+        if (oldCredential.getRefreshToken() == null) {
+            CompletableFuture<OAuth2Credential> future = new CompletableFuture<>();
+            future.completeExceptionally(new UnsupportedOperationException("Attempting to refresh a credential that has no refresh token."));
+            return future;
+        }
+
+        return refreshFlight.executeAsync(oldCredential.getRefreshToken(), () -> executeAsync(getRefreshRequest(oldCredential), RequestPriority.BACKGROUND, false, this::handleRefreshResponse));
+    }
+
+    /**
+     * @return counters of the refresh requests, including the number of refreshes that were coalesced with one already in flight
+     */
+    public SingleFlight.Statistics getRefreshStatistics() {
+        return refreshFlight.getStatistics();
+    }
+
+    /**
+     * Limits the requests to the endpoints of this provider
+     * <p>
+     * Providers with the same token host and client id that set the same limit share one limiter. Setting a limit never
+     * changes the limit of other providers, a provider asking for another limit gets a limiter of its own. Providers that
+     * never called this method are not limited.
+     *
+     * @param capacity number of requests per period, also the maximum burst
+     * @param period   period the limit applies to
+     */
+    public void setRateLimit(int capacity, @NotNull Duration period) {
+        HttpUrl url = tokenUrl != null ? HttpUrl.parse(tokenUrl) : null;
+        this.rateLimiter = RateLimiter.shared(url != null ? url.host() : null, clientId, capacity, period);
+    }
+
+    /**
+     * @return counters of the rate limiter of this provider, empty if the requests are not limited
+     */
+    public Optional<RateLimiterStatistics> getRateLimiterStatistics() {
+        RateLimiter limiter = this.rateLimiter;
+        return limiter == null ? Optional.empty() : Optional.of(limiter.getStatistics());
+    }
+
+    /**
+     * @return state and counters of the circuit breaker of this provider
+     */
+    public CircuitBreakerStatistics getCircuitBreakerStatistics() {
+        return circuitBreaker.getStatistics();
+    }
+
     /**
      * Refresh access token using refresh token
      *
@@ -411,6 +641,10 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
         if (oldCredential.getRefreshToken() == null)
             throw new UnsupportedOperationException("Attempting to refresh a credential that has no refresh token.");
 
+        return execute(getRefreshRequest(oldCredential), RequestPriority.BACKGROUND, false, this::handleRefreshResponse);
+    }
+
+    private Request getRefreshRequest(OAuth2Credential oldCredential) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("client_id", this.clientId);
         parameters.put("grant_type", "refresh_token");
@@ -420,15 +654,14 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
             parameters.put("client_secret", this.clientSecret);
         }
 
-        Request request = getTokenRequest(parameters, Collections.emptyMap());
-        try (Response response = httpClient.newCall(request).execute()) {
-            String responseBody = response.body().string();
-            if (response.isSuccessful()) {
-                Map<String, Object> resultMap = OBJECTMAPPER.readValue(responseBody, new TypeReference<HashMap<String, Object>>() {});
-                return new OAuth2Credential(this.providerName, (String) resultMap.get("access_token"), (String) resultMap.get("refresh_token"), null, null, TokenResponseUtil.parseExpiresIn(resultMap.get("expires_in")), null);
-            } else {
-                throw new RuntimeException("refreshCredential request failed! " + response.code() + ": " + responseBody);
-            }
+        return getTokenRequest(parameters, Collections.emptyMap());
+    }
+
+    private OAuth2Credential handleRefreshResponse(Request request, Response response) throws IOException {
+        if (response.isSuccessful()) {
+            return parseTokenResponse(response);
+        } else {
+            throw new RuntimeException("refreshCredential request failed! " + response.code() + ": " + response.body().string());
         }
     }
 
@@ -452,6 +685,140 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
      * @throws RuntimeException If the response is unsuccessful
      */
     public OAuth2Credential getAppAccessToken(String scope) {
+        try {
+            return execute(getAppAccessTokenRequest(scope), RequestPriority.BACKGROUND, true, this::handleAppAccessTokenResponse);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #getAppAccessToken(String)}.
+     *
+     * @param scope requested scopes
+     * @return future of the credential, completed exceptionally with an {@link IOException} if the request
+     * could not be executed or a {@link RuntimeException} if the response is unsuccessful.
+     */
+    public CompletableFuture<OAuth2Credential> getAppAccessTokenAsync(String scope) {
+        return executeAsync(getAppAccessTokenRequest(scope), RequestPriority.BACKGROUND, true, this::handleAppAccessTokenResponse);
+    }
+
+    /**
+     * Get a cached Credential for server-to-server requests using the OAuth2 Client Credentials Flow.
+     * <p>
+     * Tokens are cached per normalized scope (the order and duplicates of the scopes don't matter).
+     * A missing or expired token is requested on the calling thread, concurrent callers share a single request.
+     * A token close to its expiry is returned while a replacement is requested in the background.
+     *
+     * @param scope requested scopes
+     * @return a valid app access token
+     * @throws RuntimeException If no token is cached and the token request is unsuccessful
+     * @see #invalidateAppAccessToken(OAuth2Credential)
+     */
+    public OAuth2Credential getCachedAppAccessToken(String scope) {
+        String key = normalizeScope(scope);
+        OAuth2Credential cached = appAccessTokens.get(key);
+        if (cached != null && !cached.isExpired()) {
+            if (shouldRenewAppAccessToken(cached)) {
+                renewAppAccessTokenAsync(key).whenComplete((credential, ex) -> {
+                    if (ex != null) {
+                        log.warn("Failed to renew the app access token ahead of its expiry!", ex);
+                    }
+                });
+            }
+            return cached;
+        }
+
+        return appAccessTokenFlight.execute(key, () -> {
+            OAuth2Credential credential = getAppAccessToken(key.isEmpty() ? null : key);
+            appAccessTokens.put(key, credential);
+            return credential;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getCachedAppAccessToken(String)}.
+     *
+     * @param scope requested scopes
+     * @return future of a valid app access token
+     */
+    public CompletableFuture<OAuth2Credential> getCachedAppAccessTokenAsync(String scope) {
+        String key = normalizeScope(scope);
+        OAuth2Credential cached = appAccessTokens.get(key);
+        if (cached != null && !cached.isExpired()) {
+            if (shouldRenewAppAccessToken(cached)) {
+                renewAppAccessTokenAsync(key).whenComplete((credential, ex) -> {
+                    if (ex != null) {
+                        log.warn("Failed to renew the app access token ahead of its expiry!", ex);
+                    }
+                });
+            }
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return renewAppAccessTokenAsync(key);
+    }
+
+    /**
+     * Removes a cached app access token, e.g. after it was rejected with a 401 response
+     * <p>
+     * The cache entry is only removed if it still holds the rejected token, so a token that was renewed in the meantime is kept.
+     *
+     * @param credential the rejected app access token
+     */
+    public void invalidateAppAccessToken(OAuth2Credential credential) {
+        appAccessTokens.values().removeIf(cached -> cached == credential || credential.getAccessToken() != null && Objects.equals(cached.getAccessToken(), credential.getAccessToken()));
+    }
+
+    /**
+     * Removes the cached app access token for the specified scopes
+     *
+     * @param scope requested scopes
+     */
+    public void invalidateAppAccessToken(String scope) {
+        appAccessTokens.remove(normalizeScope(scope));
+    }
+
+    /**
+     * Removes all cached app access tokens
+     */
+    public void invalidateAppAccessTokens() {
+        appAccessTokens.clear();
+    }
+
+    private CompletableFuture<OAuth2Credential> renewAppAccessTokenAsync(String key) {
+        return appAccessTokenFlight.executeAsync(key, () -> getAppAccessTokenAsync(key.isEmpty() ? null : key).thenApply(credential -> {
+            appAccessTokens.put(key, credential);
+            return credential;
+        }));
+    }
+
+    private boolean shouldRenewAppAccessToken(OAuth2Credential credential) {
+        if (credential.getExpiresIn() == null) {
+            return false;
+        }
+
+        Duration lifetime = Duration.ofSeconds(credential.getExpiresIn());
+        Duration margin = lifetime.compareTo(appAccessTokenRefreshMargin.multipliedBy(2)) < 0 ? lifetime.dividedBy(2) : appAccessTokenRefreshMargin;
+        return Instant.now().plus(margin).isAfter(credential.getExpiresAt());
+    }
+
+    /**
+     * @param scope requested scopes
+     * @return the distinct scopes in natural order, joined by the scope separator
+     */
+    private String normalizeScope(String scope) {
+        if (StringUtils.isBlank(scope)) {
+            return "";
+        }
+
+        return Arrays.stream(StringUtils.split(scope, " " + scopeSeparator))
+                .distinct()
+                .sorted()
+                .collect(Collectors.joining(scopeSeparator));
+    }
+
+    private Request getAppAccessTokenRequest(String scope) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("client_id", this.clientId);
         parameters.put("client_secret", this.clientSecret);
@@ -460,23 +827,156 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
             parameters.put("scope", scope);
         }
 
-        try {
-            Request request = getTokenRequest(parameters, Collections.emptyMap());
-            try (Response response = httpClient.newCall(request).execute()) {
-                String responseBody = response.body().string();
-                if (response.isSuccessful()) {
-                    Map<String, Object> resultMap = OBJECTMAPPER.readValue(responseBody, new TypeReference<HashMap<String, Object>>() {});
-                    return new OAuth2Credential(this.providerName, (String) resultMap.get("access_token"), (String) resultMap.get("refresh_token"), null, null, TokenResponseUtil.parseExpiresIn(resultMap.get("expires_in")), null);
-                } else {
-                    throw new RuntimeException("getCredentialByClientCredentials request failed! " + response.code() + ": " + responseBody);
+        return getTokenRequest(parameters, Collections.emptyMap());
+    }
+
+    private OAuth2Credential handleAppAccessTokenResponse(Request request, Response response) throws IOException {
+        if (response.isSuccessful()) {
+            return parseTokenResponse(response);
+        } else {
+            throw new RuntimeException("getCredentialByClientCredentials request failed! " + response.code() + ": " + response.body().string());
+        }
+    }
+
+    private OAuth2Credential handleTokenResponse(Request request, Response response, String errorMessage) throws IOException {
+        if (response.isSuccessful()) {
+            return parseTokenResponse(response);
+        } else {
+            throw new ContextedRuntimeException(errorMessage)
+                    .addContextValue("requestUrl", request.url())
+                    .addContextValue("requestHeaders", request.headers())
+                    .addContextValue("requestBody", request.body())
+                    .addContextValue("responseCode", response.code())
+                    .addContextValue("responseBody", response.body().string());
+        }
+    }
+
+    /**
+     * Binds a successful token response, streaming from the body
+     */
+    private OAuth2Credential parseTokenResponse(Response response) throws IOException {
+        try (InputStream body = response.body().byteStream()) {
+            return TokenResponseUtil.readTokenResponse(body).toCredential(this.providerName);
+        }
+    }
+
+    /**
+     * Executes the request on the calling thread
+     * <p>
+     * Failed and throttled requests are retried according to the {@link RetryPolicy}, sleeping on the calling thread.
+     * Every attempt waits for a permit of the {@link RateLimiter}, if one is set.
+     *
+     * @param request    the request
+     * @param priority   priority of the request when waiting for the rate limiter
+     * @param idempotent whether the request can be sent multiple times, false for single-use grants like authorization codes
+     * @param handler    processes the response, which is closed afterwards
+     * @return the processed response
+     * @throws IOException if the request could not be executed, or {@link CircuitBreakerOpenException} if the breaker is open
+     */
+    private <T> T execute(Request request, RequestPriority priority, boolean idempotent, ResponseHandler<T> handler) throws IOException {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        RateLimiter rateLimiter = this.rateLimiter;
+        for (int attempt = 1; ; attempt++) {
+            if (rateLimiter != null) {
+                if (!circuitBreaker.isCallPermitted()) {
+                    // fail fast instead of waiting for a permit of the rate limiter first
+                    throw new CircuitBreakerOpenException(providerName);
+                }
+                try {
+                    rateLimiter.acquire(priority);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
                 }
             }
+            long permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.REJECTED) {
+                throw new CircuitBreakerOpenException(providerName);
+            }
 
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+            Response response;
+            boolean recorded = false;
+            try {
+                response = httpClient.newCall(request).execute();
+                recorded = true;
+            } catch (IOException e) {
+                recorded = true;
+                circuitBreaker.onFailure(permit);
+                Optional<Duration> delay = retryPolicy.isRetryable(e, idempotent) ? retryPolicy.nextDelay(attempt, null) : Optional.empty();
+                if (!delay.isPresent()) {
+                    throw e;
+                }
+                log.debug("Retrying {} in {}ms after attempt {} failed: {}", request.url().encodedPath(), delay.get().toMillis(), attempt, e.toString());
+                sleep(delay.get());
+                continue;
+            } finally {
+                if (!recorded) {
+                    circuitBreaker.release(permit);
+                }
+            }
+
+            Duration delay;
+            try (Response r = response) {
+                Optional<Duration> retryDelay = recordOutcome(circuitBreaker, permit, retryPolicy, r, idempotent, attempt);
+                if (!retryDelay.isPresent()) {
+                    return handler.handle(request, r);
+                }
+                delay = retryDelay.get();
+                log.debug("Retrying {} in {}ms after attempt {} returned {}", request.url().encodedPath(), delay.toMillis(), attempt, r.code());
+            }
+            sleep(delay);
+        }
+    }
+
+    private static void sleep(Duration delay) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the request");
         }
     }
 
+    /**
+     * Enqueues the request on the {@link okhttp3.Dispatcher} of the http client
+     * <p>
+     * Failed and throttled requests are retried according to the {@link RetryPolicy}, and every attempt waits for a permit
+     * of the {@link RateLimiter}, if one is set, without blocking a thread while waiting.
+     * Cancelling the returned future cancels the current call and any further retries.
+     *
+     * @param request    the request
+     * @param priority   priority of the request when waiting for the rate limiter
+     * @param idempotent whether the request can be sent multiple times, false for single-use grants like authorization codes
+     * @param handler    processes the response on the dispatcher thread, the response is closed afterwards
+     * @return future of the processed response, completed exceptionally with a {@link CircuitBreakerOpenException} if the breaker is open
+     */
+    private <T> CompletableFuture<T> executeAsync(Request request, RequestPriority priority, boolean idempotent, ResponseHandler<T> handler) {
+        AsyncExecution<T> execution = new AsyncExecution<>(request, priority, idempotent, handler);
+        execution.nextAttempt();
+        return execution.future;
+    }
+
+    /**
+     * Records the response in the circuit breaker before it is handled, server errors and throttling count as failures
+     *
+     * @return the delay before the request is retried, empty if the response should be handled
+     */
+    private static Optional<Duration> recordOutcome(CircuitBreaker circuitBreaker, long permit, RetryPolicy retryPolicy, Response response, boolean idempotent, int attempt) {
+        int status = response.code();
+        if (status < 500 && status != 429) {
+            circuitBreaker.onSuccess(permit);
+            return Optional.empty();
+        }
+
+        circuitBreaker.onFailure(permit);
+        Duration retryAfter = retryPolicy.honorsRetryAfter(status) ? RetryPolicy.parseRetryAfter(response.header("Retry-After")) : null;
+        if (!retryPolicy.isRetryable(status, idempotent, retryAfter)) {
+            return Optional.empty();
+        }
+        return retryPolicy.nextDelay(attempt, retryAfter);
+    }
+
     /**
      * Get Token Information
      *
@@ -539,4 +1039,158 @@ public abstract class OAuth2IdentityProvider extends IdentityProvider {
 
         return false;
     }
+
+    private static HttpLoggingInterceptor createLoggingInterceptor() {
+        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
+        logging.setLevel(HttpLoggingInterceptor.Level.BODY);
+        return logging;
+    }
+
+    /**
+     * Attempts of an asynchronous request
+     */
+    private final class AsyncExecution<T> implements Callback {
+        private final Request request;
+        private final RequestPriority priority;
+        private final boolean idempotent;
+        private final ResponseHandler<T> handler;
+        private final RetryPolicy retryPolicy = OAuth2IdentityProvider.this.retryPolicy;
+        private final CircuitBreaker circuitBreaker = OAuth2IdentityProvider.this.circuitBreaker;
+        private final RateLimiter rateLimiter = OAuth2IdentityProvider.this.rateLimiter;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        /**
+         * The call or permit request of the current attempt, cancelled with the future
+         */
+        private final AtomicReference<Object> pending = new AtomicReference<>();
+
+        private int attempt;
+
+        /**
+         * The circuit breaker permission of the current attempt
+         */
+        private long permit;
+
+        AsyncExecution(Request request, RequestPriority priority, boolean idempotent, ResponseHandler<T> handler) {
+            this.request = request;
+            this.priority = priority;
+            this.idempotent = idempotent;
+            this.handler = handler;
+            future.whenComplete((result, ex) -> {
+                if (ex instanceof CancellationException) {
+                    cancelPending();
+                }
+            });
+        }
+
+        void nextAttempt() {
+            attempt++;
+            if (rateLimiter == null) {
+                send();
+                return;
+            }
+
+            if (!circuitBreaker.isCallPermitted()) {
+                // fail fast instead of waiting for a permit of the rate limiter first
+                future.completeExceptionally(new CircuitBreakerOpenException(providerName));
+                return;
+            }
+
+            CompletableFuture<Void> rateLimit = rateLimiter.acquireAsync(priority);
+            pending.set(rateLimit);
+            if (future.isCancelled()) {
+                rateLimit.cancel(false);
+            }
+            rateLimit.whenComplete((ignored, ex) -> {
+                if (ex != null) {
+                    // also a cancellation following the cancelled future, which is already completed then
+                    future.completeExceptionally(ex);
+                } else {
+                    send();
+                }
+            });
+        }
+
+        private void send() {
+            if (future.isDone()) {
+                return;
+            }
+            permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.REJECTED) {
+                future.completeExceptionally(new CircuitBreakerOpenException(providerName));
+                return;
+            }
+
+            boolean enqueued = false;
+            try {
+                Call call = httpClient.newCall(request);
+                pending.set(call);
+                if (future.isCancelled()) {
+                    call.cancel();
+                }
+                call.enqueue(this);
+                enqueued = true;
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                if (!enqueued) {
+                    circuitBreaker.release(permit);
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e) {
+            if (call.isCanceled()) {
+                circuitBreaker.release(permit);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            circuitBreaker.onFailure(permit);
+            Optional<Duration> delay = retryPolicy.isRetryable(e, idempotent) ? retryPolicy.nextDelay(attempt, null) : Optional.empty();
+            if (delay.isPresent()) {
+                log.debug("Retrying {} in {}ms after attempt {} failed: {}", request.url().encodedPath(), delay.get().toMillis(), attempt, e.toString());
+                retry(delay.get());
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) {
+            try (Response r = response) {
+                Optional<Duration> delay = recordOutcome(circuitBreaker, permit, retryPolicy, r, idempotent, attempt);
+                if (delay.isPresent()) {
+                    log.debug("Retrying {} in {}ms after attempt {} returned {}", request.url().encodedPath(), delay.get().toMillis(), attempt, r.code());
+                    retry(delay.get());
+                    return;
+                }
+                future.complete(handler.handle(request, r));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        private void retry(Duration delay) {
+            RETRY_SCHEDULER.schedule(this::nextAttempt, delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelPending() {
+            Object current = pending.get();
+            if (current instanceof Call) {
+                ((Call) current).cancel();
+            } else if (current instanceof CompletableFuture) {
+                ((CompletableFuture<?>) current).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Processes a http response
+     */
+    @FunctionalInterface
+    private interface ResponseHandler<T> {
+        T handle(Request request, Response response) throws IOException;
+    }
 }
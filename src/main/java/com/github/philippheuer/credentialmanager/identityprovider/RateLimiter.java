@@ -0,0 +1,251 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.RateLimiterStatistics;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the requests to the token endpoint of a client id
+ * <p>
+ * Identity providers enforce their limits per client id, so providers using the same client id against the same token
+ * host with the same limit share one limiter, see {@link #shared(String, String, int, Duration)}. The bucket holds up to {@code capacity} permits and is refilled by {@code capacity}
+ * permits per period. Requests that have to wait are queued by priority: interactive requests are served before
+ * background requests, which are served in order.
+ */
+public final class RateLimiter {
+
+    /**
+     * Limiters by token host, client id and limit
+     */
+    private static final ConcurrentMap<String, RateLimiter> SHARED_LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * Hands out permits to waiting requests once the bucket was refilled
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("oauth2-rate-limiter").daemon(true).build());
+
+    private double capacity;
+
+    private double permitsPerNano;
+
+    private double permits;
+
+    private long refilledAtNanos = System.nanoTime();
+
+    private final Deque<CompletableFuture<Void>> interactive = new ArrayDeque<>();
+
+    private final Deque<CompletableFuture<Void>> background = new ArrayDeque<>();
+
+    private boolean drainScheduled;
+
+    private long acquired;
+
+    private long delayed;
+
+    private long rejected;
+
+    /**
+     * Creates a {@link RateLimiter}, which starts with a full bucket
+     *
+     * @param capacity number of permits per period, also the maximum burst
+     * @param period   period the bucket is refilled in
+     */
+    public RateLimiter(int capacity, @NotNull Duration period) {
+        setLimit(capacity, period);
+        this.permits = capacity;
+    }
+
+    /**
+     * Get the limiter shared by all identity providers using the client id against the token host with the same limit
+     * <p>
+     * The limit is part of the key, so a provider asking for another limit gets another limiter and never changes the
+     * limit of the providers already sharing one.
+     *
+     * @param tokenHost host of the token endpoint, may be null
+     * @param clientId  the client id
+     * @param capacity  number of permits per period
+     * @param period    period the bucket is refilled in
+     * @return the shared limiter
+     */
+    public static RateLimiter shared(@Nullable String tokenHost, @NotNull String clientId, int capacity, @NotNull Duration period) {
+        String key = tokenHost + "|" + clientId + "|" + capacity + "/" + period;
+        return SHARED_LIMITERS.computeIfAbsent(key, k -> new RateLimiter(capacity, period));
+    }
+
+    /**
+     * Changes the limit, permits that are available are kept up to the new capacity
+     *
+     * @param capacity number of permits per period, also the maximum burst
+     * @param period   period the bucket is refilled in
+     */
+    public void setLimit(int capacity, @NotNull Duration period) {
+        if (capacity <= 0 || period.isZero() || period.isNegative()) {
+            throw new IllegalArgumentException("capacity and period must be positive");
+        }
+
+        synchronized (this) {
+            refill();
+            this.capacity = capacity;
+            this.permitsPerNano = capacity / (double) period.toNanos();
+            this.permits = Math.min(permits, capacity);
+        }
+        drain();
+    }
+
+    /**
+     * Acquires a permit if one is available and no request of the same or a higher priority is waiting
+     *
+     * @param priority priority of the request
+     * @return true if the permit was acquired
+     */
+    public synchronized boolean tryAcquire(@NotNull RequestPriority priority) {
+        if (take(priority)) {
+            return true;
+        }
+
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Acquires a permit, waiting on the calling thread
+     *
+     * @param priority priority of the request
+     * @throws InterruptedException if the thread was interrupted while waiting, no permit is consumed then
+     */
+    public void acquire(@NotNull RequestPriority priority) throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync(priority);
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (!permit.cancel(false)) {
+                // the permit was handed out concurrently, it is consumed anyway
+                Thread.currentThread().interrupt();
+                return;
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Acquires a permit without blocking
+     * <p>
+     * Cancelling the returned future gives up the place in the queue.
+     *
+     * @param priority priority of the request
+     * @return future completed once the permit was acquired, on the thread of the limiter unless it is available immediately
+     */
+    public CompletableFuture<Void> acquireAsync(@NotNull RequestPriority priority) {
+        CompletableFuture<Void> permit;
+        synchronized (this) {
+            if (take(priority)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            permit = new CompletableFuture<>();
+            (priority == RequestPriority.INTERACTIVE ? interactive : background).addLast(permit);
+        }
+        permit.whenComplete((result, ex) -> {
+            if (ex instanceof CancellationException) {
+                synchronized (this) {
+                    interactive.remove(permit);
+                    background.remove(permit);
+                }
+            }
+        });
+        drain();
+        return permit;
+    }
+
+    /**
+     * Get the counters of the limiter
+     *
+     * @return the current statistics
+     */
+    public synchronized RateLimiterStatistics getStatistics() {
+        refill();
+        return new RateLimiterStatistics((int) permits, interactive.size(), background.size(), acquired, delayed, rejected);
+    }
+
+    /**
+     * Takes a permit unless requests of the same or a higher priority are waiting, must hold the lock
+     */
+    private boolean take(RequestPriority priority) {
+        refill();
+        boolean queued = !interactive.isEmpty() || (priority == RequestPriority.BACKGROUND && !background.isEmpty());
+        if (queued || permits < 1) {
+            return false;
+        }
+
+        permits--;
+        acquired++;
+        return true;
+    }
+
+    /**
+     * Hands out the available permits to the waiting requests, and schedules itself until the queues are empty
+     */
+    private void drain() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            refill();
+            while (permits >= 1) {
+                CompletableFuture<Void> next = interactive.isEmpty() ? background.pollFirst() : interactive.pollFirst();
+                if (next == null) {
+                    break;
+                }
+                if (next.isDone()) {
+                    continue;
+                }
+                permits--;
+                acquired++;
+                delayed++;
+                granted.add(next);
+            }
+
+            if (!drainScheduled && (!interactive.isEmpty() || !background.isEmpty())) {
+                drainScheduled = true;
+                long waitNanos = (long) Math.ceil((1 - permits) / permitsPerNano);
+                SCHEDULER.schedule(() -> {
+                    synchronized (this) {
+                        drainScheduled = false;
+                    }
+                    drain();
+                }, Math.max(1, waitNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        for (CompletableFuture<Void> permit : granted) {
+            if (!permit.complete(null)) {
+                // cancelled after it was polled, give the permit back
+                synchronized (this) {
+                    permits = Math.min(capacity, permits + 1);
+                    acquired--;
+                    delayed--;
+                }
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        permits = Math.min(capacity, permits + (now - refilledAtNanos) * permitsPerNano);
+        refilledAtNanos = now;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+/**
+ * Priority of a token endpoint request when it waits for the {@link RateLimiter}
+ */
+public enum RequestPriority {
+
+    /**
+     * A user is waiting for the request, e.g. the authorization code exchange or the device flow
+     */
+    INTERACTIVE,
+
+    /**
+     * Nobody is waiting for the request, e.g. refreshes and app access tokens
+     */
+    BACKGROUND
+}
@@ -0,0 +1,176 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import lombok.With;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries of token endpoint requests
+ * <p>
+ * Idempotent requests (e.g. client credentials or device flow polling) are retried if they could not be executed or
+ * the endpoint answered with 429, 502, 503 or 504, after an exponential backoff with jitter. A Retry-After header of a
+ * 429 or 503 response replaces the backoff; if the endpoint asks to wait longer than {@link #getMaxRetryAfter()}, the
+ * request is not retried.
+ * <p>
+ * Authorization codes and rotating refresh tokens are single-use, re-sending them after the endpoint processed them
+ * fails with {@code invalid_grant} and may revoke the issued tokens (RFC 6749, Section 4.1.2 and 10.4). Such requests
+ * are only retried if they provably never reached the endpoint: after a connect failure, or a 429 or 503 response
+ * with a Retry-After header.
+ */
+@Value
+@With
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class RetryPolicy {
+
+    /**
+     * Three attempts, starting with a backoff of 250ms
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, Duration.ofMillis(250), Duration.ofSeconds(10), 2.0, 0.5, Duration.ofSeconds(30));
+
+    /**
+     * A single attempt
+     */
+    public static final RetryPolicy NONE = DEFAULT.withMaxAttempts(1);
+
+    /**
+     * Maximum number of attempts, including the first one
+     */
+    int maxAttempts;
+
+    /**
+     * Backoff before the first retry
+     */
+    @NotNull
+    Duration initialBackoff;
+
+    /**
+     * Upper bound of the backoff
+     */
+    @NotNull
+    Duration maxBackoff;
+
+    /**
+     * Factor the backoff grows by with every retry
+     */
+    double multiplier;
+
+    /**
+     * Share of the backoff that is randomized, between 0 (none) and 1 (anywhere between zero and the full backoff)
+     */
+    double jitter;
+
+    /**
+     * Longest Retry-After that is waited for
+     */
+    @NotNull
+    Duration maxRetryAfter;
+
+    /**
+     * @param status     HTTP status code
+     * @param idempotent whether the request can be sent multiple times
+     * @param retryAfter delay requested by the endpoint, if any
+     * @return true if the request may be retried after a response with this status
+     */
+    public boolean isRetryable(int status, boolean idempotent, @Nullable Duration retryAfter) {
+        if (!idempotent) {
+            return honorsRetryAfter(status) && retryAfter != null;
+        }
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @param exception  the reason the request could not be executed
+     * @param idempotent whether the request can be sent multiple times
+     * @return true if the request may be retried after the exception
+     */
+    public boolean isRetryable(@NotNull IOException exception, boolean idempotent) {
+        return idempotent || isConnectFailure(exception);
+    }
+
+    /**
+     * @param status HTTP status code
+     * @return true if the response may carry a Retry-After header that is honored
+     */
+    public boolean honorsRetryAfter(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * Get the delay before the next attempt
+     *
+     * @param attempt    the number of the failed attempt, starting with 1
+     * @param retryAfter delay requested by the endpoint, if any
+     * @return the delay, empty if the request should not be retried
+     */
+    public Optional<Duration> nextDelay(int attempt, @Nullable Duration retryAfter) {
+        if (attempt >= maxAttempts) {
+            return Optional.empty();
+        }
+
+        if (retryAfter != null) {
+            return retryAfter.compareTo(maxRetryAfter) > 0 ? Optional.empty() : Optional.of(retryAfter);
+        }
+
+        double backoff = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() * Math.pow(multiplier, attempt - 1));
+        double jittered = backoff * (1.0 - jitter * ThreadLocalRandom.current().nextDouble());
+        return Optional.of(Duration.ofMillis((long) jittered));
+    }
+
+    /**
+     * @param exception the reason the request could not be executed
+     * @return true if the connection could not be established, so the request was never sent
+     */
+    public static boolean isConnectFailure(@NotNull IOException exception) {
+        if (exception instanceof ConnectException || exception instanceof UnknownHostException || exception instanceof NoRouteToHostException) {
+            return true;
+        }
+        // OkHttp reports connect timeouts as "Connect timed out" or "failed to connect to ..."
+        String message = exception.getMessage();
+        return exception instanceof SocketTimeoutException && message != null && message.toLowerCase(Locale.ROOT).contains("connect");
+    }
+
+    /**
+     * Parses a Retry-After header
+     *
+     * @param value the header value, either delay-seconds or an HTTP date
+     * @return the delay, or null if the value is missing or invalid
+     */
+    @Nullable
+    public static Duration parseRetryAfter(@Nullable String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        String trimmed = value.trim();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(trimmed)));
+        } catch (NumberFormatException e) {
+            // not delay-seconds, try an HTTP date
+        }
+
+        try {
+            Instant at = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration delay = Duration.between(Instant.now(), at);
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
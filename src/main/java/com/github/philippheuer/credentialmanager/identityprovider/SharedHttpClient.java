@@ -0,0 +1,193 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.HttpClientStatistics;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.With;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP client shared by the OAuth2 identity providers, so all token endpoints use one connection pool and dispatcher
+ * <p>
+ * Identity providers derive their client from it with {@link OkHttpClient#newBuilder()} to add a proxy or interceptors,
+ * which keeps the connection pool, dispatcher, timeouts and the connection counters. Providers that were not given a shared
+ * client, see {@link OAuth2IdentityProvider#useHttpClient(SharedHttpClient)}, keep a client of their own.
+ * <p>
+ * OkHttp is an implementation dependency, applications using {@link #of(OkHttpClient)} or {@link #getHttpClient()} declare it themselves.
+ */
+public final class SharedHttpClient {
+
+    /**
+     * The base client
+     */
+    @Getter
+    private final OkHttpClient httpClient;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final AtomicLong connectFailures = new AtomicLong();
+
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+
+    private SharedHttpClient(OkHttpClient.Builder builder) {
+        this.httpClient = builder.eventListener(new ConnectionCounter()).build();
+    }
+
+    /**
+     * Shares an existing client, e.g. one the application already uses for other requests
+     * <p>
+     * The event listener of the client is replaced by the connection counters.
+     *
+     * @param httpClient the client
+     * @return shared client using the connection pool and dispatcher of the client
+     */
+    public static SharedHttpClient of(@NotNull OkHttpClient httpClient) {
+        return new SharedHttpClient(httpClient.newBuilder());
+    }
+
+    /**
+     * @return builder with the default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the connection counters
+     *
+     * @return the current statistics
+     */
+    public HttpClientStatistics getStatistics() {
+        ConnectionPool pool = httpClient.connectionPool();
+        Dispatcher dispatcher = httpClient.dispatcher();
+        return new HttpClientStatistics(
+            pool.connectionCount(),
+            pool.idleConnectionCount(),
+            dispatcher.runningCallsCount(),
+            dispatcher.queuedCallsCount(),
+            connectionsOpened.get(),
+            connectFailures.get(),
+            connectionsAcquired.get()
+        );
+    }
+
+    /**
+     * Counts connection churn, shared by all clients derived from the base client
+     */
+    private final class ConnectionCounter extends EventListener {
+        @Override
+        public void connectEnd(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, Protocol protocol) {
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectFailed(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, Protocol protocol, @NotNull IOException ioe) {
+            connectFailures.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+    }
+
+    /**
+     * Shared HTTP Client Builder
+     */
+    @NoArgsConstructor(access = AccessLevel.PRIVATE)
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class Builder {
+
+        /**
+         * Maximum number of idle connections kept in the pool
+         */
+        @With
+        private int maxIdleConnections = 32;
+
+        /**
+         * How long an idle connection is kept alive
+         */
+        @With
+        private Duration keepAlive = Duration.ofMinutes(5);
+
+        /**
+         * Maximum number of concurrent asynchronous requests
+         */
+        @With
+        private int maxRequests = 256;
+
+        /**
+         * Maximum number of concurrent asynchronous requests per host
+         */
+        @With
+        private int maxRequestsPerHost = 64;
+
+        /**
+         * Connect Timeout
+         */
+        @With
+        private Duration connectTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Read Timeout
+         */
+        @With
+        private Duration readTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Write Timeout
+         */
+        @With
+        private Duration writeTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Timeout of a whole request, including redirects and retries, zero for none
+         */
+        @With
+        private Duration callTimeout = Duration.ZERO;
+
+        /**
+         * Whether HTTP/2 is negotiated with endpoints that support it, multiplexing all requests to a host over one connection
+         */
+        @With
+        private boolean http2 = true;
+
+        /**
+         * Shared HTTP Client
+         *
+         * @return SharedHttpClient
+         */
+        public SharedHttpClient build() {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(maxRequests);
+            dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+            return new SharedHttpClient(new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive.toMillis(), TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(connectTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .writeTimeout(writeTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .callTimeout(callTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1)));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crash-safe file replacement shared by the file based storage backends
+ */
+@Slf4j
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Replaces the content of a file by writing a temporary file next to it and renaming it over the target
+     *
+     * @param target  the file to replace
+     * @param content the new content
+     * @param sync    whether to flush the content and the rename to disk before returning
+     * @throws IOException if the file can't be written
+     */
+    static void write(Path target, byte[] content, boolean sync) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(content);
+                if (sync) {
+                    out.getFD().sync();
+                }
+            }
+
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (sync) {
+                syncDirectory(absolute.getParent());
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Flushes the directory entries to disk, not supported by all platforms
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.trace("Can't sync directory {}", directory, e);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.api.CredentialChangeListener;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Caches the user id lookups of a slow storage backend.
+ * <p>
+ * The cache is a segmented LRU: new entries start in a probation segment and are promoted to a protected segment when
+ * they are hit again, so a scan over many users doesn't evict the frequently used credentials. Entries expire after the
+ * time to live, or earlier when the cached token expires. Unknown users are cached as well, for a shorter time.
+ * <p>
+ * Writes go to the wrapped backend first and then invalidate the affected entries, so the cache never serves a credential
+ * older than the last write through this instance.
+ */
+public class CachingStorageBackend implements IStorageBackend {
+
+    /**
+     * Wrapped Storage Backend
+     */
+    private final IStorageBackend delegate;
+
+    private final int maximumSize;
+
+    /**
+     * Maximum number of entries in the protected segment
+     */
+    private final int protectedSize;
+
+    private final long ttlNanos;
+
+    private final long negativeTtlNanos;
+
+    /**
+     * Entries that were hit once, in access order
+     */
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Entries that were hit more than once, in access order
+     */
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Cached user ids by their case-folded form, writes invalidate all spellings
+     */
+    private final Map<String, Set<String>> spellings = new HashMap<>();
+
+    /**
+     * Incremented by every write, lookups that raced with a write are not cached
+     */
+    private long writeGeneration;
+
+    private long hits;
+
+    private long negativeHits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Creates a {@link CachingStorageBackend} holding up to 10000 users for up to 5 minutes, and unknown users for 30 seconds
+     *
+     * @param delegate the storage backend to cache
+     */
+    public CachingStorageBackend(@NotNull IStorageBackend delegate) {
+        this(delegate, 10_000, Duration.ofMinutes(5), Duration.ofSeconds(30));
+    }
+
+    /**
+     * Creates a {@link CachingStorageBackend}
+     *
+     * @param delegate    the storage backend to cache
+     * @param maximumSize maximum number of cached users
+     * @param ttl         maximum time a credential is cached, shortened to the expiry of its token
+     * @param negativeTtl time an unknown user is cached, zero to disable negative caching
+     */
+    public CachingStorageBackend(@NotNull IStorageBackend delegate, int maximumSize, @NotNull Duration ttl, @NotNull Duration negativeTtl) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+
+        this.delegate = delegate;
+        this.maximumSize = maximumSize;
+        this.protectedSize = Math.max(1, maximumSize * 4 / 5);
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+    }
+
+    @Override
+    public List<Credential> loadCredentials() {
+        return delegate.loadCredentials();
+    }
+
+    @Override
+    public void saveCredentials(List<Credential> credentials) {
+        try {
+            delegate.saveCredentials(credentials);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        if (userId == null) {
+            return delegate.getCredentialByUserId(null);
+        }
+
+        long generation;
+        synchronized (this) {
+            Entry entry = get(userId);
+            if (entry != null) {
+                if (entry.credential.isPresent()) {
+                    hits++;
+                } else {
+                    negativeHits++;
+                }
+                return entry.credential;
+            }
+            misses++;
+            generation = writeGeneration;
+        }
+
+        Optional<Credential> credential = delegate.getCredentialByUserId(userId);
+        long expiresAt = expiresAt(credential);
+
+        synchronized (this) {
+            if (generation == writeGeneration && expiresAt - System.nanoTime() > 0) {
+                put(userId, new Entry(credential, expiresAt));
+            }
+        }
+        return credential;
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        try {
+            delegate.upsert(credential);
+        } finally {
+            invalidate(Collections.singletonList(credential));
+        }
+    }
+
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        try {
+            delegate.upsertAll(credentials);
+        } finally {
+            invalidate(credentials);
+        }
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        try {
+            return delegate.delete(identityProvider, userId);
+        } finally {
+            synchronized (this) {
+                writeGeneration++;
+                invalidate(userId);
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        try {
+            return delegate.delete(credential);
+        } finally {
+            invalidate(Collections.singletonList(credential));
+        }
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        return delegate.findByProvider(identityProvider);
+    }
+
+    @Override
+    public void setChangeListener(CredentialChangeListener listener) {
+        delegate.setChangeListener((upserted, deleted) -> {
+            invalidateAll();
+            if (listener != null) {
+                listener.onCredentialsChanged(upserted, deleted);
+            }
+        });
+    }
+
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        return delegate.credentialIterator();
+    }
+
+    /**
+     * @return the cache counters
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hits, negativeHits, misses, evictions, probation.size() + protectedSegment.size());
+    }
+
+    /**
+     * Removes all cached entries
+     */
+    public synchronized void invalidateAll() {
+        writeGeneration++;
+        probation.clear();
+        protectedSegment.clear();
+        spellings.clear();
+    }
+
+    private synchronized void invalidate(Collection<? extends Credential> credentials) {
+        writeGeneration++;
+        for (Credential credential : credentials) {
+            invalidate(credential.getUserId());
+        }
+    }
+
+    private void invalidate(String userId) {
+        if (userId == null) {
+            return;
+        }
+
+        Set<String> keys = spellings.remove(userId.toLowerCase(Locale.ROOT));
+        if (keys != null) {
+            for (String key : keys) {
+                probation.remove(key);
+                protectedSegment.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Looks up an entry, promoting it to the protected segment on its second hit
+     */
+    private Entry get(String userId) {
+        Entry entry = protectedSegment.get(userId);
+        if (entry == null) {
+            entry = probation.remove(userId);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.isExpired()) {
+                promote(userId, entry);
+            }
+        }
+
+        if (entry.isExpired()) {
+            protectedSegment.remove(userId);
+            removeSpelling(userId);
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(String userId, Entry entry) {
+        if (protectedSegment.containsKey(userId)) {
+            protectedSegment.put(userId, entry);
+            return;
+        }
+
+        probation.put(userId, entry);
+        spellings.computeIfAbsent(userId.toLowerCase(Locale.ROOT), k -> new HashSet<>()).add(userId);
+        while (probation.size() + protectedSegment.size() > maximumSize) {
+            evictOldest(probation.isEmpty() ? protectedSegment : probation);
+        }
+    }
+
+    private void promote(String userId, Entry entry) {
+        protectedSegment.put(userId, entry);
+        if (protectedSegment.size() > protectedSize) {
+            // demote the least recently used protected entry, it gets another chance in probation
+            Iterator<Map.Entry<String, Entry>> iterator = protectedSegment.entrySet().iterator();
+            Map.Entry<String, Entry> oldest = iterator.next();
+            iterator.remove();
+            probation.put(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private void evictOldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = segment.entrySet().iterator();
+        String userId = iterator.next().getKey();
+        iterator.remove();
+        removeSpelling(userId);
+        evictions++;
+    }
+
+    private void removeSpelling(String userId) {
+        String folded = userId.toLowerCase(Locale.ROOT);
+        Set<String> keys = spellings.get(folded);
+        if (keys != null && keys.remove(userId) && keys.isEmpty()) {
+            spellings.remove(folded);
+        }
+    }
+
+    /**
+     * @return the System.nanoTime() at which the lookup result expires
+     */
+    private long expiresAt(Optional<Credential> credential) {
+        long now = System.nanoTime();
+        if (!credential.isPresent()) {
+            return now + negativeTtlNanos;
+        }
+
+        long ttl = ttlNanos;
+        if (credential.get() instanceof OAuth2Credential) {
+            Instant tokenExpiresAt = ((OAuth2Credential) credential.get()).getExpiresAt();
+            if (!Instant.MAX.equals(tokenExpiresAt)) {
+                ttl = Math.min(ttl, Math.max(0, Duration.between(Instant.now(), tokenExpiresAt).toNanos()));
+            }
+        }
+        return now + ttl;
+    }
+
+    /**
+     * Cached lookup result
+     */
+    private static final class Entry {
+        private final Optional<Credential> credential;
+        private final long expiresAtNanos;
+
+        Entry(Optional<Credential> credential, long expiresAtNanos) {
+            this.credential = credential;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAtNanos >= 0;
+        }
+    }
+
+    /**
+     * Cache Counters
+     */
+    @Value
+    public static class Statistics {
+
+        /**
+         * Number of lookups answered with a cached credential
+         */
+        long hits;
+
+        /**
+         * Number of lookups answered with a cached unknown user
+         */
+        long negativeHits;
+
+        /**
+         * Number of lookups that went to the wrapped backend
+         */
+        long misses;
+
+        /**
+         * Number of entries evicted to stay within the maximum size
+         */
+        long evictions;
+
+        /**
+         * Number of cached entries
+         */
+        int size;
+    }
+}
@@ -0,0 +1,437 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.api.CredentialChangeListener;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Encrypts the tokens of OAuth2 credentials before they reach the wrapped storage backend.
+ * <p>
+ * Access and refresh tokens are encrypted individually with AES-GCM, the identity provider and user id stay readable so the
+ * wrapped backend can still look credentials up. Tokens that didn't change since they were last written keep their ciphertext,
+ * so a save only encrypts the changed tokens. Loaded tokens are decrypted when they are first accessed.
+ * Tokens stored in plaintext (e.g. before the decorator was introduced) are read as they are and encrypted on the next write.
+ * <p>
+ * The ciphertext is bound to its record (identity provider, case-folded user id and token name), so a token copied into another
+ * record fails to decrypt.
+ */
+public class EncryptedStorageBackend implements IStorageBackend {
+
+    /**
+     * Ciphertext bound to the identity provider, case-folded user id and token name
+     */
+    private static final String PREFIX = "enc:v1:";
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static final String ACCESS_TOKEN = "access_token";
+
+    private static final String REFRESH_TOKEN = "refresh_token";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Wrapped Storage Backend
+     */
+    private final IStorageBackend delegate;
+
+    private final EncryptionKeyProvider keyProvider;
+
+    private volatile SecretKey key;
+
+    /**
+     * Cipher instances are expensive to look up, so every thread reuses its own
+     */
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    });
+
+    /**
+     * The stored form of the credentials that were last written
+     */
+    private StoredForms stored = new StoredForms();
+
+    /**
+     * Creates an {@link EncryptedStorageBackend}
+     *
+     * @param delegate    the storage backend holding the encrypted credentials
+     * @param keyProvider provides the AES key
+     */
+    public EncryptedStorageBackend(@NotNull IStorageBackend delegate, @NotNull EncryptionKeyProvider keyProvider) {
+        this.delegate = delegate;
+        this.keyProvider = keyProvider;
+    }
+
+    @Override
+    public List<Credential> loadCredentials() {
+        return delegate.loadCredentials().stream().map(this::decrypt).collect(Collectors.toList());
+    }
+
+    @Override
+    public void saveCredentials(List<Credential> credentials) {
+        StoredForms previous;
+        synchronized (this) {
+            previous = this.stored;
+            this.stored = new StoredForms(); // forget the credentials that are no longer stored
+        }
+
+        List<Credential> encrypted = new ArrayList<>(credentials.size());
+        for (Credential credential : credentials) {
+            encrypted.add(encrypt(credential, previous));
+        }
+        delegate.saveCredentials(encrypted);
+    }
+
+    @Override
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        return delegate.getCredentialByUserId(userId).map(this::decrypt);
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        delegate.upsert(encrypt(credential, null));
+    }
+
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        List<Credential> encrypted = new ArrayList<>(credentials.size());
+        for (Credential credential : credentials) {
+            encrypted.add(encrypt(credential, null));
+        }
+        delegate.upsertAll(encrypted);
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        synchronized (this) {
+            stored.byKey.remove(recordKey(identityProvider, userId));
+        }
+        return delegate.delete(identityProvider, userId);
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        Stored entry;
+        synchronized (this) {
+            entry = stored.remove(credential);
+        }
+        if (entry == null && credential instanceof LazyOAuth2Credential) {
+            return delegate.delete(((LazyOAuth2Credential) credential).storedCredential);
+        }
+        return delegate.delete(entry != null ? entry.credential : credential);
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        return delegate.findByProvider(identityProvider).stream().map(this::decrypt).collect(Collectors.toList());
+    }
+
+    @Override
+    public void setChangeListener(CredentialChangeListener listener) {
+        delegate.setChangeListener(listener == null ? null : (upserted, deleted) -> listener.onCredentialsChanged(
+            upserted.stream().map(this::decrypt).collect(Collectors.toList()),
+            deleted.stream().map(this::decrypt).collect(Collectors.toList())
+        ));
+    }
+
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        Iterator<Credential> iterator = delegate.credentialIterator();
+        return new Iterator<Credential>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Credential next() {
+                return decrypt(iterator.next());
+            }
+        };
+    }
+
+    /**
+     * Wraps a stored credential, its tokens are decrypted on first access
+     */
+    private Credential decrypt(Credential credential) {
+        if (!(credential instanceof OAuth2Credential)) {
+            return credential;
+        }
+
+        return new LazyOAuth2Credential((OAuth2Credential) credential);
+    }
+
+    /**
+     * Gets the stored form of a credential, reusing the ciphertext of unchanged tokens
+     *
+     * @param previous the stored forms to reuse, or null to use the current ones
+     */
+    private Credential encrypt(Credential credential, @Nullable StoredForms previous) {
+        if (!(credential instanceof OAuth2Credential)) {
+            return credential;
+        }
+
+        OAuth2Credential plain = (OAuth2Credential) credential;
+        LazyOAuth2Credential lazy = plain instanceof LazyOAuth2Credential ? (LazyOAuth2Credential) plain : null;
+        Stored entry;
+        synchronized (this) {
+            entry = previous != null ? previous.get(plain) : stored.get(plain);
+        }
+        if (entry == null && lazy != null) {
+            // the tokens of a loaded credential are unknown, only its stored instance can be reused
+            entry = new Stored(lazy.storedCredential, null, null);
+        }
+
+        // loaded tokens that didn't change are neither decrypted nor encrypted again
+        String aad = aad(plain.getIdentityProvider(), plain.getUserId());
+        String accessToken = null;
+        String accessCiphertext = lazy != null ? lazy.reusableAccessToken() : null;
+        if (accessCiphertext == null) {
+            accessToken = plain.getAccessToken();
+            if (accessToken != null) {
+                accessCiphertext = entry != null && Objects.equals(accessToken, entry.accessToken) ? entry.credential.getAccessToken() : encrypt(accessToken, aad + ACCESS_TOKEN);
+            }
+        }
+        String refreshToken = null;
+        String refreshCiphertext = lazy != null ? lazy.reusableRefreshToken() : null;
+        if (refreshCiphertext == null) {
+            refreshToken = plain.getRefreshToken();
+            if (refreshToken != null) {
+                refreshCiphertext = entry != null && Objects.equals(refreshToken, entry.refreshToken) ? entry.credential.getRefreshToken() : encrypt(refreshToken, aad + REFRESH_TOKEN);
+            }
+        }
+
+        OAuth2Credential encrypted = new OAuth2Credential(plain.getIdentityProvider(), accessCiphertext != null ? accessCiphertext : "", refreshCiphertext, plain.getUserId(), plain.getUserName(), plain.getIssuedAt(), plain.getExpiresIn(), plain.getScopes(), plain.getContext());
+        if (accessCiphertext == null) {
+            encrypted.setAccessToken(null);
+        }
+        if (entry != null && plain.getUserId() == null) {
+            // credentials without user id are matched by instance, so the stored instance has to be updated in place
+            entry.credential.updateCredential(encrypted);
+            entry.credential.setRefreshToken(encrypted.getRefreshToken());
+            encrypted = entry.credential;
+        }
+
+        synchronized (this) {
+            stored.put(plain, new Stored(encrypted, accessToken, refreshToken));
+        }
+        return encrypted;
+    }
+
+    private String encrypt(String plaintext, String aad) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.nextBytes(iv);
+
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key(), new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(aad.getBytes(StandardCharsets.UTF_8));
+            byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+            return PREFIX + Base64.getEncoder().encodeToString(ByteBuffer.allocate(IV_LENGTH + ciphertext.length).put(iv).put(ciphertext).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt credential", e);
+        }
+    }
+
+    @Nullable
+    private String decrypt(@Nullable String value, OAuth2Credential stored, String token) {
+        if (value == null || !value.startsWith(PREFIX)) {
+            return value;
+        }
+        String aad = aad(stored.getIdentityProvider(), stored.getUserId()) + token;
+
+        try {
+            byte[] data = Base64.getDecoder().decode(value.substring(PREFIX.length()));
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key(), new GCMParameterSpec(TAG_LENGTH_BITS, data, 0, IV_LENGTH));
+            cipher.updateAAD(aad.getBytes(StandardCharsets.UTF_8));
+            return new String(cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IllegalStateException("Failed to decrypt credential, was it encrypted with a different key?", e);
+        }
+    }
+
+    /**
+     * @return the additional authenticated data of the tokens of a record, followed by the token name
+     */
+    private static String aad(String identityProvider, @Nullable String userId) {
+        return identityProvider + '\0' + (userId == null ? "" : userId.toLowerCase(Locale.ROOT)) + '\0';
+    }
+
+    private static String recordKey(String identityProvider, String userId) {
+        return (identityProvider + '\0' + userId).toLowerCase(Locale.ROOT);
+    }
+
+    private SecretKey key() {
+        SecretKey current = key;
+        if (current == null) {
+            synchronized (keyProvider) {
+                current = key;
+                if (current == null) {
+                    current = key = Objects.requireNonNull(keyProvider.getKey(), "encryption key");
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Stored form of a credential
+     */
+    private static final class Stored {
+        private final OAuth2Credential credential;
+
+        /**
+         * Plaintext of the stored tokens, null if unknown because they were not decrypted
+         */
+        private final String accessToken;
+        private final String refreshToken;
+
+        Stored(OAuth2Credential credential, @Nullable String accessToken, @Nullable String refreshToken) {
+            this.credential = credential;
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+        }
+    }
+
+    /**
+     * Stored forms of the written credentials
+     * <p>
+     * Credentials with a user id are kept by their record key, so there is at most one entry per stored record however many
+     * instances of it were written. Credentials without a user id are only addressable by instance, the wrapped backend keeps
+     * every written instance as well until it is deleted or replaced by a full save.
+     */
+    private static final class StoredForms {
+        private final Map<String, Stored> byKey = new HashMap<>();
+        private final Map<Credential, Stored> byInstance = new IdentityHashMap<>();
+
+        @Nullable
+        Stored get(Credential credential) {
+            return credential.getUserId() != null ? byKey.get(recordKey(credential.getIdentityProvider(), credential.getUserId())) : byInstance.get(credential);
+        }
+
+        void put(Credential credential, Stored entry) {
+            if (credential.getUserId() != null) {
+                byKey.put(recordKey(credential.getIdentityProvider(), credential.getUserId()), entry);
+            } else {
+                byInstance.put(credential, entry);
+            }
+        }
+
+        @Nullable
+        Stored remove(Credential credential) {
+            return credential.getUserId() != null ? byKey.remove(recordKey(credential.getIdentityProvider(), credential.getUserId())) : byInstance.remove(credential);
+        }
+    }
+
+    /**
+     * Loaded credential that decrypts its tokens on first access
+     */
+    private final class LazyOAuth2Credential extends OAuth2Credential {
+
+        /**
+         * Placeholder of tokens that were not decrypted yet, compared by identity
+         */
+        @SuppressWarnings("StringOperationCanBeSimplified")
+        private final String pending = new String("");
+
+        /**
+         * The instance of the wrapped backend
+         */
+        private final OAuth2Credential storedCredential;
+
+        private final String accessCiphertext;
+        private final String refreshCiphertext;
+        private String decryptedAccessToken;
+        private String decryptedRefreshToken;
+
+        LazyOAuth2Credential(OAuth2Credential stored) {
+            super(stored.getIdentityProvider(), "", null, stored.getUserId(), stored.getUserName(), stored.getIssuedAt(), stored.getExpiresIn(), stored.getScopes(), stored.getContext());
+            this.storedCredential = stored;
+            this.accessCiphertext = stored.getAccessToken();
+            this.refreshCiphertext = stored.getRefreshToken();
+            super.setAccessToken(pending);
+            super.setRefreshToken(refreshCiphertext != null ? pending : null);
+        }
+
+        @Override
+        public synchronized String getAccessToken() {
+            if (super.getAccessToken() == pending) {
+                decryptedAccessToken = decrypt(accessCiphertext, storedCredential, ACCESS_TOKEN);
+                super.setAccessToken(decryptedAccessToken);
+            }
+            return super.getAccessToken();
+        }
+
+        @Override
+        public synchronized String getRefreshToken() {
+            if (super.getRefreshToken() == pending) {
+                decryptedRefreshToken = decrypt(refreshCiphertext, storedCredential, REFRESH_TOKEN);
+                super.setRefreshToken(decryptedRefreshToken);
+            }
+            return super.getRefreshToken();
+        }
+
+        @Override
+        public synchronized void setAccessToken(String accessToken) {
+            super.setAccessToken(accessToken);
+        }
+
+        @Override
+        public synchronized void setRefreshToken(String refreshToken) {
+            super.setRefreshToken(refreshToken);
+        }
+
+        /**
+         * @return the stored ciphertext, if the access token didn't change since it was loaded and is bound to the current record
+         */
+        @Nullable
+        synchronized String reusableAccessToken() {
+            String current = super.getAccessToken();
+            return isBound(accessCiphertext) && (current == pending || (current != null && current.equals(decryptedAccessToken))) ? accessCiphertext : null;
+        }
+
+        /**
+         * @return the stored ciphertext, if the refresh token didn't change since it was loaded and is bound to the current record
+         */
+        @Nullable
+        synchronized String reusableRefreshToken() {
+            String current = super.getRefreshToken();
+            return isBound(refreshCiphertext) && (current == pending || (current != null && current.equals(decryptedRefreshToken))) ? refreshCiphertext : null;
+        }
+
+        private boolean isBound(@Nullable String ciphertext) {
+            return ciphertext != null && ciphertext.startsWith(PREFIX) && aad(storedCredential.getIdentityProvider(), storedCredential.getUserId()).equals(aad(getIdentityProvider(), getUserId()));
+        }
+    }
+}
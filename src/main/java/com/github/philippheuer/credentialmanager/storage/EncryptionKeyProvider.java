@@ -0,0 +1,75 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Provides the AES key of the {@link EncryptedStorageBackend}
+ */
+@FunctionalInterface
+public interface EncryptionKeyProvider {
+
+    /**
+     * Gets the key, invoked once when the key is first needed
+     *
+     * @return AES key (128, 192 or 256 bit)
+     */
+    SecretKey getKey();
+
+    /**
+     * @param key raw AES key
+     * @return provider of the given key
+     */
+    static EncryptionKeyProvider of(@NotNull byte[] key) {
+        SecretKey secretKey = new SecretKeySpec(key.clone(), "AES");
+        return () -> secretKey;
+    }
+
+    /**
+     * Reads a base64 encoded key from a local file, generating a random 256 bit key if the file doesn't exist
+     * <p>
+     * Generated key files are only readable by the owner, where the file system supports POSIX permissions.
+     *
+     * @param file key file
+     * @return provider of the key in the file
+     */
+    static EncryptionKeyProvider fromFile(@NotNull Path file) {
+        return () -> {
+            try {
+                if (!Files.exists(file)) {
+                    KeyGenerator generator = KeyGenerator.getInstance("AES");
+                    generator.init(256);
+                    byte[] encoded = Base64.getEncoder().encode(generator.generateKey().getEncoded());
+                    try {
+                        try {
+                            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                        } catch (UnsupportedOperationException e) {
+                            Files.createFile(file);
+                        }
+                        Files.write(file, encoded, StandardOpenOption.TRUNCATE_EXISTING);
+                    } catch (FileAlreadyExistsException e) {
+                        // created concurrently, use the existing key
+                    }
+                }
+                return new SecretKeySpec(Base64.getDecoder().decode(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim()), "AES");
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read the encryption key from " + file, e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
@@ -1,35 +1,167 @@
 package com.github.philippheuer.credentialmanager.storage;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.CredentialChangeListener;
 import com.github.philippheuer.credentialmanager.api.IStorageBackend;
 import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
 import lombok.Locked;
 import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Stores all credentials in a single JSON file.
+ * <p>
+ * The file is streamed on load, optionally binding batches of credentials in parallel, and {@link #credentialIterator()}
+ * streams it one record at a time.
+ * Saves write to a temporary file that atomically replaces the previous file, so a crash never leaves a truncated file behind.
+ * By default the replaced file may still be in the OS page cache when a save returns, {@link StorageDurability#FSYNC} flushes it to disk.
+ * <p>
+ * Processes sharing the file coordinate through an exclusive lock on a {@code .lock} file next to it. If another process
+ * wrote the file since it was last read, a save merges record by record: changes of the other process to records that
+ * weren't changed locally are kept, and if both changed a record, the credential issued last wins.
+ * <p>
+ * With {@link #enableHotReload()}, modifications by other processes are picked up and reported to the change listener.
+ */
+@Slf4j
+public class FileStorageBackend implements IStorageBackend, Closeable {
+    /**
+     * Number of credentials bound per task when loading in parallel
+     */
+    private static final int BIND_BATCH_SIZE = 256;
+
+    /**
+     * Serializes the cross-process locking of instances within this process, as file locks are held by the whole process
+     */
+    private static final ConcurrentMap<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
 
-public class FileStorageBackend implements IStorageBackend {
     private final ObjectMapper objectMapper;
     private final File file;
+    private final Path lockFile;
+    private final Class<? extends Credential> credentialClass;
+    private final StorageDurability durability;
     private List<Credential> credentials;
 
-    @SneakyThrows
+    /**
+     * Incremented by every save, guarded by the read/write lock
+     */
+    private long version;
+
+    /**
+     * Serializes file writes
+     */
+    private final Object fileLock = new Object();
+
+    /**
+     * The version that was last written to the file, guarded by the file lock
+     */
+    private long writtenVersion;
+
+    /**
+     * Digests of the records with a user id in the file last written or read by this instance, by identity provider and user id.
+     * The base of merges, guarded by the file lock
+     */
+    private Map<String, byte[]> knownRecords;
+
+    /**
+     * Digest of the known content, to tell modifications by other processes from our own
+     */
+    private volatile byte[] knownDigest;
+
+    private volatile CredentialChangeListener changeListener;
+
+    /**
+     * Watches the directory of the file, if hot reload is enabled
+     */
+    private WatchService watchService;
+
     public <T extends Credential> FileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this(file, mapper, credentialClass, StorageDurability.NONE);
+    }
+
+    public <T extends Credential> FileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, @NotNull StorageDurability durability) {
+        this(file, mapper, credentialClass, durability, null, null);
+    }
+
+    /**
+     * Creates a {@link FileStorageBackend}
+     * <p>
+     * The file is streamed one credential at a time. Parsing the records into trees stays on the calling thread. If a binding
+     * pool is given, batches of trees are bound to credentials on it, so large files load in parallel.
+     *
+     * @param file             the file
+     * @param mapper           object mapper
+     * @param credentialClass  credential class
+     * @param durability       durability of saves
+     * @param bindingPool      pool to bind the credentials on, or null to bind them on the calling thread
+     * @param progressListener receives the loading progress, may be null
+     */
+    @SneakyThrows
+    public <T extends Credential> FileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, @NotNull StorageDurability durability, @Nullable ForkJoinPool bindingPool, @Nullable LoadProgressListener progressListener) {
         this.file = file;
+        this.lockFile = file.toPath().toAbsolutePath().resolveSibling(file.getName() + ".lock");
         this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.credentialClass = credentialClass;
+        this.durability = durability;
 
-        if (file.exists() && file.length() > 0L) {
-            List<T> creds = mapper.readValue(file, mapper.getTypeFactory().constructCollectionType(List.class, credentialClass));
-            this.credentials = new ArrayList<>(creds);
-        } else {
+        Map<String, byte[]> records = new ConcurrentHashMap<>();
+        MessageDigest fileDigest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), fileDigest)) {
+            this.credentials = read(in, file.length(), credentialClass, records, bindingPool, progressListener);
+        } catch (NoSuchFileException e) {
             this.credentials = new ArrayList<>();
         }
+        this.knownRecords = new HashMap<>(records);
+        this.knownDigest = fileDigest.digest();
     }
 
     @Override
@@ -38,19 +170,535 @@ public class FileStorageBackend implements IStorageBackend {
         return this.credentials;
     }
 
+    /**
+     * Saves the credentials
+     * <p>
+     * Records that another process changed since this instance last read the file are merged into the saved credentials,
+     * and reported to the change listener.
+     *
+     * @param credentials the credentials to store
+     */
     @Override
     @SneakyThrows
-    @Locked.Write
     public void saveCredentials(List<Credential> credentials) {
-        if (credentials != null) {
-            this.credentials = credentials;
+        long savedVersion = update(credentials);
+
+        List<Credential> upserted = new ArrayList<>();
+        List<Credential> deleted = new ArrayList<>();
+        synchronized (fileLock) {
+            if (writtenVersion >= savedVersion) {
+                return; // a concurrent save already wrote this state
+            }
+
+            // serialize before locking, so the lock is only held for reading and replacing the file
+            Snapshot snapshot = snapshot();
+            byte[] content = objectMapper.writeValueAsBytes(snapshot.getCredentials());
+            synchronized (PROCESS_LOCKS.computeIfAbsent(lockFile, k -> new Object())) {
+                try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     FileLock ignored = channel.lock()) {
+                    if (!MessageDigest.isEqual(fileDigest(), knownDigest)) {
+                        merge(snapshot.getCredentials(), upserted, deleted);
+                        snapshot = snapshot();
+                        content = objectMapper.writeValueAsBytes(snapshot.getCredentials());
+                    }
+                    write(content);
+                }
+            }
+            writtenVersion = snapshot.getVersion();
         }
 
-        objectMapper.writeValue(file, this.credentials);
+        notifyListener(upserted, deleted);
+    }
+
+    /**
+     * Streams the credentials from the file, one record at a time, instead of copying the loaded list
+     * <p>
+     * The iterator reflects the file as of the last save or reload, and closes the file once it is exhausted.
+     *
+     * @return Iterator
+     */
+    @Override
+    @SneakyThrows
+    public Iterator<Credential> credentialIterator() {
+        InputStream in;
+        try {
+            in = Files.newInputStream(file.toPath());
+        } catch (NoSuchFileException e) {
+            return Collections.emptyIterator();
+        }
+
+        try {
+            JsonParser parser = objectMapper.getFactory().createParser(in);
+            JsonToken first = parser.nextToken();
+            if (first == null) {
+                parser.close();
+                return Collections.emptyIterator(); // empty file
+            }
+            if (first != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected an array of credentials");
+            }
+            return new RecordIterator(parser, objectMapper.readerFor(credentialClass));
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
     }
 
     @Override
     public Optional<Credential> getCredentialByUserId(String userId) {
         return credentials.stream().filter(c -> Objects.equals(userId, c.getUserId())).findAny();
     }
+
+    @Override
+    public void setChangeListener(CredentialChangeListener listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Watches the file for modifications by other processes
+     * <p>
+     * Only the records that changed, by identity provider and user id, are reported to the change listener.
+     * Writes of this instance are recognized and ignored.
+     */
+    @SneakyThrows
+    public synchronized void enableHotReload() {
+        if (watchService != null) {
+            return;
+        }
+
+        Path path = file.toPath().toAbsolutePath();
+        watchService = path.getFileSystem().newWatchService();
+        path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        WatchService service = watchService;
+        new BasicThreadFactory.Builder().namingPattern("credential-file-watcher").daemon(true).build()
+            .newThread(() -> watch(service, path))
+            .start();
+    }
+
+    /**
+     * Stops watching the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    @Locked.Write
+    private long update(List<Credential> credentials) {
+        if (credentials != null) {
+            this.credentials = credentials;
+        }
+        return ++version;
+    }
+
+    @Locked.Read
+    private Snapshot snapshot() {
+        return new Snapshot(new ArrayList<>(this.credentials), version);
+    }
+
+    /**
+     * Streams the credentials of the file
+     *
+     * @param records collects the digests of the records with a user id
+     */
+    private List<Credential> read(InputStream in, long totalBytes, Class<? extends Credential> credentialClass, Map<String, byte[]> records, @Nullable ForkJoinPool bindingPool, @Nullable LoadProgressListener progressListener) throws IOException {
+        List<Credential> credentials = new ArrayList<>();
+        ObjectReader reader = objectMapper.readerFor(credentialClass);
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonToken first = parser.nextToken();
+            if (first == null) {
+                return credentials; // empty file
+            }
+            if (first != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected an array of credentials");
+            }
+
+            // bound the number of batches in flight, so memory stays proportional to the batch size
+            int maxPending = bindingPool != null ? bindingPool.getParallelism() * 2 : 0;
+            Deque<ForkJoinTask<List<Credential>>> pending = new ArrayDeque<>();
+            List<JsonNode> batch = new ArrayList<>(BIND_BATCH_SIZE);
+            long read = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                if (bindingPool == null) {
+                    credentials.add(bind(reader, objectMapper.readTree(parser), records));
+                } else {
+                    batch.add(objectMapper.readTree(parser));
+                }
+
+                if (++read % BIND_BATCH_SIZE == 0) {
+                    if (bindingPool != null) {
+                        List<JsonNode> nodes = batch;
+                        pending.add(bindingPool.submit(() -> bind(reader, nodes, records)));
+                        batch = new ArrayList<>(BIND_BATCH_SIZE);
+                        while (pending.size() > maxPending) {
+                            credentials.addAll(pending.poll().join());
+                        }
+                    }
+                    if (progressListener != null) {
+                        progressListener.onProgress(read, parser.currentLocation().getByteOffset(), totalBytes);
+                    }
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                credentials.addAll(pending.poll().join());
+            }
+            credentials.addAll(bind(reader, batch, records));
+            if (progressListener != null) {
+                progressListener.onProgress(read, totalBytes, totalBytes);
+            }
+        }
+
+        // consume trailing whitespace, so a digest of the stream covers the whole file
+        byte[] rest = new byte[8192];
+        while (in.read(rest) != -1) {
+            // skip
+        }
+        return credentials;
+    }
+
+    @SneakyThrows
+    private List<Credential> bind(ObjectReader reader, List<JsonNode> nodes, Map<String, byte[]> records) {
+        List<Credential> credentials = new ArrayList<>(nodes.size());
+        for (JsonNode node : nodes) {
+            credentials.add(bind(reader, node, records));
+        }
+        return credentials;
+    }
+
+    /**
+     * Binds a record, collecting its digest if it has a user id
+     */
+    private Credential bind(ObjectReader reader, JsonNode node, Map<String, byte[]> records) throws IOException {
+        Credential credential = reader.readValue(node);
+        if (credential.getUserId() != null) {
+            records.put(key(credential), digest(node));
+        }
+        return credential;
+    }
+
+    private void write(byte[] content) throws IOException {
+        knownDigest = digest(content); // before the file changes, so the watcher never mistakes it for an external write
+        AtomicFiles.write(file.toPath(), content, durability != StorageDurability.NONE);
+
+        // the merge base is kept as record digests, so the content itself isn't held in memory
+        Map<String, byte[]> records = new HashMap<>();
+        ObjectReader reader = objectMapper.readerFor(credentialClass);
+        try (JsonParser parser = objectMapper.getFactory().createParser(content)) {
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    bind(reader, objectMapper.readTree(parser), records);
+                }
+            }
+        }
+        knownRecords = records;
+    }
+
+    /**
+     * @return the digest of the current file content, streamed from the file
+     */
+    private byte[] fileDigest() throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (NoSuchFileException e) {
+            // digest of the empty content
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Three-way merge of the records another process wrote into the local credentials
+     * <p>
+     * The digests of the known records are the common base, the file the other process wrote is streamed record by record.
+     * Records the other process didn't change keep the local state, records only the other process changed take its state.
+     * If both changed a record, the credential issued last wins, a local deletion wins over a remote change.
+     * Credentials without a user id can't be matched and keep the local state.
+     *
+     * @param local    the local credentials
+     * @param upserted collects the remote records that were taken over
+     * @param deleted  collects the local credentials that were deleted by the other process
+     */
+    private void merge(List<Credential> local, List<Credential> upserted, List<Credential> deleted) throws IOException {
+        Map<String, Credential> ours = new HashMap<>();
+        for (Credential credential : local) {
+            if (credential.getUserId() != null) {
+                ours.put(key(credential), credential);
+            }
+        }
+
+        Set<String> removed = new HashSet<>(knownRecords.keySet());
+        try (InputStream in = Files.newInputStream(file.toPath()); JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    JsonNode node = objectMapper.readTree(parser);
+                    Credential theirs = objectMapper.treeToValue(node, credentialClass);
+                    if (theirs.getUserId() == null) {
+                        continue;
+                    }
+
+                    String key = key(theirs);
+                    removed.remove(key);
+                    byte[] base = knownRecords.get(key);
+                    if (!Arrays.equals(digest(node), base)) {
+                        resolve(key, theirs, base, ours.get(key), upserted, deleted);
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // deleted by the other process, all known records were removed
+        }
+        for (String key : removed) {
+            resolve(key, null, knownRecords.get(key), ours.get(key), upserted, deleted);
+        }
+
+        if (!upserted.isEmpty() || !deleted.isEmpty()) {
+            apply(upserted, deleted);
+        }
+        log.debug("Merged {} changed and {} deleted credentials written by another process into {}", upserted.size(), deleted.size(), file);
+    }
+
+    /**
+     * Applies merged remote records to the credentials
+     */
+    @Locked.Write
+    private void apply(List<Credential> upserted, List<Credential> deleted) {
+        List<Credential> merged = new ArrayList<>(this.credentials);
+        for (Credential credential : deleted) {
+            merged.removeIf(c -> c.getUserId() != null && key(c).equals(key(credential)));
+        }
+        for (Credential credential : upserted) {
+            String key = key(credential);
+            merged.removeIf(c -> c.getUserId() != null && key(c).equals(key));
+            merged.add(credential);
+        }
+
+        this.credentials = merged;
+        this.version++;
+    }
+
+    /**
+     * Resolves a record the other process changed
+     *
+     * @param theirs the record of the other process, null if it deleted it
+     * @param base   digest of the known record, null if it is new
+     * @param mine   the local credential, null if there is none
+     */
+    private void resolve(String key, @Nullable Credential theirs, @Nullable byte[] base, @Nullable Credential mine, List<Credential> upserted, List<Credential> deleted) throws IOException {
+        boolean changedLocally = !Arrays.equals(mine != null ? digest(tree(mine)) : null, base);
+        if (changedLocally && (mine == null || theirs == null || !issuedAfter(theirs, mine))) {
+            log.debug("Kept the local state of the conflicting credential {}", key);
+            return;
+        }
+
+        if (theirs != null) {
+            upserted.add(theirs);
+        } else if (mine != null) {
+            deleted.add(mine);
+        }
+    }
+
+    /**
+     * @return the credential as it is stored in the file
+     */
+    private JsonNode tree(Credential credential) throws IOException {
+        return objectMapper.readTree(objectMapper.writeValueAsBytes(credential));
+    }
+
+    /**
+     * @return the digest of a record, in the form it is written to the file
+     */
+    private byte[] digest(JsonNode node) throws IOException {
+        return digest(objectMapper.writeValueAsBytes(node));
+    }
+
+    private static boolean issuedAfter(Credential credential, Credential other) {
+        if (!(credential instanceof OAuth2Credential) || !(other instanceof OAuth2Credential)) {
+            return false;
+        }
+
+        Instant issuedAt = ((OAuth2Credential) credential).getIssuedAt();
+        Instant otherIssuedAt = ((OAuth2Credential) other).getIssuedAt();
+        return issuedAt != null && (otherIssuedAt == null || issuedAt.isAfter(otherIssuedAt));
+    }
+
+    private void notifyListener(List<Credential> upserted, List<Credential> deleted) {
+        CredentialChangeListener listener = this.changeListener;
+        if (listener != null && (!upserted.isEmpty() || !deleted.isEmpty())) {
+            listener.onCredentialsChanged(upserted, deleted);
+        }
+    }
+
+    private void watch(WatchService service, Path path) {
+        while (true) {
+            try {
+                WatchKey key = service.take();
+                boolean modified = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    modified |= event.kind() == StandardWatchEventKinds.OVERFLOW || path.getFileName().equals(event.context());
+                }
+                key.reset();
+
+                if (modified) {
+                    reload(path);
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // e.g. a partially written file, the next modification triggers another attempt
+                log.warn("Failed to reload the credentials from {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Applies an external modification of the file, reporting the changed records to the listener
+     */
+    private void reload(Path path) throws IOException {
+        List<Credential> upserted = new ArrayList<>();
+        List<Credential> deleted = new ArrayList<>();
+        synchronized (fileLock) {
+            // read under the lock, so an older modification never overwrites a save of this instance
+            if (!Files.exists(path) || MessageDigest.isEqual(fileDigest(), knownDigest)) {
+                return;
+            }
+
+            Map<String, byte[]> records = new HashMap<>();
+            MessageDigest digest = newDigest();
+            List<Credential> loaded;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+                loaded = read(in, Files.size(path), credentialClass, records, null, null);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            diff(loaded, upserted, deleted);
+            knownRecords = records;
+            knownDigest = digest.digest();
+        }
+
+        log.debug("Reloaded {} changed and {} deleted credentials from {}", upserted.size(), deleted.size(), path);
+        notifyListener(upserted, deleted);
+    }
+
+    /**
+     * Replaces the credentials, collecting the records that changed by identity provider and user id
+     * <p>
+     * Credentials without a user id can't be matched, like in a merge they keep the local state: replacing them with the
+     * loaded instances would make the next upsert of the local instance add a duplicate.
+     */
+    @Locked.Write
+    private void diff(List<Credential> loaded, List<Credential> upserted, List<Credential> deleted) {
+        List<Credential> reloaded = new ArrayList<>(loaded.size());
+        Map<String, Credential> current = new HashMap<>();
+        for (Credential credential : this.credentials) {
+            if (credential.getUserId() != null) {
+                current.put(key(credential), credential);
+            } else {
+                reloaded.add(credential);
+            }
+        }
+
+        for (Credential credential : loaded) {
+            if (credential.getUserId() == null) {
+                continue;
+            }
+            reloaded.add(credential);
+            if (!credential.equals(current.remove(key(credential)))) {
+                upserted.add(credential);
+            }
+        }
+        deleted.addAll(current.values());
+
+        this.credentials = reloaded;
+        this.version++;
+    }
+
+    private static String key(Credential credential) {
+        return (credential.getIdentityProvider() + "\0" + credential.getUserId()).toLowerCase(Locale.ROOT);
+    }
+
+    private static byte[] digest(byte[] content) {
+        return newDigest().digest(content);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Binds the records of a parser one at a time, closing it once exhausted
+     */
+    private static final class RecordIterator implements Iterator<Credential> {
+        private final JsonParser parser;
+        private final ObjectReader reader;
+        private Credential next;
+        private boolean done;
+
+        RecordIterator(JsonParser parser, ObjectReader reader) {
+            this.parser = parser;
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        next = reader.readValue(parser);
+                    } else {
+                        close();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    close();
+                    throw new IllegalStateException("Failed to load the credentials", e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Credential next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Credential credential = next;
+            next = null;
+            return credential;
+        }
+
+        private void close() {
+            done = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the credential file", e);
+            }
+        }
+    }
+
+    /**
+     * Credentials at a version
+     */
+    @Value
+    private static class Snapshot {
+        List<Credential> credentials;
+        long version;
+    }
 }
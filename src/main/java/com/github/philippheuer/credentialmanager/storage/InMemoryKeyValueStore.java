@@ -0,0 +1,73 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.api.IKeyValueStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-process {@link IKeyValueStore}, the reference implementation for tests and single node setups
+ * <p>
+ * Versions are a counter per key, starting at 1.
+ */
+public class InMemoryKeyValueStore implements IKeyValueStore {
+
+    /**
+     * Entries in key order, for prefix scans
+     */
+    private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    @Override
+    public Optional<Entry> get(String key) {
+        return Optional.ofNullable(entries.get(key)).map(InMemoryKeyValueStore::copy);
+    }
+
+    @Override
+    public OptionalLong putIfVersion(String key, byte[] value, long expectedVersion) {
+        long[] written = new long[1];
+        entries.compute(key, (k, current) -> {
+            long version = current == null ? ABSENT : current.getVersion();
+            if (version != expectedVersion) {
+                return current;
+            }
+            written[0] = version + 1;
+            return new Entry(k, value.clone(), version + 1);
+        });
+        return written[0] != ABSENT ? OptionalLong.of(written[0]) : OptionalLong.empty();
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return entries.remove(key) != null;
+    }
+
+    @Override
+    public List<Entry> scanByPrefix(String prefix) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.tailMap(prefix).values()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.add(copy(entry));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of stored keys
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Copies the value, so callers can't modify the stored bytes
+     */
+    private static Entry copy(Entry entry) {
+        return new Entry(entry.getKey(), entry.getValue().clone(), entry.getVersion());
+    }
+}
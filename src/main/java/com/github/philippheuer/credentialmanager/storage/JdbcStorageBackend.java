@@ -0,0 +1,540 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Stores credentials in a relational database, one row per credential.
+ * <p>
+ * The table is keyed by the case-folded identity provider and user id, with additional indexes on the user id and the expiry,
+ * so lookups are answered by an indexed query instead of loading all credentials. As the keys are case-folded, lookups by
+ * user id are case-insensitive. Connections are taken from the given
+ * {@link DataSource}, which should be pooled (e.g. HikariCP, or H2's JdbcConnectionPool for embedded use).
+ * <p>
+ * Schema (created if missing):
+ * <pre>
+ * CREATE TABLE credentials (
+ *     identity_provider VARCHAR(255) NOT NULL,
+ *     user_id           VARCHAR(255) NOT NULL,
+ *     expires_at        BIGINT,
+ *     data              CLOB NOT NULL,
+ *     PRIMARY KEY (identity_provider, user_id)
+ * )
+ * </pre>
+ * Credentials without a user id (e.g. app access tokens) are stored under a synthetic user id, which this instance
+ * remembers for the credential instances it loaded or stored, so updates and deletes of such an instance reach its row.
+ */
+@Slf4j
+public class JdbcStorageBackend implements IStorageBackend {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /**
+     * Number of rows read per round trip when iterating
+     */
+    private static final int FETCH_SIZE = 500;
+
+    /**
+     * Number of update and insert rounds for a row that is concurrently inserted and deleted
+     */
+    private static final int MAX_UPSERT_ATTEMPTS = 3;
+
+    /**
+     * Prefix of the synthetic user ids of credentials without user id
+     */
+    private static final String SYNTHETIC_USER_ID_PREFIX = "#app:";
+
+    private final DataSource dataSource;
+
+    private final ObjectMapper objectMapper;
+
+    private final Class<? extends Credential> credentialClass;
+
+    private final String table;
+
+    /**
+     * Synthetic user ids of the credentials without user id, by instance
+     */
+    private final Map<Credential, String> syntheticUserIds = new IdentityHashMap<>();
+
+    /**
+     * Creates a {@link JdbcStorageBackend} using the table "credentials", creating it if it doesn't exist
+     *
+     * @param dataSource      data source, should be pooled
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     */
+    public <T extends Credential> JdbcStorageBackend(@NotNull DataSource dataSource, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this(dataSource, mapper, credentialClass, "credentials", true);
+    }
+
+    /**
+     * Creates a {@link JdbcStorageBackend}
+     *
+     * @param dataSource      data source, should be pooled
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     * @param table           table name
+     * @param createSchema    whether to create the table and indexes if they don't exist
+     */
+    public <T extends Credential> JdbcStorageBackend(@NotNull DataSource dataSource, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, @NotNull String table, boolean createSchema) {
+        if (!IDENTIFIER.matcher(table).matches()) {
+            throw new IllegalArgumentException("Invalid table name: " + table);
+        }
+
+        this.dataSource = dataSource;
+        this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.credentialClass = credentialClass;
+        this.table = table;
+
+        if (createSchema) {
+            createSchema();
+        }
+    }
+
+    @Override
+    public List<Credential> loadCredentials() {
+        return query("SELECT user_id, data FROM " + table, null, null);
+    }
+
+    /**
+     * Replaces all stored credentials in one transaction
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    public void saveCredentials(List<Credential> credentials) {
+        List<Credential> keyed = keyed(credentials);
+        inTransaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM " + table);
+            }
+            insert(connection, keyed);
+        });
+
+        // forget the synthetic user ids of the deleted rows
+        Set<Credential> saved = Collections.newSetFromMap(new IdentityHashMap<>());
+        saved.addAll(keyed);
+        synchronized (syntheticUserIds) {
+            syntheticUserIds.keySet().retainAll(saved);
+        }
+    }
+
+    @Override
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        if (userId == null) {
+            return Optional.empty();
+        }
+
+        List<Credential> credentials = query("SELECT user_id, data FROM " + table + " WHERE user_id = ?", fold(userId), null);
+        return credentials.isEmpty() ? Optional.empty() : Optional.of(credentials.get(0));
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    /**
+     * Updates the existing rows and inserts the remaining credentials, both as batches
+     * <p>
+     * If another writer inserted one of the remaining credentials in the meantime, the batch is rolled back and the
+     * remaining credentials are stored one by one, updating the rows that exist by now.
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        List<Credential> keyed = keyed(credentials);
+        if (keyed.isEmpty()) {
+            return;
+        }
+
+        inTransaction(connection -> {
+            int[] updated;
+            try (PreparedStatement statement = connection.prepareStatement(updateSql())) {
+                for (Credential credential : keyed) {
+                    bindUpdate(statement, credential);
+                    statement.addBatch();
+                }
+                updated = statement.executeBatch();
+            }
+
+            List<Credential> missing = new ArrayList<>();
+            for (int i = 0; i < keyed.size(); i++) {
+                if (updated[i] == 0) {
+                    missing.add(keyed.get(i));
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                insert(connection, missing);
+            } catch (SQLException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                connection.rollback(savepoint);
+                for (Credential credential : missing) {
+                    upsertRow(connection, credential);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        if (userId == null) {
+            return false;
+        }
+
+        boolean[] deleted = new boolean[1];
+        inTransaction(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table + " WHERE identity_provider = ? AND user_id = ?")) {
+                statement.setString(1, fold(identityProvider));
+                statement.setString(2, fold(userId));
+                deleted[0] = statement.executeUpdate() > 0;
+            }
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        if (credential.getUserId() != null) {
+            return delete(credential.getIdentityProvider(), credential.getUserId());
+        }
+
+        String syntheticUserId;
+        synchronized (syntheticUserIds) {
+            syntheticUserId = syntheticUserIds.remove(credential);
+        }
+        return syntheticUserId != null && delete(credential.getIdentityProvider(), syntheticUserId);
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        return query("SELECT user_id, data FROM " + table + " WHERE identity_provider = ?", fold(identityProvider), null);
+    }
+
+    /**
+     * Gets the OAuth2 credentials that expire before the given time, using the expiry index
+     *
+     * @param time the time
+     * @return Credentials
+     */
+    public List<Credential> findExpiringBefore(@NotNull Instant time) {
+        return query("SELECT user_id, data FROM " + table + " WHERE expires_at < ? ORDER BY expires_at", null, time.toEpochMilli());
+    }
+
+    /**
+     * Streams the credentials from a single query, holding its connection until the iterator is exhausted
+     *
+     * @return Iterator
+     */
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                PreparedStatement statement = connection.prepareStatement("SELECT user_id, data FROM " + table);
+                statement.setFetchSize(FETCH_SIZE);
+                return new ResultSetIterator(connection, statement, statement.executeQuery());
+            } catch (SQLException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load the credentials", e);
+        }
+    }
+
+    private void createSchema() {
+        inTransaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "identity_provider VARCHAR(255) NOT NULL, "
+                    + "user_id VARCHAR(255) NOT NULL, "
+                    + "expires_at BIGINT, "
+                    + "data CLOB NOT NULL, "
+                    + "PRIMARY KEY (identity_provider, user_id))");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + table + "_user_id ON " + table + " (user_id)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + table + "_expires_at ON " + table + " (expires_at)");
+            }
+        });
+    }
+
+    private void insert(Connection connection, List<Credential> credentials) throws SQLException {
+        if (credentials.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + table + " (identity_provider, user_id, expires_at, data) VALUES (?, ?, ?, ?)")) {
+            for (Credential credential : credentials) {
+                statement.setString(1, fold(credential.getIdentityProvider()));
+                statement.setString(2, rowUserId(credential));
+                bindExpiry(statement, 3, credential);
+                statement.setString(4, serialize(credential));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Updates or inserts a single row, retrying if the row is concurrently inserted or deleted
+     */
+    private void upsertRow(Connection connection, Credential credential) throws SQLException {
+        for (int attempt = 0; attempt < MAX_UPSERT_ATTEMPTS; attempt++) {
+            try (PreparedStatement statement = connection.prepareStatement(updateSql())) {
+                bindUpdate(statement, credential);
+                if (statement.executeUpdate() > 0) {
+                    return;
+                }
+            }
+
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                insert(connection, Collections.singletonList(credential));
+                return;
+            } catch (SQLException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                connection.rollback(savepoint);
+            }
+        }
+        throw new SQLException("Failed to store the credential, the row changed concurrently [IdentityProvider: " + credential.getIdentityProvider() + "]");
+    }
+
+    private String updateSql() {
+        return "UPDATE " + table + " SET expires_at = ?, data = ? WHERE identity_provider = ? AND user_id = ?";
+    }
+
+    private void bindUpdate(PreparedStatement statement, Credential credential) throws SQLException {
+        bindExpiry(statement, 1, credential);
+        statement.setString(2, serialize(credential));
+        statement.setString(3, fold(credential.getIdentityProvider()));
+        statement.setString(4, rowUserId(credential));
+    }
+
+    private List<Credential> query(String sql, @Nullable String stringParameter, @Nullable Long longParameter) {
+        try (Connection connection = dataSource.getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (stringParameter != null) {
+                statement.setString(1, stringParameter);
+            } else if (longParameter != null) {
+                statement.setLong(1, longParameter);
+            }
+
+            List<Credential> credentials = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    credentials.add(read(resultSet));
+                }
+            }
+            return credentials;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to query the credentials", e);
+        }
+    }
+
+    private void inTransaction(SqlAction action) {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                action.execute(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to write the credentials", e);
+        }
+    }
+
+    /**
+     * @return the credentials by row key, the last one wins if several have the same key
+     */
+    private List<Credential> keyed(Collection<? extends Credential> credentials) {
+        Map<String, Credential> keyed = new LinkedHashMap<>();
+        for (Credential credential : credentials) {
+            keyed.put(fold(credential.getIdentityProvider()) + '\0' + rowUserId(credential), credential);
+        }
+        return new ArrayList<>(keyed.values());
+    }
+
+    /**
+     * @return the user id column of the credential, a synthetic one that is assigned on first use if it has no user id
+     */
+    private String rowUserId(Credential credential) {
+        if (credential.getUserId() != null) {
+            return fold(credential.getUserId());
+        }
+
+        synchronized (syntheticUserIds) {
+            return syntheticUserIds.computeIfAbsent(credential, c -> SYNTHETIC_USER_ID_PREFIX + UUID.randomUUID());
+        }
+    }
+
+    /**
+     * Reads the credential of the current row, remembering the synthetic user id of a credential without user id
+     */
+    private Credential read(ResultSet resultSet) throws SQLException {
+        Credential credential = deserialize(resultSet.getString(2));
+        if (credential.getUserId() == null) {
+            synchronized (syntheticUserIds) {
+                syntheticUserIds.put(credential, resultSet.getString(1));
+            }
+        }
+        return credential;
+    }
+
+    private static void bindExpiry(PreparedStatement statement, int index, Credential credential) throws SQLException {
+        if (credential instanceof OAuth2Credential && ((OAuth2Credential) credential).getExpiresIn() != null && ((OAuth2Credential) credential).getIssuedAt() != null) {
+            statement.setLong(index, ((OAuth2Credential) credential).getExpiresAt().toEpochMilli());
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+
+    private String serialize(Credential credential) {
+        try {
+            return objectMapper.writeValueAsString(credential);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Credential deserialize(String data) {
+        try {
+            return objectMapper.readValue(data, credentialClass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true if the exception, or one it wraps, is a unique constraint violation
+     */
+    private static boolean isDuplicateKey(SQLException exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLIntegrityConstraintViolationException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                if ("23505".equals(((SQLException) cause).getSQLState())) {
+                    return true;
+                }
+                SQLException next = ((SQLException) cause).getNextException();
+                if (next != null && next != cause.getCause() && isDuplicateKey(next)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String fold(@Nullable String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    @FunctionalInterface
+    private interface SqlAction {
+        void execute(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Iterates over a result set, closing it and its connection once exhausted
+     */
+    private final class ResultSetIterator implements Iterator<Credential> {
+        private final Connection connection;
+        private final Statement statement;
+        private final ResultSet resultSet;
+        private Credential next;
+        private boolean done;
+
+        ResultSetIterator(Connection connection, Statement statement, ResultSet resultSet) {
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    if (resultSet.next()) {
+                        next = read(resultSet);
+                    } else {
+                        close();
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    close();
+                    throw new IllegalStateException("Failed to load the credentials", e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Credential next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Credential credential = next;
+            next = null;
+            return credential;
+        }
+
+        private void close() {
+            done = true;
+            try {
+                resultSet.close();
+                statement.close();
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close the connection", e);
+            }
+        }
+    }
+}
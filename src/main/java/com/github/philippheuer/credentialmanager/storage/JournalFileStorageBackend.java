@@ -0,0 +1,513 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import lombok.Locked;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only storage backend: every upsert or delete appends one record to a journal file, so the cost of a write
+ * grows with the change instead of the number of stored credentials.
+ * <p>
+ * Both the snapshot and the journal contain one JSON record per line. On startup, the snapshot is loaded and the journal is replayed.
+ * Once the journal grows beyond the compaction ratio of the snapshot size, it is compacted into a new snapshot in the background.
+ * <p>
+ * Every snapshot has a generation, and journal records carry the generation of the snapshot they were appended after, so
+ * records that are already part of a newer snapshot (e.g. after a crash between writing the snapshot and deleting the journal)
+ * are not replayed over it.
+ * <p>
+ * Snapshots are flushed to disk before they replace the previous one, journal records are only handed to the operating system:
+ * a crash of the process loses no completed write, but a crash of the machine may lose the most recent records.
+ */
+@Slf4j
+public class JournalFileStorageBackend implements IStorageBackend, Closeable {
+
+    private static final String OP_UPSERT = "upsert";
+
+    private static final String OP_DELETE = "delete";
+
+    /**
+     * First record of a snapshot, holding its generation
+     */
+    private static final String OP_SNAPSHOT = "snapshot";
+
+    private final ObjectMapper objectMapper;
+
+    private final Class<? extends Credential> credentialClass;
+
+    /**
+     * Snapshot file
+     */
+    private final File file;
+
+    /**
+     * Journal of the changes since the snapshot
+     */
+    private final File journalFile;
+
+    /**
+     * Journal that is being compacted into the snapshot
+     */
+    private final File compactingJournalFile;
+
+    /**
+     * The journal is compacted once it has more records than this ratio of the credentials
+     */
+    private final double compactionRatio;
+
+    /**
+     * The journal is never compacted with fewer records than this
+     */
+    private final int minCompactionRecords;
+
+    /**
+     * Credentials by record key
+     */
+    private final Map<String, Credential> credentials = new LinkedHashMap<>();
+
+    /**
+     * Record keys of the stored credential instances
+     */
+    private final Map<Credential, String> keys = new IdentityHashMap<>();
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder().namingPattern("credential-journal-compaction").daemon(true).build());
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    /**
+     * Serializes compactions, so snapshots are written in the order their state was captured
+     */
+    private final Object compactionLock = new Object();
+
+    private Writer journal;
+
+    private long journalRecords;
+
+    /**
+     * Incremented whenever the state of a new snapshot is captured, a snapshot is only written if no newer one was captured since.
+     * Journal records are tagged with it.
+     */
+    private long snapshotGeneration;
+
+    /**
+     * Creates a {@link JournalFileStorageBackend} that compacts the journal once it has more records than stored credentials
+     *
+     * @param file            snapshot file, the journal is stored next to it
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     */
+    public <T extends Credential> JournalFileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this(file, mapper, credentialClass, 1.0, 1000);
+    }
+
+    /**
+     * Creates a {@link JournalFileStorageBackend}
+     *
+     * @param file                 snapshot file, the journal is stored next to it
+     * @param mapper               object mapper
+     * @param credentialClass      credential class
+     * @param compactionRatio      the journal is compacted once it has more records than this ratio of the stored credentials
+     * @param minCompactionRecords the journal is never compacted with fewer records than this
+     */
+    @SneakyThrows
+    public <T extends Credential> JournalFileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, double compactionRatio, int minCompactionRecords) {
+        this.file = file;
+        this.journalFile = new File(file.getPath() + ".journal");
+        this.compactingJournalFile = new File(file.getPath() + ".journal.compacting");
+        this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.credentialClass = credentialClass;
+        this.compactionRatio = compactionRatio;
+        this.minCompactionRecords = minCompactionRecords;
+
+        replay(file, 0);
+        long generation = snapshotGeneration;
+        replay(compactingJournalFile, generation); // interrupted compaction, replaying it again is idempotent
+        this.journalRecords = replay(journalFile, generation);
+        this.journal = openJournal();
+        if (compactingJournalFile.exists()) {
+            compact();
+        }
+    }
+
+    @Override
+    @Locked.Read
+    public List<Credential> loadCredentials() {
+        return new ArrayList<>(credentials.values());
+    }
+
+    @Override
+    @SneakyThrows
+    @Locked.Write
+    public void saveCredentials(List<Credential> credentials) {
+        Map<Credential, String> previousKeys = new IdentityHashMap<>(this.keys);
+        this.credentials.clear();
+        this.keys.clear();
+        for (Credential credential : credentials) {
+            String key = previousKeys.get(credential);
+            put(key != null ? key : newKey(credential), credential);
+        }
+
+        // a whole-list write replaces all state, write it as a new snapshot right away
+        journal.close();
+        long generation = ++snapshotGeneration;
+        commitSnapshot(writeSnapshot(new LinkedHashMap<>(this.credentials), generation), generation);
+        // records left in the journal by a crash before this point belong to an older generation and are ignored
+        Files.deleteIfExists(journalFile.toPath());
+        journal = openJournal();
+        journalRecords = 0;
+    }
+
+    @Override
+    @Locked.Read
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        return credentials.values().stream().filter(c -> Objects.equals(userId, c.getUserId())).findAny();
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    @Override
+    @SneakyThrows
+    @Locked.Write
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        for (Credential credential : credentials) {
+            String key = keyOf(credential);
+            put(key, credential);
+            appendUpsert(key, credential);
+        }
+        journal.flush();
+        journalRecords += credentials.size();
+        scheduleCompactionIfNeeded();
+    }
+
+    @Override
+    @Locked.Write
+    public boolean delete(String identityProvider, String userId) {
+        return delete(key(identityProvider, userId));
+    }
+
+    @Override
+    @Locked.Write
+    public boolean delete(Credential credential) {
+        String key = keys.get(credential);
+        return delete(key != null ? key : keyOf(credential));
+    }
+
+    @Override
+    @Locked.Read
+    public List<Credential> findByProvider(String identityProvider) {
+        return credentials.values().stream()
+            .filter(c -> identityProvider.equalsIgnoreCase(c.getIdentityProvider()))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        return loadCredentials().iterator();
+    }
+
+    /**
+     * @return the number of records in the journal
+     */
+    @Locked.Read
+    public long getJournalRecords() {
+        return journalRecords;
+    }
+
+    /**
+     * Compacts the journal into a new snapshot on the calling thread
+     * <p>
+     * The snapshot is written without holding the lock; it is discarded if {@link #saveCredentials(List)} wrote a newer one meanwhile.
+     */
+    @SneakyThrows
+    public void compact() {
+        synchronized (compactionLock) {
+            PendingSnapshot snapshot = rotateJournal();
+            if (!commitSnapshot(writeSnapshot(snapshot.getState(), snapshot.getGeneration()), snapshot.getGeneration())) {
+                log.debug("Discarded a compaction of the credential journal that was superseded by a newer snapshot");
+                return;
+            }
+            log.debug("Compacted credential journal into a snapshot of {} credentials", snapshot.getState().size());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeJournal();
+    }
+
+    @Locked.Write
+    private void closeJournal() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Moves the journal aside and captures the state it leads to, which becomes the next snapshot
+     */
+    @SneakyThrows
+    @Locked.Write
+    private PendingSnapshot rotateJournal() {
+        journal.close();
+        if (journalFile.exists()) {
+            if (compactingJournalFile.exists()) {
+                // left over from an interrupted compaction, the snapshot we are about to write includes both
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(compactingJournalFile, true), StandardCharsets.UTF_8)) {
+                    writer.write(new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8));
+                }
+                Files.delete(journalFile.toPath());
+            } else {
+                Files.move(journalFile.toPath(), compactingJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        journal = openJournal();
+        journalRecords = 0;
+        return new PendingSnapshot(++snapshotGeneration, new LinkedHashMap<>(credentials));
+    }
+
+    /**
+     * Replaces the snapshot with a written temp file, unless a newer snapshot was captured since
+     *
+     * @return false if the snapshot was superseded and discarded
+     */
+    @SneakyThrows
+    @Locked.Write
+    private boolean commitSnapshot(File temp, long generation) {
+        if (generation != snapshotGeneration) {
+            Files.deleteIfExists(temp.toPath());
+            return false;
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the snapshot includes the journal that was being compacted
+        Files.deleteIfExists(compactingJournalFile.toPath());
+        return true;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (journalRecords < minCompactionRecords || journalRecords < compactionRatio * credentials.size()) {
+            return;
+        }
+
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactionExecutor.execute(() -> {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Failed to compact the credential journal", e);
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private boolean delete(String key) {
+        Credential removed = credentials.remove(key);
+        if (removed == null) {
+            return false;
+        }
+
+        keys.remove(removed);
+        appendDelete(key);
+        return true;
+    }
+
+    @SneakyThrows
+    private void appendUpsert(String key, Credential credential) {
+        ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", OP_UPSERT);
+        record.put("key", key);
+        record.put("generation", snapshotGeneration);
+        record.set("credential", objectMapper.valueToTree(credential));
+        journal.write(objectMapper.writeValueAsString(record));
+        journal.write('\n');
+    }
+
+    @SneakyThrows
+    private void appendDelete(String key) {
+        ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", OP_DELETE);
+        record.put("key", key);
+        record.put("generation", snapshotGeneration);
+        journal.write(objectMapper.writeValueAsString(record));
+        journal.write('\n');
+        journal.flush();
+        journalRecords++;
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Writes the state to a new temp file next to the snapshot
+     *
+     * @return the temp file, to be committed with {@link #commitSnapshot(File, long)}
+     */
+    private File writeSnapshot(Map<String, Credential> state, long generation) throws IOException {
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+        try (FileOutputStream out = new FileOutputStream(temp); Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            ObjectNode header = objectMapper.createObjectNode();
+            header.put("op", OP_SNAPSHOT);
+            header.put("generation", generation);
+            writer.write(objectMapper.writeValueAsString(header));
+            writer.write('\n');
+            for (Map.Entry<String, Credential> entry : state.entrySet()) {
+                ObjectNode record = objectMapper.createObjectNode();
+                record.put("op", OP_UPSERT);
+                record.put("key", entry.getKey());
+                record.set("credential", objectMapper.valueToTree(entry.getValue()));
+                writer.write(objectMapper.writeValueAsString(record));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Applies the records of a snapshot or journal file
+     *
+     * @param minGeneration records of an older generation are already part of the snapshot and skipped
+     * @return the number of records in the file
+     */
+    private long replay(File source, long minGeneration) throws IOException {
+        if (!source.exists()) {
+            return 0;
+        }
+
+        long records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(source.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                JsonNode record;
+                try {
+                    record = objectMapper.readTree(line);
+                } catch (IOException e) {
+                    // a torn record at the end of the file is the result of a crash during the append
+                    log.warn("Skipping unreadable record in {}", source, e);
+                    continue;
+                }
+
+                String op = record.path("op").textValue();
+                long generation = record.path("generation").asLong();
+                snapshotGeneration = Math.max(snapshotGeneration, generation);
+                if (OP_SNAPSHOT.equals(op)) {
+                    continue;
+                }
+
+                records++;
+                String key = record.path("key").textValue();
+                if (key == null || op == null || (!OP_DELETE.equals(op) && !record.path("credential").isObject())) {
+                    log.warn("Skipping invalid record in {}", source);
+                    continue;
+                }
+                if (generation < minGeneration) {
+                    // already part of the snapshot
+                    continue;
+                }
+
+                if (OP_DELETE.equals(op)) {
+                    Credential removed = credentials.remove(key);
+                    if (removed != null) {
+                        keys.remove(removed);
+                    }
+                } else {
+                    put(key, objectMapper.treeToValue(record.get("credential"), credentialClass));
+                }
+            }
+        }
+        return records;
+    }
+
+    private void put(String key, Credential credential) {
+        Credential previous = credentials.put(key, credential);
+        if (previous != null && previous != credential) {
+            keys.remove(previous);
+        }
+        keys.put(credential, key);
+    }
+
+    private Writer openJournal() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the record key of a stored credential instance, or the key a new credential is stored with
+     */
+    private String keyOf(Credential credential) {
+        String key = keys.get(credential);
+        return key != null ? key : newKey(credential);
+    }
+
+    private static String newKey(Credential credential) {
+        if (credential.getUserId() == null) {
+            // credentials without user id (e.g. app access tokens) are only addressable by instance
+            return "#" + UUID.randomUUID();
+        }
+        return key(credential.getIdentityProvider(), credential.getUserId());
+    }
+
+    private static String key(String identityProvider, String userId) {
+        return (identityProvider + "|" + userId).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * State captured for a snapshot
+     */
+    @Value
+    private static class PendingSnapshot {
+        long generation;
+        Map<String, Credential> state;
+    }
+}
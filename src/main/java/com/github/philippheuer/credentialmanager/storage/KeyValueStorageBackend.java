@@ -0,0 +1,377 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.CredentialChangeListener;
+import com.github.philippheuer.credentialmanager.api.IKeyValueStore;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores credentials in a key-value store, one key per credential, to share them across multiple nodes.
+ * <p>
+ * Keys are {@code <namespace><user id>/<identity provider>}, both case-folded and URL encoded, so lookups by user id are prefix scans.
+ * Writes are conditional on the version this instance last read or wrote. If another node wrote a credential in the
+ * meantime, the credential issued last wins: a newer credential of the other node is kept and reported to the change listener,
+ * otherwise the write is retried against the current version. If another node deleted the credential, it stays deleted and
+ * is reported to the change listener as well.
+ * <p>
+ * Credentials without a user id (e.g. app access tokens) are stored under a random key {@code <namespace>#<uuid>/<identity provider>},
+ * they are addressable by instance only: the instance that was written or last loaded.
+ */
+@Slf4j
+public class KeyValueStorageBackend implements IStorageBackend {
+
+    /**
+     * Number of attempts to write a credential that is concurrently modified by other nodes
+     */
+    private static final int MAX_CONFLICT_RETRIES = 5;
+
+    private final IKeyValueStore store;
+
+    private final ObjectMapper objectMapper;
+
+    private final Class<? extends Credential> credentialClass;
+
+    private final String namespace;
+
+    /**
+     * Versions of the keys this instance last read or wrote
+     */
+    private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of the credentials without user id by instance, guarded by itself
+     */
+    private final Map<Credential, String> instanceKeys = new IdentityHashMap<>();
+
+    /**
+     * Instances of the credentials without user id by key, guarded by {@link #instanceKeys}
+     */
+    private final Map<String, Credential> keyedInstances = new HashMap<>();
+
+    private volatile CredentialChangeListener changeListener;
+
+    /**
+     * Creates a {@link KeyValueStorageBackend} using the namespace "credentials/"
+     *
+     * @param store           key-value store
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     */
+    public <T extends Credential> KeyValueStorageBackend(@NotNull IKeyValueStore store, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this(store, mapper, credentialClass, "credentials/");
+    }
+
+    /**
+     * Creates a {@link KeyValueStorageBackend}
+     *
+     * @param store           key-value store
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     * @param namespace       prefix of all keys
+     */
+    public <T extends Credential> KeyValueStorageBackend(@NotNull IKeyValueStore store, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, @NotNull String namespace) {
+        this.store = store;
+        this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.credentialClass = credentialClass;
+        this.namespace = namespace;
+    }
+
+    @Override
+    public List<Credential> loadCredentials() {
+        return read(store.scanByPrefix(namespace));
+    }
+
+    /**
+     * Writes the credentials, and deletes the keys this instance read or wrote whose credentials are not in the list
+     * <p>
+     * Credentials other nodes added since this instance last loaded them are kept.
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    public void saveCredentials(List<Credential> credentials) {
+        Map<String, Credential> keyed = keyed(credentials);
+        upsertAll(keyed.values());
+
+        List<IKeyValueStore.Operation> deletes = new ArrayList<>();
+        for (String key : new ArrayList<>(versions.keySet())) {
+            if (!keyed.containsKey(key)) {
+                deletes.add(IKeyValueStore.Operation.delete(key));
+                versions.remove(key);
+                unbindInstance(key);
+            }
+        }
+        if (!deletes.isEmpty()) {
+            store.batch(deletes);
+        }
+    }
+
+    @Override
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        if (userId == null) {
+            return Optional.empty();
+        }
+
+        List<Credential> credentials = read(store.scanByPrefix(namespace + encode(userId) + "/"));
+        return credentials.isEmpty() ? Optional.empty() : Optional.of(credentials.get(0));
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    /**
+     * Writes the credentials as one batch of conditional writes, resolving conflicts one by one
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        Map<String, Credential> keyed = keyed(credentials);
+        if (keyed.isEmpty()) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(keyed.keySet());
+        List<IKeyValueStore.Operation> operations = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            operations.add(IKeyValueStore.Operation.putIfVersion(key, serialize(keyed.get(key)), versions.getOrDefault(key, IKeyValueStore.ABSENT)));
+        }
+
+        List<OptionalLong> results = store.batch(operations);
+        List<Credential> kept = new ArrayList<>();
+        List<Credential> deleted = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            long expectedVersion = operations.get(i).getExpectedVersion();
+            if (results.get(i).isPresent()) {
+                versions.put(key, results.get(i).getAsLong());
+            } else {
+                resolveConflict(key, keyed.get(key), expectedVersion, kept, deleted);
+            }
+        }
+
+        CredentialChangeListener listener = this.changeListener;
+        if (listener != null && (!kept.isEmpty() || !deleted.isEmpty())) {
+            listener.onCredentialsChanged(kept, deleted);
+        }
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        if (userId == null) {
+            return false;
+        }
+
+        String key = key(identityProvider, userId);
+        versions.remove(key);
+        return store.delete(key);
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        if (credential.getUserId() != null) {
+            return delete(credential.getIdentityProvider(), credential.getUserId());
+        }
+
+        String key;
+        synchronized (instanceKeys) {
+            key = instanceKeys.get(credential);
+        }
+        if (key == null) {
+            return false;
+        }
+        unbindInstance(key);
+        versions.remove(key);
+        return store.delete(key);
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        List<Credential> credentials = new ArrayList<>();
+        for (Credential credential : loadCredentials()) {
+            if (identityProvider.equalsIgnoreCase(credential.getIdentityProvider())) {
+                credentials.add(credential);
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * Receives the credentials of other nodes that were kept instead of an older local credential, and the credentials
+     * that other nodes deleted while they were written
+     *
+     * @param listener the listener, or null to remove it
+     */
+    @Override
+    public void setChangeListener(CredentialChangeListener listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Writes a credential that another node modified since this instance last read it
+     * <p>
+     * The credential of the other node is added to {@code kept} if it was issued after the given credential. If the key
+     * is gone although this instance held a version of it, another node deleted the credential: it is not written again
+     * and added to {@code deleted}.
+     *
+     * @param expectedVersion the version this instance held when the write failed
+     */
+    private void resolveConflict(String key, Credential credential, long expectedVersion, List<Credential> kept, List<Credential> deleted) {
+        byte[] value = serialize(credential);
+        for (int attempt = 0; attempt < MAX_CONFLICT_RETRIES; attempt++) {
+            Optional<IKeyValueStore.Entry> current = store.get(key);
+            if (!current.isPresent() && expectedVersion != IKeyValueStore.ABSENT) {
+                log.debug("Not writing the credential {} deleted by another node", key);
+                versions.remove(key);
+                unbindInstance(key);
+                deleted.add(credential);
+                return;
+            }
+
+            long version = current.map(IKeyValueStore.Entry::getVersion).orElse(IKeyValueStore.ABSENT);
+            if (current.isPresent()) {
+                Credential stored = deserialize(current.get().getValue());
+                if (issuedAfter(stored, credential)) {
+                    log.debug("Kept the newer credential {} written by another node", key);
+                    versions.put(key, version);
+                    kept.add(stored);
+                    return;
+                }
+            }
+
+            OptionalLong written = store.putIfVersion(key, value, version);
+            if (written.isPresent()) {
+                versions.put(key, written.getAsLong());
+                return;
+            }
+            expectedVersion = version;
+        }
+        throw new IllegalStateException("Failed to write the credential " + key + ", it is concurrently modified");
+    }
+
+    private List<Credential> read(List<IKeyValueStore.Entry> entries) {
+        List<Credential> credentials = new ArrayList<>(entries.size());
+        for (IKeyValueStore.Entry entry : entries) {
+            versions.put(entry.getKey(), entry.getVersion());
+            Credential credential = deserialize(entry.getValue());
+            if (credential.getUserId() == null) {
+                bindInstance(entry.getKey(), credential);
+            }
+            credentials.add(credential);
+        }
+        return credentials;
+    }
+
+    /**
+     * @return the credentials by their key, the last one wins if several have the same key
+     */
+    private Map<String, Credential> keyed(Collection<? extends Credential> credentials) {
+        Map<String, Credential> keyed = new LinkedHashMap<>();
+        for (Credential credential : credentials) {
+            keyed.put(credential.getUserId() != null ? key(credential.getIdentityProvider(), credential.getUserId()) : instanceKey(credential), credential);
+        }
+        return keyed;
+    }
+
+    /**
+     * @return the key of a credential without user id, a new random key if the instance wasn't written or loaded before
+     */
+    private String instanceKey(Credential credential) {
+        synchronized (instanceKeys) {
+            String key = instanceKeys.get(credential);
+            if (key == null) {
+                key = namespace + "#" + UUID.randomUUID() + "/" + encode(credential.getIdentityProvider());
+                bindInstance(key, credential);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Makes the instance the one addressed by the key, replacing the previously loaded instance
+     */
+    private void bindInstance(String key, Credential credential) {
+        synchronized (instanceKeys) {
+            Credential previous = keyedInstances.put(key, credential);
+            if (previous != null && previous != credential) {
+                instanceKeys.remove(previous);
+            }
+            instanceKeys.put(credential, key);
+        }
+    }
+
+    private void unbindInstance(String key) {
+        synchronized (instanceKeys) {
+            Credential previous = keyedInstances.remove(key);
+            if (previous != null) {
+                instanceKeys.remove(previous);
+            }
+        }
+    }
+
+    private String key(@Nullable String identityProvider, String userId) {
+        return namespace + encode(userId) + "/" + encode(identityProvider);
+    }
+
+    private static boolean issuedAfter(Credential credential, Credential other) {
+        if (!(credential instanceof OAuth2Credential) || !(other instanceof OAuth2Credential)) {
+            return false;
+        }
+
+        Instant issuedAt = ((OAuth2Credential) credential).getIssuedAt();
+        Instant otherIssuedAt = ((OAuth2Credential) other).getIssuedAt();
+        return issuedAt != null && (otherIssuedAt == null || issuedAt.isAfter(otherIssuedAt));
+    }
+
+    private byte[] serialize(Credential credential) {
+        try {
+            return objectMapper.writeValueAsBytes(credential);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Credential deserialize(byte[] value) {
+        try {
+            return objectMapper.readValue(value, credentialClass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return case-folded value, URL encoded so it never contains the '/' separator
+     */
+    @SneakyThrows
+    private static String encode(@Nullable String value) {
+        return value == null ? "" : URLEncoder.encode(value.toLowerCase(Locale.ROOT), "UTF-8");
+    }
+}
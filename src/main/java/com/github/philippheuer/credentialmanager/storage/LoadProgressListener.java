@@ -0,0 +1,18 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+/**
+ * Receives the progress of a storage backend loading its credentials
+ */
+@FunctionalInterface
+public interface LoadProgressListener {
+
+    /**
+     * Invoked periodically while loading and once after loading finished
+     *
+     * @param credentialsRead number of credentials read so far
+     * @param bytesRead       number of bytes read so far
+     * @param totalBytes      total number of bytes to read
+     */
+    void onProgress(long credentialsRead, long bytesRead, long totalBytes);
+
+}
@@ -0,0 +1,634 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import lombok.Locked;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Stores credentials in a memory-mapped file, for credential sets too large to parse as a whole on startup.
+ * <p>
+ * The file starts with a fixed header, followed by the records. A record frames one credential: its identity provider and
+ * user id as length-prefixed strings, followed by the credential serialized by the object mapper (JSON), so every update
+ * re-encodes the whole credential. Each record has two slots with some spare capacity, so an updated credential is usually
+ * written in place: it is written to the inactive slot, which is then flipped to be the active one. Every slot carries a
+ * checksum, so a write torn by a crash falls back to the previous slot. Records that outgrow their capacity are marked as
+ * deleted and written again; deleted records are reused by later writes that fit, so the file only grows with the stored
+ * credentials.
+ * On startup only the record keys are decoded to build an offset index by (identity provider, user id), credentials are
+ * deserialized when they are requested.
+ * <p>
+ * The file is limited to 2 GiB. Writes reach the OS page cache immediately and are flushed to disk by {@link #saveCredentials(List)} and {@link #close()}.
+ */
+@Slf4j
+public class MappedFileStorageBackend implements IStorageBackend, Closeable {
+
+    private static final int MAGIC = 0x43524544; // "CRED"
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Header: magic (int), format version (int), end offset (int), reserved
+     */
+    private static final int HEADER_SIZE = 32;
+
+    private static final int END_OFFSET_POSITION = 8;
+
+    /**
+     * Record header: slot capacity (int), status (byte), active slot (byte), then payload length (int) and CRC32 (int) of both slots
+     */
+    private static final int RECORD_HEADER_SIZE = 22;
+
+    private static final int STATUS_POSITION = 4;
+
+    private static final int ACTIVE_SLOT_POSITION = 5;
+
+    private static final int SLOT_INFO_POSITION = 6;
+
+    private static final byte STATUS_DELETED = 0;
+
+    private static final byte STATUS_LIVE = 1;
+
+    private static final int INITIAL_FILE_SIZE = 1 << 20;
+
+    private final ObjectMapper objectMapper;
+
+    private final Class<? extends Credential> credentialClass;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * Offset after the last record
+     */
+    private int endOffset;
+
+    /**
+     * Record offsets by case-folded identity provider and user id
+     */
+    private final Map<String, Integer> offsetsByKey = new HashMap<>();
+
+    /**
+     * Record offsets by user id, in file order
+     */
+    private final Map<String, Set<Integer>> offsetsByUserId = new HashMap<>();
+
+    /**
+     * Record offsets of the credentials without user id, by the instance last read or written
+     */
+    private final Map<Credential, Integer> offsetsByInstance = new IdentityHashMap<>();
+
+    /**
+     * Reverse of {@link #offsetsByInstance}
+     */
+    private final Map<Integer, Credential> instancesByOffset = new HashMap<>();
+
+    /**
+     * Offsets of the deleted records, by slot capacity
+     */
+    private final NavigableMap<Integer, Deque<Integer>> freeOffsets = new TreeMap<>();
+
+    /**
+     * Creates a {@link MappedFileStorageBackend}
+     *
+     * @param file            the file, created if it doesn't exist
+     * @param mapper          object mapper, used to encode the credential fields
+     * @param credentialClass credential class
+     */
+    @SneakyThrows
+    public <T extends Credential> MappedFileStorageBackend(@NotNull File file, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.credentialClass = credentialClass;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        if (size == 0) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_FILE_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            this.endOffset = HEADER_SIZE;
+            buffer.putInt(END_OFFSET_POSITION, endOffset);
+        } else {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a credential store");
+            }
+            if (buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Unsupported credential store format version " + buffer.getInt(4));
+            }
+            this.endOffset = buffer.getInt(END_OFFSET_POSITION);
+            buildIndex();
+        }
+    }
+
+    @Override
+    @Locked.Read
+    public List<Credential> loadCredentials() {
+        List<Credential> credentials = new ArrayList<>();
+        for (int offset = HEADER_SIZE; offset < endOffset; offset = next(offset)) {
+            if (isLive(offset)) {
+                credentials.add(readCredential(offset));
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * Replaces all stored credentials, writing only those that changed in place
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    @SneakyThrows
+    @Locked.Write
+    public void saveCredentials(List<Credential> credentials) {
+        Set<Integer> retained = new TreeSet<>();
+        for (Credential credential : credentials) {
+            retained.add(write(credential));
+        }
+
+        for (int offset = HEADER_SIZE; offset < endOffset; offset = next(offset)) {
+            if (isLive(offset) && !retained.contains(offset)) {
+                markDeleted(offset);
+            }
+        }
+        buffer.force();
+    }
+
+    @Override
+    @Locked.Read
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        Set<Integer> offsets = offsetsByUserId.get(userId);
+        return offsets == null ? Optional.empty() : Optional.of(readCredential(offsets.iterator().next()));
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    @Override
+    @SneakyThrows
+    @Locked.Write
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        for (Credential credential : credentials) {
+            write(credential);
+        }
+    }
+
+    @Override
+    @Locked.Write
+    public boolean delete(String identityProvider, String userId) {
+        Integer offset = offsetsByKey.get(key(identityProvider, userId));
+        if (offset == null) {
+            return false;
+        }
+
+        markDeleted(offset);
+        return true;
+    }
+
+    @Override
+    @Locked.Write
+    public boolean delete(Credential credential) {
+        Integer offset = findOffset(credential);
+        if (offset == null) {
+            return false;
+        }
+
+        markDeleted(offset);
+        return true;
+    }
+
+    @Override
+    @Locked.Read
+    public List<Credential> findByProvider(String identityProvider) {
+        List<Credential> credentials = new ArrayList<>();
+        for (int offset = HEADER_SIZE; offset < endOffset; offset = next(offset)) {
+            ByteBuffer payload = isLive(offset) ? payload(offset) : null;
+            if (payload != null && identityProvider.equalsIgnoreCase(readString(payload))) {
+                credentials.add(readCredential(offset));
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * Iterates over the stored credentials, deserializing one record at a time
+     * <p>
+     * The iterator is weakly consistent: it never fails because of concurrent writes, but may or may not reflect them.
+     *
+     * @return credential iterator
+     */
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        return new Iterator<Credential>() {
+            private int offset = HEADER_SIZE;
+
+            @Override
+            public boolean hasNext() {
+                offset = nextLive(offset);
+                return offset >= 0;
+            }
+
+            @Override
+            public Credential next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Credential credential = readCredentialLocked(offset);
+                offset = next(offset);
+                return credential;
+            }
+        };
+    }
+
+    @Override
+    @Locked.Write
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * @return the offset of the next live record at or after the given offset, or -1
+     */
+    @Locked.Read
+    private int nextLive(int offset) {
+        for (int current = offset; current < endOffset; current = next(current)) {
+            if (isLive(current)) {
+                return current;
+            }
+        }
+        return -1;
+    }
+
+    @Locked.Read
+    private Credential readCredentialLocked(int offset) {
+        return readCredential(offset);
+    }
+
+    /**
+     * Scans the record keys, without deserializing the credentials
+     */
+    private void buildIndex() {
+        for (int offset = HEADER_SIZE; offset < endOffset; offset = next(offset)) {
+            if (!isLive(offset)) {
+                free(offset);
+                continue;
+            }
+
+            ByteBuffer payload = payload(offset);
+            if (payload == null) {
+                log.warn("Skipping unreadable credential record at offset {}", offset);
+                buffer.put(offset + STATUS_POSITION, STATUS_DELETED);
+                free(offset);
+                continue;
+            }
+            String identityProvider = readString(payload);
+            String userId = readString(payload);
+            index(offset, identityProvider, userId);
+        }
+    }
+
+    /**
+     * Writes a credential in place if it fits, or to a new record
+     *
+     * @return the offset of the record
+     */
+    private int write(Credential credential) throws IOException {
+        byte[] payload = encode(credential);
+        Integer offset = findOffset(credential);
+
+        if (offset != null && payload.length <= buffer.getInt(offset)) {
+            String storedUserId = userId(offset);
+            int slot = 1 - currentSlot(offset);
+            writeSlot(offset, slot, payload);
+            buffer.put(offset + ACTIVE_SLOT_POSITION, (byte) slot); // the previous slot stays intact until here
+
+            if (storedUserId != null && !storedUserId.equals(credential.getUserId())) {
+                // the user id differs only in case, the record is found by the new one
+                unindexUserId(storedUserId, offset);
+                offsetsByUserId.computeIfAbsent(credential.getUserId(), k -> new TreeSet<>()).add(offset);
+            }
+            remember(credential, offset);
+            return offset;
+        }
+
+        // write the new record before deleting the outgrown one, so a crash in between never loses the credential
+        int written = reuse(credential, payload);
+        if (written < 0) {
+            written = append(credential, payload);
+        }
+        if (offset != null) {
+            markDeleted(offset);
+        }
+        return written;
+    }
+
+    /**
+     * Writes a credential to the smallest deleted record it fits into
+     *
+     * @return the offset of the record, or -1 if there is none
+     */
+    private int reuse(Credential credential, byte[] payload) {
+        Map.Entry<Integer, Deque<Integer>> free = freeOffsets.ceilingEntry(payload.length);
+        if (free == null) {
+            return -1;
+        }
+        int offset = free.getValue().poll();
+        if (free.getValue().isEmpty()) {
+            freeOffsets.remove(free.getKey());
+        }
+
+        buffer.put(offset + ACTIVE_SLOT_POSITION, (byte) 0);
+        writeSlot(offset, 0, payload);
+        buffer.putInt(offset + SLOT_INFO_POSITION + 8, -1); // the second slot is empty
+
+        // publish the record after it was written
+        buffer.put(offset + STATUS_POSITION, STATUS_LIVE);
+
+        index(offset, credential.getIdentityProvider(), credential.getUserId());
+        remember(credential, offset);
+        return offset;
+    }
+
+    private int append(Credential credential, byte[] payload) throws IOException {
+        // reserve spare capacity, so refreshed tokens usually fit in place
+        int capacity = payload.length + Math.max(32, payload.length / 4);
+        int offset = endOffset;
+        ensureCapacity((long) offset + RECORD_HEADER_SIZE + 2L * capacity);
+
+        buffer.putInt(offset, capacity);
+        buffer.put(offset + STATUS_POSITION, STATUS_LIVE);
+        buffer.put(offset + ACTIVE_SLOT_POSITION, (byte) 0);
+        writeSlot(offset, 0, payload);
+        buffer.putInt(offset + SLOT_INFO_POSITION + 8, -1); // the second slot is empty
+
+        // publish the record after it was written
+        endOffset = offset + RECORD_HEADER_SIZE + 2 * capacity;
+        buffer.putInt(END_OFFSET_POSITION, endOffset);
+
+        index(offset, credential.getIdentityProvider(), credential.getUserId());
+        remember(credential, offset);
+        return offset;
+    }
+
+    /**
+     * Makes a deleted record available for reuse
+     */
+    private void free(int offset) {
+        freeOffsets.computeIfAbsent(buffer.getInt(offset), k -> new ArrayDeque<>()).add(offset);
+    }
+
+    private void markDeleted(int offset) {
+        ByteBuffer payload = payload(offset);
+        String identityProvider = payload != null ? readString(payload) : null;
+        String userId = payload != null ? readString(payload) : null;
+
+        if (isLive(offset)) {
+            // already deleted if superseded while writing its replacement
+            buffer.put(offset + STATUS_POSITION, STATUS_DELETED);
+            free(offset);
+        }
+        if (userId != null) {
+            offsetsByKey.remove(key(identityProvider, userId), offset);
+            unindexUserId(userId, offset);
+        }
+        Credential instance = instancesByOffset.remove(offset);
+        if (instance != null) {
+            offsetsByInstance.remove(instance, offset);
+        }
+    }
+
+    private void index(int offset, @Nullable String identityProvider, @Nullable String userId) {
+        if (userId == null) {
+            return;
+        }
+
+        Integer previous = offsetsByKey.put(key(identityProvider, userId), offset);
+        if (previous != null && previous != offset) {
+            // superseded by a later record, whose user id may differ in case
+            String previousUserId = userId(previous);
+            buffer.put(previous + STATUS_POSITION, STATUS_DELETED);
+            free(previous);
+            if (previousUserId != null) {
+                unindexUserId(previousUserId, previous);
+            }
+        }
+        offsetsByUserId.computeIfAbsent(userId, k -> new TreeSet<>()).add(offset);
+    }
+
+    private void unindexUserId(String userId, int offset) {
+        Set<Integer> offsets = offsetsByUserId.get(userId);
+        if (offsets != null) {
+            offsets.remove(offset);
+            if (offsets.isEmpty()) {
+                offsetsByUserId.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Remembers the record of a credential without user id, which can only be found by instance
+     */
+    private void remember(Credential credential, int offset) {
+        if (credential.getUserId() != null) {
+            return;
+        }
+
+        Credential previous = instancesByOffset.put(offset, credential);
+        if (previous != null && previous != credential) {
+            offsetsByInstance.remove(previous);
+        }
+        offsetsByInstance.put(credential, offset);
+    }
+
+    @Nullable
+    private Integer findOffset(Credential credential) {
+        if (credential.getUserId() == null) {
+            return offsetsByInstance.get(credential);
+        }
+        return offsetsByKey.get(key(credential.getIdentityProvider(), credential.getUserId()));
+    }
+
+    @SneakyThrows
+    private Credential readCredential(int offset) {
+        ByteBuffer payload = payload(offset);
+        if (payload == null) {
+            throw new IOException("Unreadable credential record at offset " + offset);
+        }
+        readString(payload);
+        readString(payload);
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+
+        Credential credential = objectMapper.readValue(body, credentialClass);
+        if (credential.getUserId() == null) {
+            synchronized (instancesByOffset) {
+                remember(credential, offset);
+            }
+        }
+        return credential;
+    }
+
+    private byte[] encode(Credential credential) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, credential.getIdentityProvider());
+        writeString(out, credential.getUserId());
+        out.write(objectMapper.writeValueAsBytes(credential));
+        return bytes.toByteArray();
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Credential store exceeds the maximum size of 2 GiB");
+        }
+
+        if (required > buffer.capacity()) {
+            long size = Math.min(Integer.MAX_VALUE, Math.max(required, (long) buffer.capacity() * 2));
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private boolean isLive(int offset) {
+        return buffer.get(offset + STATUS_POSITION) == STATUS_LIVE;
+    }
+
+    private int next(int offset) {
+        return offset + RECORD_HEADER_SIZE + 2 * buffer.getInt(offset);
+    }
+
+    /**
+     * Writes the payload and its checksum to a slot of a record
+     */
+    private void writeSlot(int offset, int slot, byte[] payload) {
+        view(slotPosition(offset, slot)).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(offset + SLOT_INFO_POSITION + slot * 8, payload.length);
+        buffer.putInt(offset + SLOT_INFO_POSITION + slot * 8 + 4, (int) crc.getValue());
+    }
+
+    /**
+     * @return the payload of the current slot, null if neither slot is intact
+     */
+    @Nullable
+    private ByteBuffer payload(int offset) {
+        int active = buffer.get(offset + ACTIVE_SLOT_POSITION);
+        ByteBuffer payload = slot(offset, active);
+        return payload != null ? payload : slot(offset, 1 - active);
+    }
+
+    /**
+     * @return the active slot, or the other slot if the active one was torn by a crash
+     */
+    private int currentSlot(int offset) {
+        int active = buffer.get(offset + ACTIVE_SLOT_POSITION);
+        return slot(offset, active) == null && slot(offset, 1 - active) != null ? 1 - active : active;
+    }
+
+    @Nullable
+    private ByteBuffer slot(int offset, int slot) {
+        int length = buffer.getInt(offset + SLOT_INFO_POSITION + slot * 8);
+        if (length < 0 || length > buffer.getInt(offset)) {
+            return null;
+        }
+
+        ByteBuffer view = view(slotPosition(offset, slot));
+        view.limit(view.position() + length);
+        ByteBuffer payload = view.slice();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue() == buffer.getInt(offset + SLOT_INFO_POSITION + slot * 8 + 4) ? payload : null;
+    }
+
+    private int slotPosition(int offset, int slot) {
+        return offset + RECORD_HEADER_SIZE + slot * buffer.getInt(offset);
+    }
+
+    /**
+     * @return the user id of a record, null if it has none or is unreadable
+     */
+    @Nullable
+    private String userId(int offset) {
+        ByteBuffer payload = payload(offset);
+        if (payload == null) {
+            return null;
+        }
+        readString(payload);
+        return readString(payload);
+    }
+
+    /**
+     * @return a view positioned at the offset, so concurrent readers don't share a position
+     */
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view;
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer view) {
+        short length = view.getShort();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String key(@Nullable String identityProvider, String userId) {
+        return (identityProvider + "|" + userId).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,382 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.philippheuer.credentialmanager.api.IStorageBackend;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Partitions the credentials into one JSON file per identity provider and user id hash bucket.
+ * <p>
+ * Every shard has its own lock, so writes to unrelated shards don't wait for each other, and only shards whose content
+ * changed are rewritten. Shards are loaded in parallel on startup.
+ * Credentials without a user id (e.g. app access tokens) are kept in the first bucket of their identity provider.
+ */
+@Slf4j
+public class ShardedFileStorageBackend implements IStorageBackend {
+
+    private static final String SHARD_SUFFIX = ".json";
+
+    private final ObjectMapper objectMapper;
+
+    private final JavaType listType;
+
+    private final Path directory;
+
+    /**
+     * Number of hash buckets per identity provider
+     */
+    private final int buckets;
+
+    private final StorageDurability durability;
+
+    /**
+     * Shards by file name
+     */
+    private final ConcurrentMap<String, Shard> shards = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link ShardedFileStorageBackend} with 16 buckets per identity provider
+     *
+     * @param directory       the directory holding the shard files, created if it doesn't exist
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     */
+    public <T extends Credential> ShardedFileStorageBackend(@NotNull File directory, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass) {
+        this(directory, mapper, credentialClass, 16, StorageDurability.NONE);
+    }
+
+    /**
+     * Creates a {@link ShardedFileStorageBackend}
+     *
+     * @param directory       the directory holding the shard files, created if it doesn't exist
+     * @param mapper          object mapper
+     * @param credentialClass credential class
+     * @param buckets         number of hash buckets per identity provider
+     * @param durability      durability of shard writes
+     */
+    @SneakyThrows
+    public <T extends Credential> ShardedFileStorageBackend(@NotNull File directory, @NotNull ObjectMapper mapper, @NotNull Class<T> credentialClass, int buckets, @NotNull StorageDurability durability) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets must be positive");
+        }
+
+        this.objectMapper = mapper.registerModule(new JavaTimeModule());
+        this.listType = mapper.getTypeFactory().constructCollectionType(List.class, credentialClass);
+        this.directory = directory.toPath();
+        this.buckets = buckets;
+        this.durability = durability;
+
+        Files.createDirectories(this.directory);
+        load();
+    }
+
+    @Override
+    public List<Credential> loadCredentials() {
+        List<Credential> credentials = new ArrayList<>();
+        for (Shard shard : sortedShards()) {
+            credentials.addAll(shard.getCredentials());
+        }
+        return credentials;
+    }
+
+    /**
+     * Replaces all stored credentials, rewriting only the shards whose content changed
+     *
+     * @param credentials the credentials to store
+     */
+    @Override
+    public void saveCredentials(List<Credential> credentials) {
+        Map<String, List<Credential>> partitions = partition(credentials);
+        for (String name : shards.keySet()) {
+            partitions.putIfAbsent(name, Collections.emptyList());
+        }
+
+        partitions.forEach((name, partition) -> shard(name).replace(partition));
+    }
+
+    @Override
+    public Optional<Credential> getCredentialByUserId(String userId) {
+        if (userId == null) {
+            return Optional.empty();
+        }
+
+        String bucketSuffix = "#" + bucket(userId) + SHARD_SUFFIX;
+        for (Shard shard : sortedShards()) {
+            if (shard.name.endsWith(bucketSuffix)) {
+                Optional<Credential> credential = shard.getCredentials().stream().filter(c -> Objects.equals(userId, c.getUserId())).findAny();
+                if (credential.isPresent()) {
+                    return credential;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        partition(credentials).forEach((name, partition) -> shard(name).upsertAll(partition));
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        Shard shard = shards.get(shardName(identityProvider, userId));
+        return shard != null && shard.removeIf(c -> c.matches(identityProvider, userId));
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        Shard shard = shards.get(shardName(credential.getIdentityProvider(), credential.getUserId()));
+        return shard != null && shard.removeIf(c -> c == credential || (credential.getUserId() != null && c.matches(credential.getIdentityProvider(), credential.getUserId())));
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        String prefix = encode(identityProvider) + "#";
+        List<Credential> credentials = new ArrayList<>();
+        for (Shard shard : sortedShards()) {
+            if (shard.name.startsWith(prefix)) {
+                credentials.addAll(shard.getCredentials());
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public Iterator<Credential> credentialIterator() {
+        return loadCredentials().iterator();
+    }
+
+    /**
+     * Reads all shard files in parallel, moving credentials that are in the wrong shard (e.g. after changing the bucket count)
+     * <p>
+     * Moved credentials are first added to their destination shards, and only then removed from their source shards, so a
+     * crash in between leaves a copy behind instead of losing them. Copies are dropped by the next load.
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*#*" + SHARD_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+
+        Map<String, List<Credential>> loaded = files.parallelStream()
+            .collect(Collectors.toConcurrentMap(f -> f.getFileName().toString(), this::read));
+
+        Map<String, List<Credential>> partitions = new TreeMap<>();
+        Set<String> keys = new HashSet<>();
+        new TreeMap<>(loaded).forEach((name, credentials) -> {
+            partitions.computeIfAbsent(name, k -> new ArrayList<>());
+            for (Credential credential : credentials) {
+                // skip the copies left behind by a redistribution that was interrupted
+                if (credential.getUserId() == null || keys.add((credential.getIdentityProvider() + "|" + credential.getUserId()).toLowerCase(Locale.ROOT))) {
+                    partitions.computeIfAbsent(shardName(credential.getIdentityProvider(), credential.getUserId()), k -> new ArrayList<>()).add(credential);
+                }
+            }
+        });
+
+        // destination shards first, keeping the credentials that move out of them until the second pass
+        partitions.forEach((name, partition) -> {
+            List<Credential> previous = loaded.getOrDefault(name, Collections.emptyList());
+            Set<Credential> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+            kept.addAll(previous);
+            List<Credential> union = new ArrayList<>(previous);
+            partition.stream().filter(c -> !kept.contains(c)).forEach(union::add);
+            if (union.size() > previous.size()) {
+                log.info("Moving credentials into shard {}", name);
+                shard(name).replace(union);
+            }
+        });
+
+        // then the source shards and the final content of the destination shards
+        partitions.forEach((name, partition) -> {
+            Shard shard = shard(name);
+            if (partition.equals(loaded.get(name))) {
+                shard.loaded(partition);
+            } else {
+                log.info("Redistributing credential shard {}", name);
+                shard.replace(partition);
+            }
+        });
+    }
+
+    private List<Credential> read(Path file) {
+        try {
+            if (Files.size(file) == 0) {
+                return new ArrayList<>();
+            }
+            return objectMapper.readValue(file.toFile(), listType);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read credential shard " + file, e);
+        }
+    }
+
+    private Map<String, List<Credential>> partition(Collection<? extends Credential> credentials) {
+        Map<String, List<Credential>> partitions = new LinkedHashMap<>();
+        for (Credential credential : credentials) {
+            partitions.computeIfAbsent(shardName(credential.getIdentityProvider(), credential.getUserId()), k -> new ArrayList<>()).add(credential);
+        }
+        return partitions;
+    }
+
+    private Shard shard(String name) {
+        return shards.computeIfAbsent(name, n -> new Shard(n, directory.resolve(n)));
+    }
+
+    private List<Shard> sortedShards() {
+        return shards.values().stream().sorted((a, b) -> a.name.compareTo(b.name)).collect(Collectors.toList());
+    }
+
+    private String shardName(@Nullable String identityProvider, @Nullable String userId) {
+        return encode(identityProvider) + "#" + (userId == null ? 0 : bucket(userId)) + SHARD_SUFFIX;
+    }
+
+    private int bucket(String userId) {
+        int hash = userId.toLowerCase(Locale.ROOT).hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), buckets);
+    }
+
+    /**
+     * @return file name safe identity provider name, which never contains the '#' separator
+     */
+    @SneakyThrows
+    private static String encode(@Nullable String identityProvider) {
+        return identityProvider == null ? "" : URLEncoder.encode(identityProvider.toLowerCase(Locale.ROOT), "UTF-8");
+    }
+
+    @SneakyThrows
+    private byte[] serialize(List<Credential> credentials) {
+        return objectMapper.writeValueAsBytes(credentials);
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One shard file and its credentials
+     */
+    private final class Shard {
+        private final String name;
+        private final Path file;
+        private List<Credential> credentials = new ArrayList<>();
+
+        /**
+         * Digest of the content last written or read, null if the file doesn't reflect the content
+         */
+        private byte[] digest;
+
+        Shard(String name, Path file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        synchronized List<Credential> getCredentials() {
+            return new ArrayList<>(credentials);
+        }
+
+        synchronized void loaded(List<Credential> credentials) {
+            this.credentials = new ArrayList<>(credentials);
+            this.digest = digest(serialize(this.credentials));
+        }
+
+        synchronized void replace(List<Credential> credentials) {
+            this.credentials = new ArrayList<>(credentials);
+            write();
+        }
+
+        synchronized void upsertAll(List<Credential> upserted) {
+            for (Credential credential : upserted) {
+                int index = indexOf(credential);
+                if (index >= 0) {
+                    credentials.set(index, credential);
+                } else {
+                    credentials.add(credential);
+                }
+            }
+            write();
+        }
+
+        synchronized boolean removeIf(Predicate<Credential> filter) {
+            if (!credentials.removeIf(filter)) {
+                return false;
+            }
+            write();
+            return true;
+        }
+
+        private int indexOf(Credential credential) {
+            for (int i = 0; i < credentials.size(); i++) {
+                Credential existing = credentials.get(i);
+                if (existing == credential || (credential.getUserId() != null && existing.matches(credential.getIdentityProvider(), credential.getUserId()))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the shard, unless the file already holds the same content
+         */
+        private void write() {
+            byte[] content = serialize(credentials);
+            byte[] contentDigest = digest(content);
+            if (MessageDigest.isEqual(contentDigest, digest)) {
+                return;
+            }
+
+            try {
+                if (credentials.isEmpty()) {
+                    Files.deleteIfExists(file);
+                } else {
+                    AtomicFiles.write(file, content, durability != StorageDurability.NONE);
+                }
+                digest = contentDigest;
+            } catch (IOException e) {
+                digest = null;
+                throw new UncheckedIOException("Failed to write credential shard " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+/**
+ * How far a file based storage backend goes to ensure a completed save survives a crash
+ */
+public enum StorageDurability {
+
+    /**
+     * The file is replaced atomically, but the data may still be in the OS page cache when the save returns
+     */
+    NONE,
+
+    /**
+     * Every save is flushed to disk before it returns. A save that was overtaken by a concurrent save returns once that one
+     * was flushed, as it already holds its state, so concurrent saves share a single flush
+     */
+    FSYNC
+
+}
@@ -2,25 +2,104 @@ package com.github.philippheuer.credentialmanager.storage;
 
 import com.github.philippheuer.credentialmanager.api.IStorageBackend;
 import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Keeps the credentials in memory only, e.g. for short-lived processes.
+ * <p>
+ * Lookups don't lock, the credentials are indexed in concurrent maps by instance, by identity provider and user id,
+ * and by user id. Writes are serialized.
+ * OAuth2 credentials that expired and can't be refreshed, as they have no refresh token, are skipped by lookups and
+ * evicted at most once per sweep interval. With a maximum size, the oldest credentials are evicted once it is exceeded.
+ */
+@Slf4j
 public class TemporaryStorageBackend implements IStorageBackend {
 
+    private final int maximumSize;
+
+    private final long sweepIntervalNanos;
+
+    /**
+     * Serializes writes
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Orders the credentials by insertion
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
     /**
      * Holds the Credentials
      */
-    private List<Credential> credentialStorage = new ArrayList<>();
+    private volatile State state = new State();
+
+    private volatile long nextSweepNanos;
+
+    /**
+     * Creates an unbounded {@link TemporaryStorageBackend}
+     */
+    public TemporaryStorageBackend() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@link TemporaryStorageBackend} that evicts expired credentials every minute
+     *
+     * @param maximumSize maximum number of credentials, the oldest are evicted once it is exceeded
+     */
+    public TemporaryStorageBackend(int maximumSize) {
+        this(maximumSize, Duration.ofMinutes(1));
+    }
+
+    /**
+     * Creates a {@link TemporaryStorageBackend}
+     *
+     * @param maximumSize   maximum number of credentials, the oldest are evicted once it is exceeded
+     * @param sweepInterval minimum time between two evictions of expired credentials
+     */
+    public TemporaryStorageBackend(int maximumSize, @NotNull Duration sweepInterval) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+
+        this.maximumSize = maximumSize;
+        this.sweepIntervalNanos = sweepInterval.toNanos();
+        this.nextSweepNanos = System.nanoTime() + sweepIntervalNanos;
+    }
 
     /**
      * Load the Credentials
      *
      * @return List Credential
      */
+    @Override
     public List<Credential> loadCredentials() {
-        return this.credentialStorage;
+        List<Credential> credentials = new ArrayList<>();
+        for (Entry entry : state.bySequence.values()) {
+            if (!isEvictable(entry.credential)) {
+                credentials.add(entry.credential);
+            }
+        }
+        sweepIfDue();
+        return credentials;
     }
 
     /**
@@ -28,8 +107,21 @@ public class TemporaryStorageBackend implements IStorageBackend {
      *
      * @param credentials List Credential
      */
+    @Override
     public void saveCredentials(List<Credential> credentials) {
-        this.credentialStorage = credentials;
+        writeLock.lock();
+        try {
+            State replacement = new State();
+            if (credentials != null) {
+                for (Credential credential : credentials) {
+                    upsert(replacement, credential);
+                }
+            }
+            this.state = replacement;
+            evictOverflow();
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -38,14 +130,286 @@ public class TemporaryStorageBackend implements IStorageBackend {
      * @param userId User Id
      * @return Credential
      */
+    @Override
     public Optional<Credential> getCredentialByUserId(String userId) {
-        for (Credential cred : credentialStorage) {
-            if (cred.getUserId().equalsIgnoreCase(userId)) {
-                return Optional.of(cred);
-            }
+        if (userId == null) {
+            return Optional.empty();
         }
 
+        List<Entry> entries = state.byUserId.getOrDefault(fold(userId), Collections.emptyList());
+        sweepIfDue();
+        for (Entry entry : entries) {
+            Credential credential = entry.credential;
+            if (userId.equalsIgnoreCase(credential.getUserId()) && !isEvictable(credential)) {
+                return Optional.of(credential);
+            }
+        }
         return Optional.empty();
     }
 
+    @Override
+    public void upsert(Credential credential) {
+        upsertAll(Collections.singletonList(credential));
+    }
+
+    @Override
+    public void upsertAll(Collection<? extends Credential> credentials) {
+        if (credentials.isEmpty()) {
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            State current = this.state;
+            for (Credential credential : credentials) {
+                upsert(current, credential);
+            }
+            evictOverflow();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String identityProvider, String userId) {
+        if (userId == null) {
+            return false;
+        }
+
+        writeLock.lock();
+        try {
+            State current = this.state;
+            Entry entry = current.byKey.get(key(identityProvider, userId));
+            return entry != null && current.remove(entry);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(Credential credential) {
+        writeLock.lock();
+        try {
+            State current = this.state;
+            Entry entry = current.find(credential);
+            return entry != null && current.remove(entry);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Credential> findByProvider(String identityProvider) {
+        List<Credential> credentials = new ArrayList<>();
+        for (Entry entry : state.bySequence.values()) {
+            Credential credential = entry.credential;
+            if (identityProvider.equalsIgnoreCase(credential.getIdentityProvider()) && !isEvictable(credential)) {
+                credentials.add(credential);
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * Evicts the OAuth2 credentials that expired and have no refresh token
+     *
+     * @return the number of evicted credentials
+     */
+    public int evictExpired() {
+        writeLock.lock();
+        try {
+            return evictExpiredLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of stored credentials, including expired credentials that weren't evicted yet
+     */
+    public int size() {
+        return state.size;
+    }
+
+    private void upsert(State target, Credential credential) {
+        Entry existing = target.find(credential);
+        Entry entry = new Entry(credential, existing != null ? existing.sequence : sequence.incrementAndGet());
+
+        // index the new entry before removing the previous one, so lookups never miss the credential
+        target.add(entry);
+        if (existing != null) {
+            target.remove(existing);
+        }
+    }
+
+    private void evictOverflow() {
+        State current = this.state;
+        if (current.size <= maximumSize) {
+            return;
+        }
+
+        evictExpiredLocked();
+        int evicted = 0;
+        while (current.size > maximumSize) {
+            Map.Entry<Long, Entry> oldest = current.bySequence.firstEntry();
+            current.remove(oldest.getValue());
+            evicted++;
+        }
+        if (evicted > 0) {
+            log.debug("Evicted the {} oldest credentials to stay within the maximum size of {}", evicted, maximumSize);
+        }
+    }
+
+    private void sweepIfDue() {
+        if (System.nanoTime() - nextSweepNanos >= 0 && writeLock.tryLock()) {
+            try {
+                evictExpiredLocked();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private int evictExpiredLocked() {
+        nextSweepNanos = System.nanoTime() + sweepIntervalNanos;
+
+        State current = this.state;
+        int evicted = 0;
+        for (Iterator<Entry> iterator = current.bySequence.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (isEvictable(entry.credential) && current.remove(entry)) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            log.debug("Evicted {} expired credentials", evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return true if the credential is an expired OAuth2 credential without a refresh token
+     */
+    private static boolean isEvictable(Credential credential) {
+        if (!(credential instanceof OAuth2Credential)) {
+            return false;
+        }
+
+        OAuth2Credential oAuth2Credential = (OAuth2Credential) credential;
+        return oAuth2Credential.getRefreshToken() == null
+            && oAuth2Credential.getIssuedAt() != null
+            && oAuth2Credential.getExpiresIn() != null
+            && oAuth2Credential.isExpired();
+    }
+
+    private static String key(String identityProvider, String userId) {
+        return fold(identityProvider) + "\0" + fold(userId);
+    }
+
+    private static String fold(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Stored credential with the keys it was indexed under
+     */
+    private static final class Entry {
+        private final Credential credential;
+        private final long sequence;
+        private final InstanceKey instanceKey;
+        private final String key;
+        private final String userKey;
+
+        Entry(Credential credential, long sequence) {
+            this.credential = credential;
+            this.sequence = sequence;
+            this.instanceKey = new InstanceKey(credential);
+            this.key = credential.getUserId() != null ? key(credential.getIdentityProvider(), credential.getUserId()) : null;
+            this.userKey = credential.getUserId() != null ? fold(credential.getUserId()) : null;
+        }
+    }
+
+    /**
+     * Identity based map key, credentials are mutable and implement value equality
+     */
+    private static final class InstanceKey {
+        private final Credential credential;
+
+        InstanceKey(Credential credential) {
+            this.credential = credential;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InstanceKey && ((InstanceKey) o).credential == this.credential;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(credential);
+        }
+    }
+
+    /**
+     * The indexes, modified under the write lock and read without locking
+     */
+    private static final class State {
+        private final ConcurrentSkipListMap<Long, Entry> bySequence = new ConcurrentSkipListMap<>();
+        private final ConcurrentMap<InstanceKey, Entry> byInstance = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Entry> byKey = new ConcurrentHashMap<>();
+
+        /**
+         * Entries by case-folded user id, the lists are replaced rather than modified
+         */
+        private final ConcurrentMap<String, List<Entry>> byUserId = new ConcurrentHashMap<>();
+
+        private volatile int size;
+
+        Entry find(Credential credential) {
+            Entry entry = byInstance.get(new InstanceKey(credential));
+            if (entry == null && credential.getUserId() != null) {
+                entry = byKey.get(key(credential.getIdentityProvider(), credential.getUserId()));
+            }
+            return entry;
+        }
+
+        void add(Entry entry) {
+            if (bySequence.put(entry.sequence, entry) == null) {
+                size++;
+            }
+            byInstance.put(entry.instanceKey, entry);
+            if (entry.key != null) {
+                byKey.put(entry.key, entry);
+                byUserId.compute(entry.userKey, (k, entries) -> {
+                    List<Entry> updated = entries == null ? new ArrayList<>(1) : new ArrayList<>(entries);
+                    updated.add(entry);
+                    return updated;
+                });
+            }
+        }
+
+        boolean remove(Entry entry) {
+            if (!bySequence.remove(entry.sequence, entry)) {
+                // replaced by a newer entry with the same sequence, only drop the indexes the newer entry doesn't share
+                removeIndexes(entry);
+                return false;
+            }
+
+            size--;
+            removeIndexes(entry);
+            return true;
+        }
+
+        private void removeIndexes(Entry entry) {
+            byInstance.remove(entry.instanceKey, entry);
+            if (entry.key != null) {
+                byKey.remove(entry.key, entry);
+                byUserId.computeIfPresent(entry.userKey, (k, entries) -> {
+                    List<Entry> updated = new ArrayList<>(entries);
+                    updated.remove(entry);
+                    return updated.isEmpty() ? null : updated;
+                });
+            }
+        }
+    }
 }
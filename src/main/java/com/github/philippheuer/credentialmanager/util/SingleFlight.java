@@ -0,0 +1,148 @@
+package com.github.philippheuer.credentialmanager.util;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent executions of the same operation.
+ * <p>
+ * The first caller for a key executes the operation, callers arriving while it is in flight wait for and share its result.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public final class SingleFlight<K, V> {
+
+    /**
+     * In-flight operations by key
+     */
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong executions = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Executes the operation, unless an operation for the same key is already in flight
+     *
+     * @param key       the key identifying the operation
+     * @param operation the operation
+     * @return the result of the operation executed by this or a concurrent caller
+     * @throws RuntimeException the exception thrown by the operation
+     */
+    public V execute(@NotNull K key, @NotNull Supplier<V> operation) {
+        calls.incrementAndGet();
+
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return join(existing);
+        }
+
+        executions.incrementAndGet();
+        try {
+            V result = operation.get();
+            created.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, created);
+        }
+    }
+
+    /**
+     * Starts the asynchronous operation, unless an operation for the same key is already in flight
+     * <p>
+     * Synchronous and asynchronous callers of the same key share one execution.
+     *
+     * @param key       the key identifying the operation
+     * @param operation starts the operation
+     * @return the result of the operation started by this or a concurrent caller
+     */
+    public CompletableFuture<V> executeAsync(@NotNull K key, @NotNull Supplier<CompletableFuture<V>> operation) {
+        calls.incrementAndGet();
+
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.thenApply(Function.identity()); // callers must not be able to complete the shared future
+        }
+
+        executions.incrementAndGet();
+        CompletableFuture<V> started;
+        try {
+            started = operation.get();
+        } catch (RuntimeException | Error e) {
+            started = new CompletableFuture<>();
+            started.completeExceptionally(e);
+        }
+        started.whenComplete((result, ex) -> {
+            inFlight.remove(key, created);
+            if (ex != null) {
+                created.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+            } else {
+                created.complete(result);
+            }
+        });
+        return created.thenApply(Function.identity());
+    }
+
+    /**
+     * @return the execution counters
+     */
+    public Statistics getStatistics() {
+        return new Statistics(calls.get(), executions.get(), coalesced.get(), inFlight.size());
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Execution Counters
+     */
+    @Value
+    public static class Statistics {
+
+        /**
+         * Total number of calls
+         */
+        long calls;
+
+        /**
+         * Number of calls that executed the operation
+         */
+        long executions;
+
+        /**
+         * Number of calls that waited for an operation already in flight
+         */
+        long coalesced;
+
+        /**
+         * Number of operations currently in flight
+         */
+        int inFlight;
+    }
+}
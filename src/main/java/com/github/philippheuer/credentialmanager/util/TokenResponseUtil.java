@@ -1,12 +1,61 @@
 package com.github.philippheuer.credentialmanager.util;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.github.philippheuer.credentialmanager.domain.TokenResponse;
 import lombok.experimental.UtilityClass;
 import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 @UtilityClass
 @ApiStatus.Internal
 public class TokenResponseUtil {
+    /**
+     * Reader of token responses, thread-safe and reused so the deserializers are only resolved once
+     */
+    private final ObjectReader TOKEN_RESPONSE_READER = new ObjectMapper()
+        .readerFor(TokenResponse.class)
+        .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    /**
+     * Reads a token response, streaming from the response body without copying it into a string.
+     *
+     * @param body the response body
+     * @return the token response
+     * @throws IllegalArgumentException if an attribute is of an unexpected type or cannot be parsed
+     * @throws IOException              if the body is not a valid token response
+     */
+    public TokenResponse readTokenResponse(@NotNull InputStream body) throws IllegalArgumentException, IOException {
+        try {
+            return TOKEN_RESPONSE_READER.readValue(body);
+        } catch (JsonMappingException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Binds a token response from an already parsed body.
+     *
+     * @param body the response body
+     * @return the token response
+     * @throws IllegalArgumentException if an attribute is of an unexpected type or cannot be parsed
+     * @throws IOException              if the body is not a valid token response
+     */
+    public TokenResponse bindTokenResponse(@NotNull JsonNode body) throws IllegalArgumentException, IOException {
+        try {
+            return TOKEN_RESPONSE_READER.readValue(body);
+        } catch (JsonMappingException e) {
+            throw unwrap(e);
+        }
+    }
+
     /**
      * Parses the expires_in attribute from a token response.
      *
@@ -31,4 +80,14 @@ public class TokenResponseUtil {
 
         throw new IllegalArgumentException("Unsupported expires_in type: " + value.getClass().getName());
     }
+
+    /**
+     * Jackson wraps exceptions of deserializers, attributes of an unexpected type are reported as they were before
+     */
+    private IOException unwrap(JsonMappingException e) {
+        if (e.getCause() instanceof IllegalArgumentException) {
+            throw (IllegalArgumentException) e.getCause();
+        }
+        return e;
+    }
 }
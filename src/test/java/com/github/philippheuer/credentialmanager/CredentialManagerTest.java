@@ -1,15 +1,34 @@
 package com.github.philippheuer.credentialmanager;
 
+import com.github.philippheuer.credentialmanager.api.CredentialChangeListener;
 import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.FlushStatistics;
 import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
 import com.github.philippheuer.credentialmanager.identityprovider.DefaultOAuth2IdentityProvider;
+import com.github.philippheuer.credentialmanager.storage.TemporaryStorageBackend;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Slf4j
@@ -45,6 +64,374 @@ public class CredentialManagerTest {
 
         // asserts
         assertEquals(1, credentialManager.getCredentials().size(), "Credential wasn't added!");
+
+        // the returned list is a modifiable copy
+        List<Credential> credentials = credentialManager.getCredentials();
+        credentials.remove(credential);
+        assertEquals(1, credentialManager.getCredentials().size(), "Modifying the copy changed the managed credentials!");
+    }
+
+    /**
+     * Test - Credential Lookup
+     */
+    @Test
+    @DisplayName("Lookup a credential by user id")
+    public void getCredentialByUserId() {
+        // build
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add credential
+        OAuth2Credential credential = new OAuth2Credential("default", "tokenHere", null, "UserId", "userName", null, null);
+        credentialManager.addCredential("default", credential);
+
+        // asserts
+        assertEquals(credential, credentialManager.getOAuth2CredentialByUserId("userid").orElse(null), "Credential wasn't found by user id!");
+        assertEquals(credential, credentialManager.getOAuth2CredentialByUserId("DEFAULT", "USERID").orElse(null), "Credential wasn't found by provider and user id!");
+        assertFalse(credentialManager.getOAuth2CredentialByUserId("other", "userId").isPresent(), "Credential was found for an unknown provider!");
+    }
+
+    /**
+     * Test - Credential Lookup after a user id change
+     */
+    @Test
+    @DisplayName("Lookup a credential after its user id changed")
+    public void getCredentialByUpdatedUserId() {
+        // build
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add and update credential, the update is reported by the credential itself
+        OAuth2Credential credential = new OAuth2Credential("default", "tokenHere", null, "userId", "userName", null, null);
+        credentialManager.addCredential("default", credential);
+        credential.updateCredential(new OAuth2Credential("default", "newToken", null, "newUserId", null, null, null));
+
+        // asserts
+        assertFalse(credentialManager.getOAuth2CredentialByUserId("userId").isPresent(), "Credential was found by its previous user id!");
+        assertTrue(credentialManager.getOAuth2CredentialByUserId("newUserId").isPresent(), "Credential wasn't found by its new user id!");
+    }
+
+    /**
+     * Test - Concurrent Add Credential
+     */
+    @Test
+    @DisplayName("Add and save credentials concurrently")
+    public void concurrentAddCredential() throws InterruptedException {
+        // build
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add credentials while saving
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            String userId = String.valueOf(i % 500);
+            executor.execute(() -> credentialManager.addCredential("default", new OAuth2Credential("default", "tokenHere", null, userId, null, null, null)));
+            if (i % 100 == 0) {
+                executor.execute(credentialManager::save);
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // asserts
+        assertEquals(500, credentialManager.getCredentials().size(), "Credentials with the same user id weren't replaced!");
+        credentialManager.save();
+        assertEquals(500, credentialManager.getStorageBackend().loadCredentials().size(), "Credentials weren't saved!");
+    }
+
+    /**
+     * Test - Proactive Refresh
+     */
+    @Test
+    @DisplayName("Proactively refresh a credential before it expires")
+    public void proactiveRefresh() throws InterruptedException {
+        // build
+        CountDownLatch refreshed = new CountDownLatch(1);
+        List<Credential> upserted = Collections.synchronizedList(new ArrayList<>());
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void upsertAll(Collection<? extends Credential> credentials) {
+                upserted.addAll(credentials);
+                super.upsertAll(credentials);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder()
+            .withStorageBackend(storageBackend)
+            .withProactiveRefreshLeadTime(Duration.ofMinutes(5))
+            .withRefreshListener(credential -> refreshed.countDown())
+            .build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null) {
+            @Override
+            public boolean renew(Credential credential) {
+                OAuth2Credential oAuth2Credential = (OAuth2Credential) credential;
+                oAuth2Credential.updateCredential(new OAuth2Credential("default", "newToken", "newRefreshToken", null, null, Instant.now(), 3600, null, null));
+                return true;
+            }
+        });
+
+        // add a credential that expires soon
+        OAuth2Credential credential = new OAuth2Credential("default", "tokenHere", "refreshToken", "userId", "userName", Instant.now(), 2, null, null);
+        credentialManager.addCredential("default", credential);
+        credentialManager.save();
+        upserted.clear();
+
+        // asserts
+        assertTrue(refreshed.await(10, TimeUnit.SECONDS), "Credential wasn't refreshed!");
+        assertEquals("newToken", credential.getAccessToken());
+        assertTrue(upserted.contains(credential), "Credential renewed without credentialUpdated wasn't persisted!");
+        credentialManager.close();
+    }
+
+    /**
+     * Test - Refresh Scheduling
+     */
+    @Test
+    @DisplayName("Keep a single queued refresh per credential")
+    public void refreshScheduling() {
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().build();
+        CredentialRefresher refresher = new CredentialRefresher(credentialManager, Duration.ofMinutes(5), 1, credential -> {});
+        OAuth2Credential credential = new OAuth2Credential("default", "tokenHere", "refreshToken", "userId", "userName", Instant.now(), 3600, null, null);
+
+        // reschedule
+        refresher.schedule(credential);
+        refresher.schedule(credential);
+        assertEquals(1, refresher.size());
+        assertEquals(1, refresher.queued());
+
+        // cancel
+        refresher.cancel(credential);
+        assertEquals(0, refresher.size());
+        assertEquals(0, refresher.queued());
+
+        refresher.close();
+        credentialManager.close();
+    }
+
+    /**
+     * Test - Write-Behind Persistence
+     */
+    @Test
+    @DisplayName("Coalesce saves with write-behind persistence")
+    public void writeBehind() {
+        // build
+        AtomicInteger writes = new AtomicInteger();
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void saveCredentials(List<Credential> credentials) {
+                writes.incrementAndGet();
+                super.saveCredentials(credentials);
+            }
+
+            @Override
+            public void upsertAll(Collection<? extends Credential> credentials) {
+                writes.incrementAndGet();
+                super.upsertAll(credentials);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder()
+            .withStorageBackend(storageBackend)
+            .withWriteBehindDelay(Duration.ofHours(1))
+            .build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add and save credentials
+        for (int i = 0; i < 5; i++) {
+            credentialManager.addCredential("default", new OAuth2Credential("default", "tokenHere", null, "user" + i, null, null, null));
+            credentialManager.save();
+        }
+
+        // asserts
+        assertEquals(0, writes.get(), "Saves weren't deferred!");
+        assertEquals(10, credentialManager.getFlushStatistics().map(FlushStatistics::getPendingChanges).orElse(0));
+        credentialManager.close();
+        assertEquals(1, writes.get(), "Saves weren't coalesced into one write!");
+        assertEquals(5, storageBackend.loadCredentials().size(), "Credentials weren't flushed on close!");
+    }
+
+    /**
+     * Test - Write-Behind Persistence, closed during a flush
+     */
+    @Test
+    @DisplayName("Keep the changes of a slow flush that is running on close")
+    public void writeBehindCloseDuringFlush() throws InterruptedException {
+        // build
+        CountDownLatch flushStarted = new CountDownLatch(1);
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void upsertAll(Collection<? extends Credential> credentials) {
+                flushStarted.countDown();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // like interruptible file channels, an interrupted write fails
+                    throw new IllegalStateException(e);
+                }
+                super.upsertAll(credentials);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder()
+            .withStorageBackend(storageBackend)
+            .withWriteBehindDelay(Duration.ofHours(1))
+            .withWriteBehindMaxPendingChanges(1)
+            .build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // the change triggers an immediate flush in the background, close while it is running
+        credentialManager.addCredential("default", new OAuth2Credential("default", "tokenHere", null, "userId", null, null, null));
+        assertTrue(flushStarted.await(10, TimeUnit.SECONDS), "Flush wasn't started!");
+        credentialManager.close();
+
+        // asserts
+        assertTrue(storageBackend.getCredentialByUserId("userId").isPresent(), "Changes of the running flush were lost!");
+        assertEquals(0L, credentialManager.getFlushStatistics().map(FlushStatistics::getFailedFlushes).orElse(-1L));
+    }
+
+    /**
+     * Test - Fine-Grained Persistence
+     */
+    @Test
+    @DisplayName("Persist only the changed credentials")
+    public void saveChangedCredentials() {
+        // build
+        List<Credential> upserted = new ArrayList<>();
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void upsertAll(Collection<? extends Credential> credentials) {
+                upserted.addAll(credentials);
+                super.upsertAll(credentials);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().withStorageBackend(storageBackend).build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add, save, then change a single credential
+        OAuth2Credential first = new OAuth2Credential("default", "tokenHere", null, "first", null, null, null);
+        OAuth2Credential second = new OAuth2Credential("default", "tokenHere", null, "second", null, null, null);
+        credentialManager.addCredential("default", first);
+        credentialManager.addCredential("default", second);
+        credentialManager.save();
+        upserted.clear();
+
+        first.setAccessToken("newToken");
+        credentialManager.credentialUpdated(first, first.getUserId());
+        credentialManager.removeCredential(second);
+        credentialManager.saveChanges();
+
+        // asserts
+        assertEquals(1, upserted.size(), "Unchanged credentials were written!");
+        assertEquals(first, upserted.get(0));
+        assertEquals(1, storageBackend.loadCredentials().size(), "Removed credential wasn't deleted!");
+        assertEquals("newToken", ((OAuth2Credential) storageBackend.loadCredentials().get(0)).getAccessToken());
+    }
+
+    /**
+     * Test - Full Persistence
+     */
+    @Test
+    @DisplayName("Persist credentials modified without being reported")
+    public void saveUnreportedChanges() {
+        // build
+        AtomicInteger fullWrites = new AtomicInteger();
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void saveCredentials(List<Credential> credentials) {
+                fullWrites.incrementAndGet();
+                super.saveCredentials(credentials);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().withStorageBackend(storageBackend).build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add, then remove a credential without saving in between
+        OAuth2Credential first = new OAuth2Credential("default", "tokenHere", null, "first", null, null, null);
+        OAuth2Credential second = new OAuth2Credential("default", "tokenHere", null, "second", null, null, null);
+        credentialManager.addCredential("default", first);
+        credentialManager.addCredential("default", second);
+        credentialManager.removeCredential(second);
+        credentialManager.save();
+
+        // modify a credential in place without reporting it
+        first.setAccessToken("newToken");
+        credentialManager.save();
+
+        // asserts
+        assertEquals(2, fullWrites.get());
+        assertEquals(1, storageBackend.loadCredentials().size());
+        assertEquals("newToken", ((OAuth2Credential) storageBackend.loadCredentials().get(0)).getAccessToken());
+    }
+
+    /**
+     * Test - Persistence after a user id change
+     */
+    @Test
+    @DisplayName("Delete the previous key of a credential whose user id changed")
+    public void saveCredentialWithUpdatedUserId() {
+        // build
+        List<String> deletedUserIds = new ArrayList<>();
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public boolean delete(String identityProvider, String userId) {
+                deletedUserIds.add(userId);
+                return super.delete(identityProvider, userId);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().withStorageBackend(storageBackend).build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+
+        // add, save, then change the user id
+        OAuth2Credential credential = new OAuth2Credential("default", "tokenHere", null, "userId", null, null, null);
+        credentialManager.addCredential("default", credential);
+        credentialManager.saveChanges();
+        credential.updateCredential(new OAuth2Credential("default", "newToken", null, "newUserId", null, null, null));
+        credentialManager.saveChanges();
+
+        // asserts
+        assertEquals(1, deletedUserIds.size());
+        assertEquals("userId", deletedUserIds.get(0));
+        assertEquals(1, storageBackend.loadCredentials().size());
+        assertTrue(storageBackend.getCredentialByUserId("newUserId").isPresent(), "Credential wasn't stored under its new user id!");
+    }
+
+    /**
+     * Test - External Modifications
+     */
+    @Test
+    @DisplayName("Merge external modifications into the managed credentials")
+    public void applyStorageChanges() {
+        // build
+        AtomicReference<CredentialChangeListener> changeListener = new AtomicReference<>();
+        TemporaryStorageBackend storageBackend = new TemporaryStorageBackend() {
+            @Override
+            public void setChangeListener(CredentialChangeListener listener) {
+                changeListener.set(listener);
+            }
+        };
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().withStorageBackend(storageBackend).build();
+        credentialManager.registerIdentityProvider(new DefaultOAuth2IdentityProvider("default", "oauth2", null, null, null, null, null, null));
+        OAuth2Credential first = new OAuth2Credential("default", "tokenHere", "refreshToken", "first", null, null, null);
+        OAuth2Credential second = new OAuth2Credential("default", "tokenHere", "refreshToken", "second", null, null, null);
+        credentialManager.addCredential("default", first);
+        credentialManager.addCredential("default", second);
+        credentialManager.save();
+
+        // the second credential has a local change that wasn't persisted yet
+        second.setAccessToken("localToken");
+        credentialManager.credentialUpdated(second, second.getUserId());
+        changeListener.get().onCredentialsChanged(Arrays.asList(
+            new OAuth2Credential("default", "externalToken", "externalRefreshToken", "first", null, null, null),
+            new OAuth2Credential("default", "externalToken", "externalRefreshToken", "second", null, null, null)
+        ), Collections.emptyList());
+
+        // asserts
+        assertSame(first, credentialManager.getOAuth2CredentialByUserId("first").orElse(null), "Managed instance was replaced!");
+        assertEquals("externalRefreshToken", first.getRefreshToken());
+        assertEquals("localToken", credentialManager.getOAuth2CredentialByUserId("second").map(OAuth2Credential::getAccessToken).orElse(null), "Unpersisted local change was overwritten!");
+
+        // changes reported for the merged instance are persisted
+        first.setAccessToken("refreshedToken");
+        credentialManager.credentialUpdated(first, first.getUserId());
+        credentialManager.saveChanges();
+        assertEquals("refreshedToken", storageBackend.getCredentialByUserId("first").map(c -> ((OAuth2Credential) c).getAccessToken()).orElse(null));
     }
 
 }
@@ -3,6 +3,9 @@ package com.github.philippheuer.credentialmanager.domain;
 import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -24,6 +27,18 @@ public class OAuth2CredentialTest {
         assertEquals(7200, originalCred.getExpiresIn(), "ExpiresIn should be updated");
     }
 
+    @Test
+    void testUpdateCredential_NotifiesUpdateListener() {
+        OAuth2Credential originalCred = new OAuth2Credential("test", "original-token", null, "userId", "userName", null, null);
+        List<String> previousUserIds = new ArrayList<>();
+        originalCred.setUpdateListener((credential, previousUserId) -> previousUserIds.add(previousUserId));
+
+        originalCred.updateCredential(new OAuth2Credential("test", "updated-token", null, "userId2", null, null, null));
+
+        assertEquals(Collections.singletonList("userId"), previousUserIds, "Listener should receive the previous user id");
+        assertEquals(originalCred, new OAuth2Credential("test", "updated-token", null, "userId2", "userName", originalCred.getIssuedAt(), null, null, null), "Listener should not affect equality");
+    }
+
     @Test
     void testIsExpired_whenIssuedAtIsNull_returnsTrue() {
         OAuth2Credential credential = new OAuth2Credential("test", "token");
@@ -0,0 +1,86 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.CircuitBreakerStatistics;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CircuitBreakerTest {
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofHours(1));
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onSuccess(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        CircuitBreakerStatistics statistics = breaker.getStatistics();
+        assertEquals(3, statistics.getConsecutiveFailures());
+        assertEquals(1, statistics.getSuccesses());
+        assertEquals(5, statistics.getFailures());
+        assertEquals(1, statistics.getRejected());
+        assertEquals(1, statistics.getOpened());
+    }
+
+    @Test
+    void halfOpenProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(20));
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        Thread.sleep(30);
+        long probe = breaker.tryAcquire();
+        assertNotEquals(CircuitBreaker.REJECTED, probe, "Probe wasn't let through");
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire(), "Only one probe may be in flight");
+
+        // a failed probe opens the breaker again
+        breaker.onFailure(probe);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(30);
+        probe = breaker.tryAcquire();
+        assertNotEquals(CircuitBreaker.REJECTED, probe);
+        breaker.release(probe);
+        probe = breaker.tryAcquire();
+        assertNotEquals(CircuitBreaker.REJECTED, probe, "Released probe wasn't given back");
+        breaker.onSuccess(probe);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertNotEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        assertEquals(2, breaker.getStatistics().getOpened());
+    }
+
+    @Test
+    void ignoresOutcomesOfEarlierStates() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(20));
+        long late = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // a request sent before the breaker opened doesn't close it
+        breaker.onSuccess(late);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getStatistics().getSuccesses());
+
+        Thread.sleep(30);
+        long probe = breaker.tryAcquire();
+        breaker.release(late);
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire(), "A stale release gave back the probe");
+        breaker.onFailure(late);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(probe);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.CredentialManager;
+import com.github.philippheuer.credentialmanager.CredentialManagerBuilder;
+import com.github.philippheuer.credentialmanager.domain.WarmupStatistics;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionWarmerTest {
+
+    @Test
+    void prewarmedConnectionsAreReused() throws Exception {
+        AtomicInteger headRequests = new AtomicInteger();
+        HttpServer tokenServer = startServer(headRequests);
+        HttpServer deviceServer = startServer(headRequests);
+        try {
+            SharedHttpClient shared = SharedHttpClient.builder().build();
+            CredentialManager credentialManager = CredentialManagerBuilder.builder()
+                .withHttpClient(shared)
+                .withConnectionKeepWarmInterval(Duration.ofMillis(200))
+                .build();
+            String tokenHost = "http://127.0.0.1:" + tokenServer.getAddress().getPort();
+            String deviceHost = "http://127.0.0.1:" + deviceServer.getAddress().getPort();
+            DefaultOAuth2IdentityProvider provider = new DefaultOAuth2IdentityProvider("test", "oauth2", "client", "secret", tokenHost + "/authorize", tokenHost + "/token", deviceHost + "/device", null, "BODY", null);
+            credentialManager.registerIdentityProvider(provider, true);
+
+            awaitWarmup(provider);
+            WarmupStatistics statistics = provider.getWarmupStatistics().get();
+            assertEquals(2, statistics.getHosts(), "Auth and token endpoint share a host");
+            assertEquals(0, statistics.getFailedHosts());
+            assertEquals(2, shared.getStatistics().getConnectionsOpened());
+
+            assertEquals("token", provider.getAppAccessToken().getAccessToken());
+            assertEquals(2, shared.getStatistics().getConnectionsOpened(), "Prewarmed connection wasn't reused");
+
+            Thread.sleep(400);
+            assertEquals(0, provider.getWarmupStatistics().get().getKeepWarmRequests(), "Keep-warm requests were sent while the connections were pooled");
+
+            shared.getHttpClient().connectionPool().evictAll();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (provider.getWarmupStatistics().get().getKeepWarmRequests() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(provider.getWarmupStatistics().get().getKeepWarmRequests() >= 2, "No keep-warm requests were sent");
+
+            credentialManager.close();
+            shared.getHttpClient().connectionPool().evictAll();
+            long keepWarmRequests = provider.getWarmupStatistics().get().getKeepWarmRequests();
+            Thread.sleep(400);
+            assertEquals(keepWarmRequests, provider.getWarmupStatistics().get().getKeepWarmRequests(), "Keep-warm requests weren't stopped");
+            assertTrue(headRequests.get() >= 4);
+        } finally {
+            tokenServer.stop(0);
+            deviceServer.stop(0);
+        }
+    }
+
+    @Test
+    void notPrewarmedByDefault() {
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().build();
+        DefaultOAuth2IdentityProvider provider = new DefaultOAuth2IdentityProvider("test", "oauth2", null, null, null, null, null, null);
+        credentialManager.registerIdentityProvider(provider);
+        assertFalse(provider.getWarmupStatistics().isPresent());
+        credentialManager.close();
+    }
+
+    private static void awaitWarmup(OAuth2IdentityProvider provider) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getWarmupStatistics().get().getWarmupTime() == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(provider.getWarmupStatistics().get().getWarmupTime(), "Warmup didn't complete");
+    }
+
+    private static HttpServer startServer(AtomicInteger headRequests) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                headRequests.incrementAndGet();
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = "{\"access_token\":\"token\",\"token_type\":\"bearer\",\"expires_in\":3600}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OAuth2IdentityProviderTest {
+
+    @Test
+    void cachedAppAccessToken() {
+        List<String> requestedScopes = new ArrayList<>();
+        OAuth2IdentityProvider provider = new DefaultOAuth2IdentityProvider("test", "oauth2", null, null, null, null, null, null) {
+            @Override
+            public OAuth2Credential getAppAccessToken(String scope) {
+                requestedScopes.add(scope);
+                return new OAuth2Credential("test", "token" + requestedScopes.size(), null, null, null, 3600, null);
+            }
+        };
+
+        OAuth2Credential first = provider.getCachedAppAccessToken("b a");
+        assertSame(first, provider.getCachedAppAccessToken("a b a"));
+        assertEquals(1, requestedScopes.size());
+        assertEquals("a b", requestedScopes.get(0));
+
+        OAuth2Credential unscoped = provider.getCachedAppAccessToken(null);
+        assertNotSame(first, unscoped);
+        assertSame(unscoped, provider.getCachedAppAccessToken(""));
+        assertEquals(2, requestedScopes.size());
+
+        provider.invalidateAppAccessToken(first);
+        OAuth2Credential renewed = provider.getCachedAppAccessToken("a b");
+        assertNotSame(first, renewed);
+        assertEquals(3, requestedScopes.size());
+    }
+
+    @Test
+    void invalidateCachedAppAccessTokenWithoutAccessToken() {
+        OAuth2IdentityProvider provider = new DefaultOAuth2IdentityProvider("test", "oauth2", null, null, null, null, null, null) {
+            @Override
+            public OAuth2Credential getAppAccessToken(String scope) {
+                OAuth2Credential credential = new OAuth2Credential("test", "", null, null, null, 3600, null);
+                credential.setAccessToken(null);
+                return credential;
+            }
+        };
+
+        OAuth2Credential cached = provider.getCachedAppAccessToken(null);
+        provider.invalidateAppAccessToken(new OAuth2Credential("test", "other", null, null, null, 3600, null));
+        assertSame(cached, provider.getCachedAppAccessToken(null));
+
+        provider.invalidateAppAccessToken(cached);
+        assertNotSame(cached, provider.getCachedAppAccessToken(null));
+    }
+
+    @Test
+    void retriesThrottledRequests() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startTokenEndpoint(requests, 2, 503);
+        try {
+            OAuth2IdentityProvider provider = createProvider(server);
+            provider.setRetryPolicy(RetryPolicy.DEFAULT.withInitialBackoff(Duration.ofMillis(10)));
+
+            assertEquals("token", provider.getAppAccessToken().getAccessToken());
+            assertEquals(3, requests.get());
+
+            requests.set(0);
+            assertEquals("token", provider.getAppAccessTokenAsync(null).get().getAccessToken());
+            assertEquals(3, requests.get());
+            assertEquals(CircuitBreaker.State.CLOSED, provider.getCircuitBreakerStatistics().getState());
+            assertEquals(4, provider.getCircuitBreakerStatistics().getFailures());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void singleUseGrantsOnlyRetriedWithRetryAfter() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startTokenEndpoint(requests, 1, 502);
+        try {
+            OAuth2IdentityProvider provider = createProvider(server);
+            provider.setRetryPolicy(RetryPolicy.DEFAULT.withInitialBackoff(Duration.ofMillis(10)));
+
+            assertThrows(RuntimeException.class, () -> provider.getCredentialByCode("code"));
+            assertEquals(1, requests.get(), "The authorization code may have been redeemed, it must not be sent again");
+        } finally {
+            server.stop(0);
+        }
+
+        requests.set(0);
+        server = startTokenEndpoint(requests, 1, 503);
+        try {
+            OAuth2IdentityProvider provider = createProvider(server);
+            provider.setRetryPolicy(RetryPolicy.DEFAULT.withInitialBackoff(Duration.ofMillis(10)));
+
+            assertEquals("token", provider.getCredentialByCodeAsync("code").get().getAccessToken());
+            assertEquals(2, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void circuitBreakerFailsFast() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startTokenEndpoint(requests, Integer.MAX_VALUE, 500);
+        try {
+            OAuth2IdentityProvider provider = createProvider(server);
+            provider.setCircuitBreaker(new CircuitBreaker(2, Duration.ofHours(1)));
+
+            assertThrows(RuntimeException.class, provider::getAppAccessToken);
+            assertThrows(RuntimeException.class, provider::getAppAccessToken);
+            assertEquals(2, requests.get(), "Server errors other than 502-504 must not be retried");
+
+            RuntimeException e = assertThrows(RuntimeException.class, provider::getAppAccessToken);
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+            ExecutionException async = assertThrows(ExecutionException.class, () -> provider.getAppAccessTokenAsync(null).get());
+            assertTrue(async.getCause() instanceof CircuitBreakerOpenException);
+            assertEquals(2, requests.get());
+            assertEquals(CircuitBreaker.State.OPEN, provider.getCircuitBreakerStatistics().getState());
+            assertEquals(2, provider.getCircuitBreakerStatistics().getRejected());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void openBreakerDoesNotWaitForRateLimiter() {
+        OAuth2IdentityProvider provider = new DefaultOAuth2IdentityProvider("test", "oauth2", "breaker-client", "secret", null, "http://127.0.0.1:1/token", null, "BODY", null);
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofHours(1));
+        breaker.onFailure(breaker.tryAcquire());
+        provider.setCircuitBreaker(breaker);
+        provider.setRateLimit(1, Duration.ofHours(1));
+
+        RuntimeException e = assertThrows(RuntimeException.class, provider::getAppAccessToken);
+        assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        ExecutionException async = assertThrows(ExecutionException.class, () -> provider.getAppAccessTokenAsync(null).get(5, TimeUnit.SECONDS));
+        assertTrue(async.getCause() instanceof CircuitBreakerOpenException);
+        assertEquals(0, provider.getRateLimiterStatistics().get().getAcquired());
+        assertEquals(2, provider.getCircuitBreakerStatistics().getRejected());
+    }
+
+    private static OAuth2IdentityProvider createProvider(HttpServer server) {
+        String tokenUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/token";
+        return new DefaultOAuth2IdentityProvider("test", "oauth2", "client", "secret", null, tokenUrl, null, "BODY", null);
+    }
+
+    /**
+     * Answers the first failures with the status (and Retry-After: 0), then with a token
+     */
+    private static HttpServer startTokenEndpoint(AtomicInteger requests, int failures, int status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token", exchange -> {
+            if (requests.incrementAndGet() <= failures) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = "{\"access_token\":\"token\",\"token_type\":\"bearer\",\"expires_in\":3600}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+}
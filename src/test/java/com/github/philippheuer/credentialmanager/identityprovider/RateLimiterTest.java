@@ -0,0 +1,92 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.domain.RateLimiterStatistics;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    @Test
+    void tryAcquireWithinBurst() {
+        RateLimiter limiter = new RateLimiter(3, Duration.ofHours(1));
+        assertTrue(limiter.tryAcquire(RequestPriority.BACKGROUND));
+        assertTrue(limiter.tryAcquire(RequestPriority.BACKGROUND));
+        assertTrue(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+        assertFalse(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+
+        RateLimiterStatistics statistics = limiter.getStatistics();
+        assertEquals(0, statistics.getAvailablePermits());
+        assertEquals(3, statistics.getAcquired());
+        assertEquals(1, statistics.getRejected());
+    }
+
+    @Test
+    void blockingAcquireWaitsForRefill() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1, Duration.ofMillis(100));
+        limiter.acquire(RequestPriority.BACKGROUND);
+
+        long start = System.nanoTime();
+        limiter.acquire(RequestPriority.BACKGROUND);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waitedMillis >= 50, "Didn't wait for the refill: " + waitedMillis + "ms");
+        assertEquals(1, limiter.getStatistics().getDelayed());
+    }
+
+    @Test
+    void interactiveRequestsGoFirst() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, Duration.ofMillis(50));
+        assertTrue(limiter.tryAcquire(RequestPriority.BACKGROUND));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> first = limiter.acquireAsync(RequestPriority.BACKGROUND).thenRun(() -> order.add("background1"));
+        CompletableFuture<Void> cancelled = limiter.acquireAsync(RequestPriority.BACKGROUND);
+        CompletableFuture<Void> second = limiter.acquireAsync(RequestPriority.BACKGROUND).thenRun(() -> order.add("background2"));
+        CompletableFuture<Void> interactive = limiter.acquireAsync(RequestPriority.INTERACTIVE).thenRun(() -> order.add("interactive"));
+        cancelled.cancel(false);
+
+        assertFalse(limiter.tryAcquire(RequestPriority.INTERACTIVE), "Jumped the queue of waiting interactive requests");
+        assertEquals(2, limiter.getStatistics().getWaitingBackground());
+        assertEquals(1, limiter.getStatistics().getWaitingInteractive());
+
+        CompletableFuture.allOf(first, second, interactive).get(5, TimeUnit.SECONDS);
+        assertEquals(3, order.size());
+        assertEquals("interactive", order.get(0));
+        assertEquals("background1", order.get(1));
+        assertEquals("background2", order.get(2));
+        assertEquals(4, limiter.getStatistics().getAcquired());
+    }
+
+    @Test
+    void providersShareTheLimiterOfTheirClientId() {
+        OAuth2IdentityProvider first = new DefaultOAuth2IdentityProvider("first", "oauth2", "rate-limited-client", null, null, "https://id.example.com/oauth2/token", null, null);
+        OAuth2IdentityProvider second = new DefaultOAuth2IdentityProvider("second", "oauth2", "rate-limited-client", null, null, "https://id.example.com/oauth2/token", null, null);
+        first.setRateLimit(10, Duration.ofSeconds(1));
+        second.setRateLimit(10, Duration.ofSeconds(1));
+        assertSame(first.rateLimiter, second.rateLimiter);
+
+        // another limit or another token host never reconfigures the shared limiter
+        OAuth2IdentityProvider stricter = new DefaultOAuth2IdentityProvider("stricter", "oauth2", "rate-limited-client", null, null, "https://id.example.com/oauth2/token", null, null);
+        stricter.setRateLimit(5, Duration.ofSeconds(1));
+        OAuth2IdentityProvider otherHost = new DefaultOAuth2IdentityProvider("other-host", "oauth2", "rate-limited-client", null, null, "https://id.example.org/oauth2/token", null, null);
+        otherHost.setRateLimit(10, Duration.ofSeconds(1));
+        assertNotSame(first.rateLimiter, stricter.rateLimiter);
+        assertNotSame(first.rateLimiter, otherHost.rateLimiter);
+        assertEquals(10, first.getRateLimiterStatistics().get().getAvailablePermits());
+        assertEquals(5, stricter.getRateLimiterStatistics().get().getAvailablePermits());
+
+        assertFalse(new DefaultOAuth2IdentityProvider("third", "oauth2", "other", null, null, null, null, null).getRateLimiterStatistics().isPresent());
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+
+    @Test
+    void exponentialBackoffWithJitter() {
+        RetryPolicy policy = RetryPolicy.DEFAULT
+            .withMaxAttempts(5)
+            .withInitialBackoff(Duration.ofMillis(100))
+            .withMaxBackoff(Duration.ofMillis(300))
+            .withJitter(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            long first = policy.nextDelay(1, null).get().toMillis();
+            long second = policy.nextDelay(2, null).get().toMillis();
+            long capped = policy.nextDelay(4, null).get().toMillis();
+            assertTrue(first >= 50 && first <= 100, "first backoff out of range: " + first);
+            assertTrue(second >= 100 && second <= 200, "second backoff out of range: " + second);
+            assertTrue(capped >= 150 && capped <= 300, "capped backoff out of range: " + capped);
+        }
+        assertFalse(policy.nextDelay(5, null).isPresent());
+        assertFalse(RetryPolicy.NONE.nextDelay(1, null).isPresent());
+    }
+
+    @Test
+    void retryAfterReplacesBackoff() {
+        RetryPolicy policy = RetryPolicy.DEFAULT.withMaxRetryAfter(Duration.ofSeconds(10));
+
+        assertEquals(Duration.ofSeconds(7), policy.nextDelay(1, Duration.ofSeconds(7)).get());
+        assertFalse(policy.nextDelay(1, Duration.ofSeconds(11)).isPresent(), "Waited longer than the maximum Retry-After");
+        assertTrue(policy.honorsRetryAfter(429));
+        assertTrue(policy.honorsRetryAfter(503));
+        assertFalse(policy.honorsRetryAfter(502));
+        assertFalse(policy.isRetryable(400, true, null));
+        assertFalse(policy.isRetryable(500, true, null));
+    }
+
+    @Test
+    void singleUseRequests() {
+        RetryPolicy policy = RetryPolicy.DEFAULT;
+
+        assertTrue(policy.isRetryable(502, true, null));
+        assertFalse(policy.isRetryable(502, false, null), "The request may have been processed");
+        assertFalse(policy.isRetryable(503, false, null));
+        assertTrue(policy.isRetryable(503, false, Duration.ZERO));
+        assertTrue(policy.isRetryable(429, false, Duration.ofSeconds(1)));
+
+        assertTrue(policy.isRetryable(new SocketTimeoutException("timeout"), true));
+        assertFalse(policy.isRetryable(new SocketTimeoutException("timeout"), false), "The request may have been sent");
+        assertTrue(policy.isRetryable(new SocketTimeoutException("Connect timed out"), false));
+        assertTrue(policy.isRetryable(new ConnectException("Connection refused"), false));
+        assertTrue(policy.isRetryable(new UnknownHostException("id.example.com"), false));
+        assertFalse(policy.isRetryable(new IOException("unexpected end of stream"), false));
+    }
+
+    @Test
+    void parseRetryAfter() {
+        assertEquals(Duration.ofSeconds(120), RetryPolicy.parseRetryAfter(" 120 "));
+        assertEquals(Duration.ZERO, RetryPolicy.parseRetryAfter("-5"));
+        assertNull(RetryPolicy.parseRetryAfter(null));
+        assertNull(RetryPolicy.parseRetryAfter("soon"));
+
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        Duration delay = RetryPolicy.parseRetryAfter(date);
+        assertTrue(delay.getSeconds() > 50 && delay.getSeconds() <= 60, "unexpected delay: " + delay);
+        assertEquals(Duration.ZERO, RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+}
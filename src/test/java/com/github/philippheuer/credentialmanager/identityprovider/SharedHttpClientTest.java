@@ -0,0 +1,86 @@
+package com.github.philippheuer.credentialmanager.identityprovider;
+
+import com.github.philippheuer.credentialmanager.CredentialManager;
+import com.github.philippheuer.credentialmanager.CredentialManagerBuilder;
+import com.github.philippheuer.credentialmanager.domain.HttpClientStatistics;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedHttpClientTest {
+
+    @Test
+    void providersShareThePool() {
+        SharedHttpClient shared = SharedHttpClient.builder()
+            .withMaxIdleConnections(4)
+            .withKeepAlive(Duration.ofSeconds(30))
+            .withMaxRequestsPerHost(8)
+            .withReadTimeout(Duration.ofSeconds(5))
+            .withHttp2(false)
+            .build();
+        CredentialManager credentialManager = CredentialManagerBuilder.builder().withHttpClient(shared).build();
+
+        DefaultOAuth2IdentityProvider first = new DefaultOAuth2IdentityProvider("first", "oauth2", null, null, null, null, null, null);
+        DefaultOAuth2IdentityProvider second = new DefaultOAuth2IdentityProvider("second", "oauth2", null, null, null, null, null, null);
+        second.enableLoggingInterceptor();
+        credentialManager.registerIdentityProvider(first);
+        credentialManager.registerIdentityProvider(second);
+
+        assertSame(shared.getHttpClient().connectionPool(), first.httpClient.connectionPool());
+        assertSame(shared.getHttpClient().connectionPool(), second.httpClient.connectionPool());
+        assertSame(shared.getHttpClient().dispatcher(), second.httpClient.dispatcher());
+        assertEquals(8, second.httpClient.dispatcher().getMaxRequestsPerHost());
+        assertEquals(5000, second.httpClient.readTimeoutMillis());
+        assertEquals(1, second.httpClient.interceptors().size(), "Logging interceptor wasn't kept!");
+        credentialManager.close();
+
+        // providers without a shared client keep a client of their own
+        DefaultOAuth2IdentityProvider third = new DefaultOAuth2IdentityProvider("third", "oauth2", null, null, null, null, null, null);
+        DefaultOAuth2IdentityProvider fourth = new DefaultOAuth2IdentityProvider("fourth", "oauth2", null, null, null, null, null, null);
+        assertNotSame(third.httpClient.connectionPool(), fourth.httpClient.connectionPool());
+        assertNotSame(shared.getHttpClient().connectionPool(), third.httpClient.connectionPool());
+    }
+
+    @Test
+    void connectionStatistics() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            SharedHttpClient shared = SharedHttpClient.builder().build();
+            Request request = new Request.Builder().url("http://127.0.0.1:" + server.getAddress().getPort() + "/token").build();
+            for (int i = 0; i < 3; i++) {
+                try (Response response = shared.getHttpClient().newCall(request).execute()) {
+                    assertEquals("ok", response.body().string());
+                }
+            }
+
+            HttpClientStatistics statistics = shared.getStatistics();
+            assertEquals(1, statistics.getConnectionsOpened());
+            assertEquals(3, statistics.getConnectionsAcquired());
+            assertEquals(1, statistics.getIdleConnections());
+            assertTrue(statistics.getReuseRatio() > 0.6);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
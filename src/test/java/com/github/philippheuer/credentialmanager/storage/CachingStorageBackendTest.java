@@ -0,0 +1,88 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachingStorageBackendTest {
+
+    @Test
+    void cachesLookups() {
+        CountingStorageBackend delegate = new CountingStorageBackend();
+        CachingStorageBackend storage = new CachingStorageBackend(delegate, 100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+        OAuth2Credential credential = new OAuth2Credential("test", "token", null, "1", "user", 3600, null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(credential)));
+
+        assertTrue(storage.getCredentialByUserId("1").isPresent());
+        assertTrue(storage.getCredentialByUserId("1").isPresent());
+        assertFalse(storage.getCredentialByUserId("2").isPresent());
+        assertFalse(storage.getCredentialByUserId("2").isPresent());
+        assertEquals(2, delegate.lookups.get());
+
+        CachingStorageBackend.Statistics statistics = storage.getStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getNegativeHits());
+        assertEquals(2, statistics.getMisses());
+
+        // writes invalidate the cached entries, including unknown users
+        storage.upsert(new OAuth2Credential("test", "token2", null, "2", "user2", 3600, null));
+        assertTrue(storage.getCredentialByUserId("2").isPresent());
+        storage.delete("test", "1");
+        assertFalse(storage.getCredentialByUserId("1").isPresent());
+        assertEquals(4, delegate.lookups.get());
+    }
+
+    @Test
+    void doesNotCacheExpiredTokens() {
+        CountingStorageBackend delegate = new CountingStorageBackend();
+        CachingStorageBackend storage = new CachingStorageBackend(delegate, 100, Duration.ofMinutes(5), Duration.ZERO);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(new OAuth2Credential("test", "token", null, "1", "user", 0, null))));
+
+        storage.getCredentialByUserId("1");
+        storage.getCredentialByUserId("1");
+        storage.getCredentialByUserId("2");
+        storage.getCredentialByUserId("2");
+        assertEquals(4, delegate.lookups.get());
+    }
+
+    @Test
+    void evictsProbationFirst() {
+        CountingStorageBackend delegate = new CountingStorageBackend();
+        CachingStorageBackend storage = new CachingStorageBackend(delegate, 10, Duration.ofMinutes(5), Duration.ofMinutes(1));
+
+        // hit twice, so it is protected
+        storage.getCredentialByUserId("hot");
+        storage.getCredentialByUserId("hot");
+
+        // a scan over many users only churns the probation segment
+        for (int i = 0; i < 100; i++) {
+            storage.getCredentialByUserId("cold" + i);
+        }
+        int lookups = delegate.lookups.get();
+        storage.getCredentialByUserId("hot");
+        assertEquals(lookups, delegate.lookups.get());
+        assertEquals(91, storage.getStatistics().getEvictions());
+        assertEquals(10, storage.getStatistics().getSize());
+    }
+
+    private static class CountingStorageBackend extends TemporaryStorageBackend {
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public Optional<Credential> getCredentialByUserId(String userId) {
+            lookups.incrementAndGet();
+            return super.getCredentialByUserId(userId);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EncryptedStorageBackendTest {
+
+    private static final EncryptionKeyProvider KEY = EncryptionKeyProvider.of(new byte[32]);
+
+    @Test
+    void encryptsTokens() {
+        TemporaryStorageBackend delegate = new TemporaryStorageBackend();
+        EncryptedStorageBackend storage = new EncryptedStorageBackend(delegate, KEY);
+        OAuth2Credential user = new OAuth2Credential("test", "access", "refresh", "1", "user", null, null);
+        OAuth2Credential app = new OAuth2Credential("test", "app");
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(user, app)));
+
+        OAuth2Credential stored = (OAuth2Credential) delegate.loadCredentials().get(0);
+        assertTrue(stored.getAccessToken().startsWith("enc:v1:"));
+        assertTrue(stored.getRefreshToken().startsWith("enc:v1:"));
+        assertEquals("1", stored.getUserId());
+        assertNull(((OAuth2Credential) delegate.loadCredentials().get(1)).getRefreshToken());
+
+        List<Credential> loaded = new EncryptedStorageBackend(delegate, KEY).loadCredentials();
+        assertEquals(user, loaded.get(0));
+        assertEquals("app", ((OAuth2Credential) loaded.get(1)).getAccessToken());
+    }
+
+    @Test
+    void reusesCiphertextOfUnchangedTokens() {
+        TemporaryStorageBackend delegate = new TemporaryStorageBackend();
+        EncryptedStorageBackend storage = new EncryptedStorageBackend(delegate, KEY);
+        OAuth2Credential user = new OAuth2Credential("test", "access", "refresh", "1", "user", null, null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(user)));
+        String accessCiphertext = ((OAuth2Credential) delegate.loadCredentials().get(0)).getAccessToken();
+        String refreshCiphertext = ((OAuth2Credential) delegate.loadCredentials().get(0)).getRefreshToken();
+
+        user.setAccessToken("changed");
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(user)));
+        OAuth2Credential stored = (OAuth2Credential) delegate.loadCredentials().get(0);
+        assertNotEquals(accessCiphertext, stored.getAccessToken());
+        assertEquals(refreshCiphertext, stored.getRefreshToken());
+
+        // loaded credentials that were not modified are written back as they are
+        EncryptedStorageBackend reopened = new EncryptedStorageBackend(delegate, KEY);
+        List<Credential> loaded = reopened.loadCredentials();
+        reopened.saveCredentials(loaded);
+        assertEquals(stored.getAccessToken(), ((OAuth2Credential) delegate.loadCredentials().get(0)).getAccessToken());
+        assertEquals("changed", ((OAuth2Credential) loaded.get(0)).getAccessToken());
+    }
+
+    @Test
+    void bindsTokensToTheirRecord() {
+        TemporaryStorageBackend delegate = new TemporaryStorageBackend();
+        EncryptedStorageBackend storage = new EncryptedStorageBackend(delegate, KEY);
+        OAuth2Credential user = new OAuth2Credential("test", "access", null, "Alice", "alice", null, null);
+        OAuth2Credential other = new OAuth2Credential("test", "", null, "bob", "bob", null, null);
+        other.setAccessToken(null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(user, other)));
+        assertNull(((OAuth2Credential) delegate.loadCredentials().get(1)).getAccessToken());
+
+        // the user id is case-folded, the ciphertext of another record is rejected
+        OAuth2Credential stored = (OAuth2Credential) delegate.loadCredentials().get(0);
+        stored.setUserId("alice");
+        assertEquals("access", ((OAuth2Credential) storage.loadCredentials().get(0)).getAccessToken());
+        stored.setUserId("bob");
+        OAuth2Credential moved = (OAuth2Credential) storage.loadCredentials().get(0);
+        assertThrows(IllegalStateException.class, moved::getAccessToken);
+    }
+
+    @Test
+    void wrongKey() {
+        TemporaryStorageBackend delegate = new TemporaryStorageBackend();
+        new EncryptedStorageBackend(delegate, KEY).saveCredentials(new ArrayList<>(Arrays.asList(new OAuth2Credential("test", "access"))));
+
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        OAuth2Credential loaded = (OAuth2Credential) new EncryptedStorageBackend(delegate, EncryptionKeyProvider.of(otherKey)).loadCredentials().get(0);
+        assertThrows(IllegalStateException.class, loaded::getAccessToken);
+    }
+
+}
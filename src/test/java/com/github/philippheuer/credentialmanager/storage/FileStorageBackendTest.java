@@ -12,11 +12,27 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class FileStorageBackendTest {
@@ -75,4 +91,172 @@ class FileStorageBackendTest {
         assertEquals(expectedOutput, output);
     }
 
+    @Test
+    void concurrentSaves() throws Exception {
+        Files.write(path, new byte[0]);
+        FileStorageBackend storage = new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class, StorageDurability.FSYNC);
+
+        Set<String> submitted = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                List<Credential> credentials = new ArrayList<>();
+                for (int j = 0; j <= i; j++) {
+                    credentials.add(new OAuth2Credential("test", "token" + j));
+                }
+                submitted.add(OBJECT_MAPPER.writeValueAsString(credentials));
+                futures.add(executor.submit(() -> storage.saveCredentials(credentials)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the file holds exactly one of the submitted lists, the last saved one, and no temporary file is left behind
+        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        assertTrue(submitted.contains(content));
+        assertEquals(OBJECT_MAPPER.writeValueAsString(storage.loadCredentials()), content);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    void parallelLoad() throws IOException {
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            credentials.add(new OAuth2Credential("test", "token" + i, null, String.valueOf(i), "user" + i, null, null));
+        }
+        Files.write(path, new byte[0]);
+        new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class).saveCredentials(credentials);
+
+        AtomicLong progress = new AtomicLong();
+        FileStorageBackend storage = new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class, StorageDurability.NONE, new ForkJoinPool(4), (read, bytesRead, totalBytes) -> progress.set(read));
+        List<Credential> loaded = storage.loadCredentials();
+        assertEquals(1000, progress.get());
+        assertEquals(1000, loaded.size());
+        for (int i = 0; i < loaded.size(); i++) {
+            assertEquals(String.valueOf(i), loaded.get(i).getUserId()); // keeps the file order
+        }
+
+        // the iterator streams the file instead of copying the loaded list
+        Iterator<Credential> iterator = storage.credentialIterator();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(iterator.hasNext());
+            Credential credential = iterator.next();
+            assertEquals(String.valueOf(i), credential.getUserId());
+            assertNotSame(loaded.get(i), credential);
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void hotReload() throws Exception {
+        File watched = File.createTempFile("events4j-", "-hot-reload-test.json");
+        try {
+            OAuth2Credential unchanged = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+            OAuth2Credential changed = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+            OAuth2Credential removed = new OAuth2Credential("test", "token3", null, "3", "user3", null, null);
+            OAuth2Credential app = new OAuth2Credential("test", "app");
+            FileStorageBackend writer = new FileStorageBackend(watched, OBJECT_MAPPER, OAuth2Credential.class);
+            writer.saveCredentials(new ArrayList<>(Arrays.asList(unchanged, changed, removed, app)));
+
+            BlockingQueue<List<List<Credential>>> changes = new LinkedBlockingQueue<>();
+            try (FileStorageBackend storage = new FileStorageBackend(watched, OBJECT_MAPPER, OAuth2Credential.class)) {
+                storage.setChangeListener((upserted, deleted) -> changes.add(Arrays.asList(upserted, deleted)));
+                storage.enableHotReload();
+                Credential localApp = storage.loadCredentials().get(3);
+
+                // own writes are not reported
+                storage.saveCredentials(new ArrayList<>(storage.loadCredentials()));
+
+                // another process refreshes one token, removes one user and adds another
+                OAuth2Credential refreshed = new OAuth2Credential("test", "token2b", null, "2", "user2", null, null);
+                OAuth2Credential added = new OAuth2Credential("test", "token4", null, "4", "user4", null, null);
+                writer.saveCredentials(new ArrayList<>(Arrays.asList(unchanged, refreshed, added, app)));
+
+                List<List<Credential>> change = changes.poll(30, TimeUnit.SECONDS);
+                assertNotNull(change);
+                assertEquals(Arrays.asList("token2b", "token4"), Arrays.asList(((OAuth2Credential) change.get(0).get(0)).getAccessToken(), ((OAuth2Credential) change.get(0).get(1)).getAccessToken()));
+                assertEquals(1, change.get(1).size());
+                assertEquals("3", change.get(1).get(0).getUserId());
+                assertEquals(4, storage.loadCredentials().size());
+                assertTrue(changes.isEmpty());
+
+                // credentials without user id keep their local instance, so upserting it doesn't add a duplicate
+                assertTrue(storage.loadCredentials().stream().anyMatch(c -> c == localApp));
+                storage.upsert(localApp);
+                assertEquals(4, storage.loadCredentials().size());
+            }
+        } finally {
+            if (!watched.delete()) {
+                watched.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    void mergeConcurrentWriters() throws IOException {
+        Instant issuedAt = Instant.parse("2024-09-01T00:00:00Z");
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            credentials.add(new OAuth2Credential("test", "token" + i, "refresh" + i, String.valueOf(i), "user" + i, issuedAt, 3600, null, null));
+        }
+        Files.write(path, new byte[0]);
+        new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class).saveCredentials(credentials);
+
+        // two processes load the same state
+        FileStorageBackend first = new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class);
+        FileStorageBackend second = new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class);
+        List<List<Credential>> changes = new ArrayList<>();
+        second.setChangeListener((upserted, deleted) -> changes.add(Arrays.asList(upserted, deleted)));
+
+        // the first rotates the tokens of user 1 and 3 and removes user 4
+        List<Credential> firstCredentials = new ArrayList<>(first.loadCredentials());
+        rotate(firstCredentials.get(0), "first", issuedAt.plusSeconds(10));
+        rotate(firstCredentials.get(2), "first", issuedAt.plusSeconds(10));
+        firstCredentials.remove(3);
+        first.saveCredentials(firstCredentials);
+
+        // the second, unaware of it, rotates the tokens of user 2 and 3, issuing the token of user 3 last
+        List<Credential> secondCredentials = new ArrayList<>(second.loadCredentials());
+        rotate(secondCredentials.get(1), "second", issuedAt.plusSeconds(20));
+        rotate(secondCredentials.get(2), "second", issuedAt.plusSeconds(20));
+        second.saveCredentials(secondCredentials);
+
+        List<Credential> merged = new FileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class).loadCredentials();
+        assertEquals(3, merged.size());
+        assertEquals("refresh1-first", refreshToken(merged, "1"));
+        assertEquals("refresh2-second", refreshToken(merged, "2"));
+        assertEquals("refresh3-second", refreshToken(merged, "3"));
+        assertEquals(3, second.loadCredentials().size());
+
+        assertEquals(1, changes.size());
+        assertEquals(1, changes.get(0).get(0).size());
+        assertEquals("1", changes.get(0).get(0).get(0).getUserId());
+        assertEquals(1, changes.get(0).get(1).size());
+        assertEquals("4", changes.get(0).get(1).get(0).getUserId());
+
+        // the first picks up the changes of the second on its next save
+        first.saveCredentials(new ArrayList<>(first.loadCredentials()));
+        assertEquals("refresh2-second", refreshToken(first.loadCredentials(), "2"));
+        assertEquals("refresh3-second", refreshToken(first.loadCredentials(), "3"));
+    }
+
+    private static void rotate(Credential credential, String suffix, Instant issuedAt) {
+        OAuth2Credential oAuth2Credential = (OAuth2Credential) credential;
+        oAuth2Credential.setAccessToken(oAuth2Credential.getAccessToken() + "-" + suffix);
+        oAuth2Credential.setRefreshToken(oAuth2Credential.getRefreshToken() + "-" + suffix);
+        oAuth2Credential.setIssuedAt(issuedAt);
+    }
+
+    private static String refreshToken(List<Credential> credentials, String userId) {
+        return credentials.stream()
+            .filter(c -> userId.equals(c.getUserId()))
+            .map(c -> ((OAuth2Credential) c).getRefreshToken())
+            .findAny()
+            .orElse(null);
+    }
+
 }
@@ -0,0 +1,145 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JdbcStorageBackendTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private JdbcConnectionPool pool;
+
+    private JdbcStorageBackend storage;
+
+    @BeforeEach
+    void setUp() {
+        pool = JdbcConnectionPool.create("jdbc:h2:mem:credentials;DB_CLOSE_DELAY=-1", "sa", "");
+        storage = new JdbcStorageBackend(pool, OBJECT_MAPPER, OAuth2Credential.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.saveCredentials(new ArrayList<>());
+        pool.dispose();
+    }
+
+    @Test
+    void upsertAndQuery() {
+        OAuth2Credential first = new OAuth2Credential("twitch", "token1", null, "User1", "user1", 60, null);
+        OAuth2Credential second = new OAuth2Credential("other", "token2", null, "2", "user2", 3600, null);
+        storage.upsertAll(Arrays.asList(first, second, new OAuth2Credential("twitch", "app")));
+        assertEquals(3, storage.loadCredentials().size());
+
+        first.setAccessToken("changed");
+        storage.upsert(first);
+        assertEquals("changed", ((OAuth2Credential) storage.getCredentialByUserId("user1").orElseThrow(IllegalStateException::new)).getAccessToken());
+        assertEquals(2, storage.findByProvider("TWITCH").size());
+        assertEquals(1, storage.findExpiringBefore(Instant.now().plusSeconds(600)).size());
+
+        assertTrue(storage.delete("twitch", "user1"));
+        assertFalse(storage.delete(first));
+        assertFalse(storage.getCredentialByUserId("User1").isPresent());
+    }
+
+    @Test
+    void storesCredentialsWithoutUserId() {
+        OAuth2Credential app = new OAuth2Credential("twitch", "app1");
+        OAuth2Credential other = new OAuth2Credential("twitch", "app2");
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(app, other, new OAuth2Credential("twitch", "token", null, "1", "user", null, null))));
+        assertEquals(3, storage.loadCredentials().size());
+
+        // the loaded instance updates and deletes its own row
+        JdbcStorageBackend reloaded = new JdbcStorageBackend(pool, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential loaded = (OAuth2Credential) reloaded.findByProvider("twitch").stream()
+            .filter(c -> "app1".equals(((OAuth2Credential) c).getAccessToken()))
+            .findAny()
+            .orElseThrow(IllegalStateException::new);
+        loaded.setAccessToken("app3");
+        reloaded.upsert(loaded);
+        assertEquals(3, storage.loadCredentials().size());
+        assertTrue(reloaded.delete(loaded));
+        assertFalse(reloaded.delete(loaded));
+
+        List<Credential> remaining = storage.loadCredentials();
+        assertEquals(2, remaining.size());
+        assertTrue(remaining.stream().anyMatch(c -> "app2".equals(((OAuth2Credential) c).getAccessToken())));
+        assertFalse(remaining.stream().anyMatch(c -> "app3".equals(((OAuth2Credential) c).getAccessToken())));
+    }
+
+    @Test
+    void saveAndIterate() {
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            credentials.add(new OAuth2Credential("twitch", "token" + i, null, String.valueOf(i), "user" + i, null, null));
+        }
+        storage.saveCredentials(credentials);
+        storage.saveCredentials(credentials.subList(0, 1000));
+
+        int count = 0;
+        Iterator<Credential> iterator = storage.credentialIterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    @Test
+    void upsertOfConcurrentlyInsertedRow() {
+        JdbcStorageBackend other = new JdbcStorageBackend(pool, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential concurrent = new OAuth2Credential("twitch", "concurrent", null, "1", "user1", null, null);
+        AtomicBoolean raced = new AtomicBoolean();
+
+        // the other writer inserts the row after the update found nothing, right before the insert
+        DataSource racing = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class }, (proxy, method, args) -> {
+            Object result = invoke(pool, method, args);
+            if (!"getConnection".equals(method.getName())) {
+                return result;
+            }
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, (connectionProxy, connectionMethod, connectionArgs) -> {
+                if ("prepareStatement".equals(connectionMethod.getName()) && ((String) connectionArgs[0]).startsWith("INSERT") && raced.compareAndSet(false, true)) {
+                    other.upsert(concurrent);
+                }
+                return invoke(result, connectionMethod, connectionArgs);
+            });
+        });
+
+        JdbcStorageBackend racingStorage = new JdbcStorageBackend(racing, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential mine = new OAuth2Credential("twitch", "mine", null, "1", "user1", null, null);
+        racingStorage.upsertAll(Arrays.asList(mine, new OAuth2Credential("twitch", "token2", null, "2", "user2", null, null)));
+
+        assertTrue(raced.get());
+        assertEquals(2, storage.loadCredentials().size());
+        assertEquals("mine", ((OAuth2Credential) storage.getCredentialByUserId("user1").orElseThrow(IllegalStateException::new)).getAccessToken());
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalFileStorageBackendTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayJournal() throws IOException {
+        File file = directory.resolve("credentials.json").toFile();
+        OAuth2Credential first = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+        OAuth2Credential second = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+        OAuth2Credential app = new OAuth2Credential("test", "app");
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            storage.upsertAll(Arrays.asList(first, second, app));
+            first.setAccessToken("token3");
+            storage.upsert(first);
+            app.setAccessToken("app2");
+            storage.upsert(app);
+            assertTrue(storage.delete("TEST", "2"));
+            assertFalse(storage.delete("test", "2"));
+            assertEquals(6, storage.getJournalRecords());
+        }
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            List<Credential> credentials = storage.loadCredentials();
+            assertEquals(2, credentials.size());
+            assertEquals("token3", ((OAuth2Credential) storage.getCredentialByUserId("1").orElseThrow(IllegalStateException::new)).getAccessToken());
+            assertEquals("app2", ((OAuth2Credential) credentials.get(1)).getAccessToken());
+            assertFalse(storage.getCredentialByUserId("2").isPresent());
+        }
+    }
+
+    @Test
+    void compact() throws IOException {
+        File file = directory.resolve("credentials.json").toFile();
+        File journal = new File(file.getPath() + ".journal");
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class, 1.0, 0)) {
+            OAuth2Credential credential = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+            for (int i = 0; i < 10; i++) {
+                credential.setAccessToken("token" + i);
+                storage.upsert(credential);
+            }
+            storage.compact();
+            assertEquals(0, storage.getJournalRecords());
+            assertEquals(2, Files.readAllLines(file.toPath()).size(), "Snapshot should hold the header and one record!");
+
+            storage.delete(credential);
+        }
+
+        // a torn record at the end of the journal and records without key or operation are skipped
+        Files.write(journal.toPath(), "{\"op\":\"delete\"}\n{\"key\":\"test|1\"}\n{\"op\":\"ups".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            assertTrue(storage.loadCredentials().isEmpty());
+        }
+    }
+
+    @Test
+    void ignoreJournalOfOlderSnapshot() throws IOException {
+        File file = directory.resolve("credentials.json").toFile();
+        Path journal = new File(file.getPath() + ".journal").toPath();
+        Path staleJournal = directory.resolve("stale.journal");
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            OAuth2Credential first = new OAuth2Credential("test", "token1", "refresh1", "1", "user1", null, null);
+            OAuth2Credential second = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+            storage.upsertAll(Arrays.asList(first, second));
+            Files.copy(journal, staleJournal);
+
+            // a full save deletes one credential and rotates the refresh token of the other
+            first.setRefreshToken("refresh2");
+            storage.saveCredentials(Arrays.asList(first));
+        }
+
+        // a crash after the snapshot was written, but before the journal was deleted
+        Files.copy(staleJournal, journal, StandardCopyOption.REPLACE_EXISTING);
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            assertEquals(1, storage.loadCredentials().size());
+            assertEquals("refresh2", ((OAuth2Credential) storage.getCredentialByUserId("1").orElseThrow(IllegalStateException::new)).getRefreshToken());
+
+            // records appended after the snapshot are replayed
+            storage.upsert(new OAuth2Credential("test", "token3", null, "3", "user3", null, null));
+        }
+
+        try (JournalFileStorageBackend storage = new JournalFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            assertEquals(2, storage.loadCredentials().size());
+        }
+    }
+
+}
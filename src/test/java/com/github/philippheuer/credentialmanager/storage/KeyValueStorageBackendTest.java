@@ -0,0 +1,153 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.philippheuer.credentialmanager.api.IKeyValueStore;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyValueStorageBackendTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Test
+    void inMemoryStore() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        assertEquals(OptionalLong.of(1), store.putIfVersion("a/1", value, IKeyValueStore.ABSENT));
+        assertFalse(store.putIfVersion("a/1", value, IKeyValueStore.ABSENT).isPresent());
+        assertEquals(OptionalLong.of(2), store.putIfVersion("a/1", value, 1));
+        assertEquals(2, store.get("a/1").map(IKeyValueStore.Entry::getVersion).orElse(0L));
+
+        List<OptionalLong> results = store.batch(Arrays.asList(
+            IKeyValueStore.Operation.putIfVersion("a/2", value, IKeyValueStore.ABSENT),
+            IKeyValueStore.Operation.putIfVersion("b/1", value, 5),
+            IKeyValueStore.Operation.delete("a/1")
+        ));
+        assertEquals(Arrays.asList(OptionalLong.of(1), OptionalLong.empty(), OptionalLong.of(IKeyValueStore.ABSENT)), results);
+        assertEquals(1, store.scanByPrefix("a/").size());
+        assertEquals(0, store.scanByPrefix("b/").size());
+    }
+
+    @Test
+    void readWrite() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        KeyValueStorageBackend storage = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential first = new OAuth2Credential("twitch", "token1", null, "User1", "user1", 3600, null);
+        OAuth2Credential second = new OAuth2Credential("other", "token2", null, "2", "user2", 3600, null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(first, second, new OAuth2Credential("twitch", "app"))));
+
+        assertEquals(3, store.size());
+        assertEquals(first, storage.getCredentialByUserId("user1").orElse(null));
+        assertFalse(storage.getCredentialByUserId("3").isPresent());
+        assertEquals(Arrays.asList(second), storage.findByProvider("OTHER"));
+
+        first.setAccessToken("token1b");
+        storage.upsert(first);
+        assertEquals("token1b", ((OAuth2Credential) storage.getCredentialByUserId("User1").get()).getAccessToken());
+
+        assertTrue(storage.delete("twitch", "USER1"));
+        assertFalse(storage.delete(first));
+        storage.saveCredentials(new ArrayList<>());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void concurrentRefreshesOnDifferentNodes() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        Instant issuedAt = Instant.parse("2024-09-01T00:00:00Z");
+        KeyValueStorageBackend first = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        KeyValueStorageBackend second = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        List<Credential> kept = new ArrayList<>();
+        second.setChangeListener((upserted, deleted) -> kept.addAll(upserted));
+
+        first.upsert(new OAuth2Credential("twitch", "token", "refresh", "1", "user1", issuedAt, 3600, null, null));
+        second.loadCredentials();
+
+        // the first node refreshes last, the second node's older write keeps the newer token
+        first.upsert(new OAuth2Credential("twitch", "token-first", "refresh-first", "1", "user1", issuedAt.plusSeconds(20), 3600, null, null));
+        second.upsert(new OAuth2Credential("twitch", "token-second", "refresh-second", "1", "user1", issuedAt.plusSeconds(10), 3600, null, null));
+        assertEquals("refresh-first", ((OAuth2Credential) second.getCredentialByUserId("1").get()).getRefreshToken());
+        assertEquals(1, kept.size());
+        assertEquals("refresh-first", ((OAuth2Credential) kept.get(0)).getRefreshToken());
+
+        // a newer token replaces the stored one, even if it was written by another node in the meantime
+        first.upsert(new OAuth2Credential("twitch", "token-first", "refresh-first2", "1", "user1", issuedAt.plusSeconds(30), 3600, null, null));
+        second.upsert(new OAuth2Credential("twitch", "token-second", "refresh-second2", "1", "user1", issuedAt.plusSeconds(40), 3600, null, null));
+        assertEquals("refresh-second2", ((OAuth2Credential) first.getCredentialByUserId("1").get()).getRefreshToken());
+        assertEquals(4, store.get("credentials/1/twitch").get().getVersion());
+    }
+
+    @Test
+    void deletedOnAnotherNode() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        KeyValueStorageBackend first = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        KeyValueStorageBackend second = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        List<Credential> deleted = new ArrayList<>();
+        second.setChangeListener((upserted, removed) -> deleted.addAll(removed));
+
+        first.upsert(new OAuth2Credential("twitch", "token", "refresh", "1", "user1", 3600, null));
+        second.loadCredentials();
+
+        // the second node doesn't resurrect the credential the first node deleted
+        assertTrue(first.delete("twitch", "1"));
+        second.upsert(new OAuth2Credential("twitch", "token2", "refresh2", "1", "user1", 3600, null));
+        assertEquals(0, store.size());
+        assertEquals(1, deleted.size());
+        assertEquals("1", deleted.get(0).getUserId());
+
+        // without a version, the credential is written again
+        second.upsert(new OAuth2Credential("twitch", "token3", "refresh3", "1", "user1", 3600, null));
+        assertEquals("token3", ((OAuth2Credential) first.getCredentialByUserId("1").get()).getAccessToken());
+    }
+
+    @Test
+    void saveKeepsCredentialsOfOtherNodes() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        KeyValueStorageBackend first = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        KeyValueStorageBackend second = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential kept = new OAuth2Credential("twitch", "token1", null, "1", "user1", null, null);
+        OAuth2Credential removed = new OAuth2Credential("twitch", "token2", null, "2", "user2", null, null);
+        first.saveCredentials(new ArrayList<>(Arrays.asList(kept, removed)));
+        second.upsert(new OAuth2Credential("twitch", "token3", null, "3", "user3", null, null));
+
+        // the first node never read the credential of the second node, a full save only removes its own
+        first.saveCredentials(new ArrayList<>(Arrays.asList(kept)));
+        assertEquals(2, store.size());
+        assertFalse(second.getCredentialByUserId("2").isPresent());
+        assertTrue(first.getCredentialByUserId("3").isPresent());
+    }
+
+    @Test
+    void sharesCredentialsWithoutUserId() {
+        InMemoryKeyValueStore store = new InMemoryKeyValueStore();
+        KeyValueStorageBackend first = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        OAuth2Credential app = new OAuth2Credential("twitch", "app");
+        first.upsert(app);
+        app.setAccessToken("app2");
+        first.upsert(app);
+        assertEquals(1, store.size());
+
+        KeyValueStorageBackend second = new KeyValueStorageBackend(store, OBJECT_MAPPER, OAuth2Credential.class);
+        List<Credential> loaded = second.loadCredentials();
+        assertEquals(1, loaded.size());
+        assertEquals("app2", ((OAuth2Credential) loaded.get(0)).getAccessToken());
+
+        // the loaded instance addresses the same key
+        assertTrue(second.delete(loaded.get(0)));
+        assertEquals(0, store.size());
+        assertFalse(second.delete(new OAuth2Credential("twitch", "app2")));
+    }
+
+}
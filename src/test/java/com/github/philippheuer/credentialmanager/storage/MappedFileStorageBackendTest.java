@@ -0,0 +1,151 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedFileStorageBackendTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readWrite() throws IOException {
+        File file = directory.resolve("credentials.bin").toFile();
+        OAuth2Credential first = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+        OAuth2Credential second = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+        OAuth2Credential app = new OAuth2Credential("test", "app");
+
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            storage.upsertAll(Arrays.asList(first, second, app));
+
+            // fits into the reserved capacity
+            first.setAccessToken("token3");
+            storage.upsert(first);
+
+            // outgrows the reserved capacity
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                token.append("long");
+            }
+            app.setAccessToken(token.toString());
+            storage.upsert(app);
+
+            assertTrue(storage.delete("TEST", "2"));
+            assertFalse(storage.delete("test", "2"));
+            assertEquals(2, storage.loadCredentials().size());
+        }
+
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            assertEquals("token3", ((OAuth2Credential) storage.getCredentialByUserId("1").orElseThrow(IllegalStateException::new)).getAccessToken());
+            assertFalse(storage.getCredentialByUserId("2").isPresent());
+
+            List<Credential> credentials = new ArrayList<>();
+            Iterator<Credential> iterator = storage.credentialIterator();
+            iterator.forEachRemaining(credentials::add);
+            assertEquals(2, credentials.size());
+            assertEquals(app.getAccessToken(), ((OAuth2Credential) credentials.get(1)).getAccessToken());
+
+            // replaces all credentials
+            storage.saveCredentials(new ArrayList<>(Arrays.asList(credentials.get(1), second)));
+            assertEquals(2, storage.loadCredentials().size());
+            assertFalse(storage.getCredentialByUserId("1").isPresent());
+            assertEquals(1, storage.findByProvider("test").stream().filter(c -> "2".equals(c.getUserId())).count());
+        }
+    }
+
+    @Test
+    void userIdChangesCase() throws IOException {
+        File file = directory.resolve("credentials.bin").toFile();
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            storage.upsert(new OAuth2Credential("test", "token", null, "ABC", "user", null, null));
+
+            // outgrows the record, the appended record supersedes the one with the other case
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                token.append("long");
+            }
+            storage.upsert(new OAuth2Credential("test", token.toString(), null, "abc", "user", null, null));
+            assertEquals(1, storage.loadCredentials().size());
+            assertFalse(storage.getCredentialByUserId("ABC").isPresent());
+            assertTrue(storage.getCredentialByUserId("abc").isPresent());
+
+            storage.upsert(new OAuth2Credential("test", "short", null, "Abc", "user", null, null));
+            assertTrue(storage.getCredentialByUserId("Abc").isPresent());
+            assertFalse(storage.getCredentialByUserId("abc").isPresent());
+        }
+    }
+
+    @Test
+    void reusesDeletedRecords() throws IOException {
+        File file = directory.resolve("credentials.bin").toFile();
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            storage.upsert(new OAuth2Credential("test", "token", null, "0", "user", null, null));
+        }
+        int endOffset = endOffset(file);
+
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            for (int i = 1; i <= 100; i++) {
+                assertTrue(storage.delete("test", String.valueOf(i - 1)));
+                storage.upsert(new OAuth2Credential("test", "token", null, String.valueOf(i), "user", null, null));
+            }
+            assertEquals(1, storage.loadCredentials().size());
+            assertTrue(storage.getCredentialByUserId("100").isPresent());
+        }
+        assertEquals(endOffset, endOffset(file));
+    }
+
+    @Test
+    void recoversTornWrite() throws IOException {
+        File file = directory.resolve("credentials.bin").toFile();
+        OAuth2Credential credential = new OAuth2Credential("test", "token1", null, "1", "user", null, null);
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            storage.upsert(credential);
+            credential.setAccessToken("token2");
+            storage.upsert(credential);
+        }
+
+        // corrupt the second slot of the first record, which holds the last write
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(32);
+            int capacity = raw.readInt();
+            raw.seek(32 + 22 + capacity);
+            int b = raw.read();
+            raw.seek(32 + 22 + capacity);
+            raw.write(b ^ 0xFF);
+        }
+
+        try (MappedFileStorageBackend storage = new MappedFileStorageBackend(file, OBJECT_MAPPER, OAuth2Credential.class)) {
+            assertEquals("token1", ((OAuth2Credential) storage.getCredentialByUserId("1").orElseThrow(IllegalStateException::new)).getAccessToken());
+
+            credential.setAccessToken("token3");
+            storage.upsert(credential);
+            assertEquals("token3", ((OAuth2Credential) storage.loadCredentials().get(0)).getAccessToken());
+        }
+    }
+
+    private static int endOffset(File file) throws IOException {
+        try (RandomAccessFile raw = new RandomAccessFile(file, "r")) {
+            raw.seek(8);
+            return raw.readInt();
+        }
+    }
+
+}
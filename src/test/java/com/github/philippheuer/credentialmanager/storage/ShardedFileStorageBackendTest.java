@@ -0,0 +1,107 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedFileStorageBackendTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rewritesDirtyShardsOnly() throws IOException {
+        ShardedFileStorageBackend storage = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 4, StorageDurability.NONE);
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            credentials.add(new OAuth2Credential(i % 2 == 0 ? "twitch" : "other", "token" + i, null, String.valueOf(i), "user" + i, null, null));
+        }
+        credentials.add(new OAuth2Credential("twitch", "app"));
+        storage.saveCredentials(credentials);
+        assertEquals(8, shardFiles().size());
+
+        FileTime old = FileTime.fromMillis(0);
+        for (Path shard : shardFiles()) {
+            Files.setLastModifiedTime(shard, old);
+        }
+
+        ((OAuth2Credential) credentials.get(3)).setAccessToken("changed");
+        storage.saveCredentials(credentials);
+        long rewritten = shardFiles().stream().filter(p -> !getLastModifiedTime(p).equals(old)).count();
+        assertEquals(1, rewritten);
+
+        ShardedFileStorageBackend reloaded = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 4, StorageDurability.NONE);
+        assertEquals(21, reloaded.loadCredentials().size());
+        assertEquals(11, reloaded.findByProvider("twitch").size());
+        assertEquals("changed", ((OAuth2Credential) reloaded.getCredentialByUserId("3").orElseThrow(IllegalStateException::new)).getAccessToken());
+
+        assertTrue(reloaded.delete("OTHER", "3"));
+        assertFalse(reloaded.getCredentialByUserId("3").isPresent());
+    }
+
+    @Test
+    void redistributesAfterBucketChange() {
+        ShardedFileStorageBackend storage = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 8, StorageDurability.NONE);
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            credentials.add(new OAuth2Credential("twitch", "token" + i, null, String.valueOf(i), "user" + i, null, null));
+        }
+        storage.saveCredentials(credentials);
+
+        ShardedFileStorageBackend resharded = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 2, StorageDurability.NONE);
+        assertEquals(50, resharded.loadCredentials().size());
+        assertEquals(2, shardFiles().size());
+        assertTrue(resharded.getCredentialByUserId("42").isPresent());
+    }
+
+    @Test
+    void dropsCopiesOfInterruptedRedistribution() throws IOException {
+        ShardedFileStorageBackend storage = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 2, StorageDurability.NONE);
+        List<Credential> credentials = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            credentials.add(new OAuth2Credential("twitch", "token" + i, null, String.valueOf(i), "user" + i, null, null));
+        }
+        storage.saveCredentials(credentials);
+
+        // a source shard that still holds the credentials already moved to their destination
+        Files.copy(directory.resolve("twitch#0.json"), directory.resolve("twitch#5.json"));
+
+        ShardedFileStorageBackend reloaded = new ShardedFileStorageBackend(directory.toFile(), OBJECT_MAPPER, OAuth2Credential.class, 2, StorageDurability.NONE);
+        assertEquals(50, reloaded.loadCredentials().size());
+        assertEquals(2, shardFiles().size());
+    }
+
+    private List<Path> shardFiles() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static FileTime getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
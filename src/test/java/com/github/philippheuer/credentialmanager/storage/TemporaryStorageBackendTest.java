@@ -0,0 +1,123 @@
+package com.github.philippheuer.credentialmanager.storage;
+
+import com.github.philippheuer.credentialmanager.domain.Credential;
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TemporaryStorageBackendTest {
+
+    @Test
+    void lookupsSkipCredentialsWithoutUserId() {
+        TemporaryStorageBackend storage = new TemporaryStorageBackend();
+        OAuth2Credential app = new OAuth2Credential("test", "app");
+        OAuth2Credential user = new OAuth2Credential("test", "token", null, "User1", "user1", null, null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(app, user)));
+
+        assertSame(user, storage.getCredentialByUserId("user1").orElse(null));
+        assertFalse(storage.getCredentialByUserId("2").isPresent());
+        assertFalse(storage.getCredentialByUserId(null).isPresent());
+        assertEquals(Arrays.asList(app, user), storage.loadCredentials());
+    }
+
+    @Test
+    void upsertAndDelete() {
+        TemporaryStorageBackend storage = new TemporaryStorageBackend();
+        OAuth2Credential app = new OAuth2Credential("test", "app");
+        OAuth2Credential first = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+        OAuth2Credential second = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+        storage.upsertAll(Arrays.asList(app, first, second));
+
+        // replaced in place, by instance and by identity provider and user id
+        OAuth2Credential replacement = new OAuth2Credential("TEST", "token1b", null, "1", "user1", null, null);
+        app.setAccessToken("app2");
+        storage.upsertAll(Arrays.asList(app, replacement));
+        assertEquals(Arrays.asList(app, replacement, second), storage.loadCredentials());
+        assertSame(replacement, storage.getCredentialByUserId("1").orElse(null));
+
+        assertTrue(storage.delete("test", "2"));
+        assertFalse(storage.delete("test", "2"));
+        assertTrue(storage.delete(app));
+        assertEquals(Arrays.asList(replacement), storage.loadCredentials());
+        assertEquals(Arrays.asList(replacement), storage.findByProvider("test"));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    void evictsExpiredCredentialsWithoutRefreshToken() {
+        TemporaryStorageBackend storage = new TemporaryStorageBackend(100, Duration.ofHours(1));
+        Instant issuedAt = Instant.now().minusSeconds(120);
+        OAuth2Credential expired = new OAuth2Credential("test", "token1", null, "1", "user1", issuedAt, 60, null, null);
+        OAuth2Credential refreshable = new OAuth2Credential("test", "token2", "refresh", "2", "user2", issuedAt, 60, null, null);
+        OAuth2Credential valid = new OAuth2Credential("test", "token3", null, "3", "user3", issuedAt, 3600, null, null);
+        storage.saveCredentials(new ArrayList<>(Arrays.asList(expired, refreshable, valid)));
+
+        assertFalse(storage.getCredentialByUserId("1").isPresent());
+        assertTrue(storage.getCredentialByUserId("2").isPresent());
+        assertEquals(Arrays.asList(refreshable, valid), storage.loadCredentials());
+        assertEquals(3, storage.size());
+
+        assertEquals(1, storage.evictExpired());
+        assertEquals(2, storage.size());
+    }
+
+    @Test
+    void evictsOldestBeyondMaximumSize() {
+        TemporaryStorageBackend storage = new TemporaryStorageBackend(2);
+        OAuth2Credential first = new OAuth2Credential("test", "token1", null, "1", "user1", null, null);
+        OAuth2Credential second = new OAuth2Credential("test", "token2", null, "2", "user2", null, null);
+        OAuth2Credential third = new OAuth2Credential("test", "token3", null, "3", "user3", null, null);
+        storage.upsert(first);
+        storage.upsert(second);
+        storage.upsert(third);
+
+        assertEquals(Arrays.asList(second, third), storage.loadCredentials());
+        assertFalse(storage.getCredentialByUserId("1").isPresent());
+    }
+
+    @Test
+    void concurrentWritesAndLookups() throws Exception {
+        TemporaryStorageBackend storage = new TemporaryStorageBackend();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        String userId = thread + "-" + i;
+                        storage.upsert(new OAuth2Credential("test", "token", null, userId, null, null, null));
+                        assertTrue(storage.getCredentialByUserId(userId).isPresent());
+                        if (i % 2 == 0) {
+                            assertTrue(storage.delete("test", userId));
+                        }
+                        storage.getCredentialByUserId(null);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<Credential> credentials = storage.loadCredentials();
+        assertEquals(2000, credentials.size());
+        assertEquals(2000, storage.size());
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.github.philippheuer.credentialmanager.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+    @Test
+    void coalescesConcurrentCalls() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Integer> leader = CompletableFuture.supplyAsync(() -> flight.execute("key", () -> {
+            started.countDown();
+            awaitQuietly(release);
+            return executions.incrementAndGet();
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<CompletableFuture<Integer>> followers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            followers.add(CompletableFuture.supplyAsync(() -> flight.execute("key", executions::incrementAndGet)));
+        }
+        while (flight.getStatistics().getCoalesced() < followers.size()) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> follower : followers) {
+            assertEquals(1, follower.get(5, TimeUnit.SECONDS));
+        }
+
+        SingleFlight.Statistics statistics = flight.getStatistics();
+        assertEquals(5, statistics.getCalls());
+        assertEquals(1, statistics.getExecutions());
+        assertEquals(4, statistics.getCoalesced());
+        assertEquals(0, statistics.getInFlight());
+    }
+
+    @Test
+    void propagatesExceptions() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        assertThrows(IllegalStateException.class, () -> flight.execute("key", () -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals(2, flight.execute("key", () -> 2));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.philippheuer.credentialmanager.util;
+
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import com.github.philippheuer.credentialmanager.domain.TokenResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TokenResponseUtilTest {
+
+    @Test
+    void readRfcResponse() throws IOException {
+        TokenResponse response = TokenResponseUtil.readTokenResponse(stream("{\"access_token\":\"access\",\"token_type\":\"bearer\",\"expires_in\":3600,\"refresh_token\":\"refresh\",\"scope\":\"a  b\",\"id_token\":\"ignored\"}"));
+        assertEquals("access", response.getAccessToken());
+        assertEquals("bearer", response.getTokenType());
+        assertEquals("refresh", response.getRefreshToken());
+        assertEquals(3600, response.getExpiresIn());
+        assertEquals(Arrays.asList("a", "b"), response.getScope());
+
+        OAuth2Credential credential = response.toCredential("test");
+        assertEquals("test", credential.getIdentityProvider());
+        assertEquals("access", credential.getAccessToken());
+        assertEquals(Arrays.asList("a", "b"), credential.getScopes());
+    }
+
+    @Test
+    void readNonRfcResponse() throws IOException {
+        // expires_in as a string and the scopes as an array, like Twitch
+        TokenResponse response = TokenResponseUtil.readTokenResponse(stream("{\"access_token\":\"access\",\"expires_in\":\"60\",\"scope\":[\"a\",\"b\"]}"));
+        assertEquals(60, response.getExpiresIn());
+        assertEquals(Arrays.asList("a", "b"), response.getScope());
+        assertNull(response.getRefreshToken());
+
+        TokenResponse empty = TokenResponseUtil.readTokenResponse(stream("{\"access_token\":\"access\",\"expires_in\":null}"));
+        assertNull(empty.getExpiresIn());
+        assertNull(empty.getScope());
+    }
+
+    @Test
+    void invalidExpiresIn() {
+        assertThrows(IllegalArgumentException.class, () -> TokenResponseUtil.readTokenResponse(stream("{\"access_token\":\"access\",\"expires_in\":\"soon\"}")));
+        assertThrows(IllegalArgumentException.class, () -> TokenResponseUtil.readTokenResponse(stream("{\"access_token\":\"access\",\"expires_in\":true}")));
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+}